@@ -0,0 +1,59 @@
+package com.ilyun.jchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Encoding and decoding one chat-sized TEXT frame, and compressing and inflating a page
+// of 50 of them as history replay sends it
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private Message message;
+    private ByteBuffer frame;
+    private ByteBuffer page;
+    private ByteBuffer compressedPage;
+
+    @Setup
+    public void setup() {
+        message = new Message(Message.Type.TEXT, "alice", "hey, are we still on for lunch today?");
+        message.setRoom("general");
+        frame = ByteBuffer.wrap(MessageCodec.encode(message));
+        page = ByteBuffer.allocate(frame.remaining() * 50);
+        for (int i = 0; i < 50; i++) {
+            page.put(frame.duplicate());
+        }
+        page.flip();
+        compressedPage = Compression.compress(page, 50);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeShared() {
+        return MessageCodec.encodeShared(message);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return MessageCodec.poll(frame.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer compressPage() {
+        return Compression.compress(page, 50);
+    }
+
+    @Benchmark
+    public ByteBuffer inflatePage() throws IOException {
+        return Compression.inflate(compressedPage.duplicate());
+    }
+}
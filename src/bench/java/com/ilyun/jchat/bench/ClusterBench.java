@@ -0,0 +1,191 @@
+package com.ilyun.jchat.bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.client.ChatClient;
+
+// A cluster of server nodes on localhost, each its own JVM on the bench classpath, linked
+// over the cluster bus. Checks the nodes share one namespace (every user sees everyone,
+// a name taken on one node is refused on another), then has every user talk in the lobby
+// at a fixed rate and reports send to receive latency separately for messages that stayed
+// on one node and ones that crossed the bus:
+//   ClusterBench [nodes] [usersPerNode] [messagesPerSecondPerUser] [seconds] [blocking|virtual|nio]
+// Nodes listen on _PORT, _PORT + 1, ... for clients and 100 ports higher for the bus.
+public class ClusterBench {
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long CONVERGE_MILLIS = 10_000;
+    private static final String FILLER = "lorem ipsum dolor sit amet, consectetur";
+
+    private static final LatencyHistogram sameNode = new LatencyHistogram();
+    private static final LatencyHistogram crossNode = new LatencyHistogram();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static volatile long measureFrom = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int usersPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        String mode = args.length > 4 ? args[4] : "nio";
+
+        String host = "127.0.0.1";
+        int basePort = Integer.parseInt(System.getProperty("_PORT", "9421"));
+        StringJoiner peers = new StringJoiner(",");
+        for (int node = 0; node < nodes; node++) {
+            peers.add(host + ":" + (basePort + 100 + node));
+        }
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<Process> servers = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servers.forEach(Process::destroy)));
+        LoadGenerator.liftRateLimits();
+        for (int node = 0; node < nodes; node++) {
+            List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path")));
+            for (String key : LoadGenerator.RATE_LIMITS) {
+                command.add("-D" + key + "=" + System.getProperty(key));
+            }
+            command.addAll(List.of(
+                    "-D_SERVER_IP=" + host,
+                    "-D_PORT=" + (basePort + node),
+                    "-D_CLUSTER_PORT=" + (basePort + 100 + node),
+                    "-D_CLUSTER_PEERS=" + peers,
+                    "-D_CLUSTER_NODE=node" + node,
+                    "-D_HISTORY_ENABLED=false",
+                    "-D_METRICS_PORT=0",
+                    "-D_LOG_LEVEL=" + System.getProperty("_LOG_LEVEL", "warn"),
+                    "com.ilyun.jchat.server.ChatServer", mode));
+            servers.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        for (int node = 0; node < nodes; node++) {
+            LoadGenerator.waitForPort(host, basePort + node);
+        }
+
+        List<ChatClient> clients = new ArrayList<>();
+        for (int node = 0; node < nodes; node++) {
+            for (int i = 0; i < usersPerNode; i++) {
+                int at = node;
+                ChatClient client = new ChatClient(Runnable::run);
+                if (!client.connect(host, basePort + node, name(node, i), 0, batch -> receive(at, batch))) {
+                    throw new IllegalStateException(name(node, i) + " could not connect");
+                }
+                clients.add(client);
+            }
+        }
+        int users = nodes * usersPerNode;
+        checkPresence(host, basePort, nodes, users);
+        if (nodes > 1) {
+            checkUnique(host, basePort + 1, name(0, 0));
+        }
+
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        long period = (long) (1e9 / rate);
+        for (int i = 0; i < users; i++) {
+            ChatClient client = clients.get(i);
+            senders.scheduleAtFixedRate(() -> {
+                client.sendText(null, System.nanoTime() + " " + FILLER);
+                sent.increment();
+            }, period * i / users, period, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(WARMUP_NANOS / 1_000_000);
+        long sentBefore = sent.sum();
+        measureFrom = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long elapsed = System.nanoTime() - measureFrom;
+        long sentDuring = sent.sum() - sentBefore;
+        long receivedDuring = received.sum();
+        senders.shutdownNow();
+
+        System.out.printf("%n%d nodes x %d users, %s mode, lobby, %.1f msg/s each, %d s%n", nodes, usersPerNode,
+                mode, rate, seconds);
+        System.out.printf("sent      %,12.0f msg/s%n", sentDuring * 1e9 / elapsed);
+        System.out.printf("delivered %,12.0f msg/s  (%.1f%% of sent x %d recipients)%n",
+                receivedDuring * 1e9 / elapsed, 100.0 * receivedDuring / Math.max(1, sentDuring * (users - 1)), users - 1);
+        report("same node", sameNode);
+        report("cross node", crossNode);
+
+        for (ChatClient client : clients) {
+            client.disconnect();
+        }
+        System.exit(0);
+    }
+
+    // Every node lists every user, once the bus has passed the logins around
+    private static void checkPresence(String host, int basePort, int nodes, int users) throws Exception {
+        long deadline = System.currentTimeMillis() + CONVERGE_MILLIS;
+        for (int node = 0; node < nodes; node++) {
+            int seen;
+            while ((seen = userList(host, basePort + node)) < users) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("node" + node + " lists " + seen + " of " + users + " users");
+                }
+                Thread.sleep(100);
+            }
+        }
+        System.out.printf("presence  every node lists all %d users%n", users);
+    }
+
+    // Users a fresh login is told about, itself not counted
+    private static int userList(String host, int port) throws Exception {
+        CompletableFuture<String> list = new CompletableFuture<>();
+        ChatClient probe = new ChatClient(Runnable::run);
+        probe.connect(host, port, "probe" + System.nanoTime(), 0, batch -> batch.stream()
+                .filter(message -> message.getType() == Message.Type.USER_LIST)
+                .findFirst().ifPresent(message -> list.complete(message.getContent())));
+        try {
+            return list.get(5, TimeUnit.SECONDS).split(",").length - 1;
+        } finally {
+            probe.disconnect();
+        }
+    }
+
+    private static void checkUnique(String host, int port, String taken) throws Exception {
+        CompletableFuture<Message> answer = new CompletableFuture<>();
+        ChatClient duplicate = new ChatClient(Runnable::run);
+        duplicate.connect(host, port, taken, 0, batch -> batch.stream()
+                .filter(message -> message.getType() == Message.Type.DISCONNECT
+                        || message.getType() == Message.Type.USER_LIST)
+                .findFirst().ifPresent(answer::complete));
+        try {
+            if (answer.get(5, TimeUnit.SECONDS).getType() != Message.Type.DISCONNECT) {
+                throw new IllegalStateException(taken + " got in twice");
+            }
+        } finally {
+            duplicate.disconnect();
+        }
+        System.out.printf("unique    %s refused on another node%n", taken);
+    }
+
+    private static void receive(int node, List<Message> batch) {
+        long now = System.nanoTime();
+        if (now < measureFrom) {
+            return;
+        }
+        for (Message message : batch) {
+            if (message.getType() != Message.Type.TEXT) {
+                continue;
+            }
+            String content = message.getContent();
+            long sentAt = Long.parseLong(content.substring(0, content.indexOf(' ')));
+            if (sentAt < measureFrom) {
+                continue; // sent during the warm-up
+            }
+            boolean local = message.getSender().startsWith("node" + node + "-");
+            (local ? sameNode : crossNode).record((now - sentAt) / 1000);
+            received.increment();
+        }
+    }
+
+    private static String name(int node, int user) {
+        return "node" + node + "-" + user;
+    }
+
+    private static void report(String name, LatencyHistogram histogram) {
+        System.out.printf("%-10s p50 %,9d us  p99 %,9d us  p999 %,9d us  max %,9d us%n", name,
+                histogram.percentile(50), histogram.percentile(99), histogram.percentile(99.9), histogram.max());
+    }
+}
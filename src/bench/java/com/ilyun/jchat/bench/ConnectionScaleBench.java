@@ -0,0 +1,183 @@
+package com.ilyun.jchat.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import com.ilyun.jchat.server.ChatServer;
+
+// Opens N idle client connections against an in-process server and reports how
+// the server's platform threads and memory grow. Run it once per server mode:
+//   ConnectionScaleBench <blocking|virtual|nio> [count...] [--login]
+// Without --login the clients stay connected but never log in, which measures the
+// cost of a parked connection without the USER_LIST fan-out of every join.
+// Client sockets live in the same JVM, so their share of heap is the same in every mode.
+// Beyond ~28k connections the clients bind extra loopback addresses to get more ports,
+// and the process needs a matching open-file limit (ulimit -n).
+public class ConnectionScaleBench {
+    private static final int CONNECTIONS_PER_LOCAL_ADDRESS = 25_000;
+
+    public static void main(String[] args) throws Exception {
+        String mode = "virtual";
+        boolean login = false;
+        List<Integer> counts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--login")) {
+                login = true;
+            } else if (Character.isDigit(arg.charAt(0))) {
+                counts.add(Integer.parseInt(arg));
+            } else {
+                mode = arg;
+            }
+        }
+        if (counts.isEmpty()) {
+            counts = List.of(1_000, 10_000, 50_000);
+        }
+
+        String host = System.getProperty("_SERVER_IP", "127.0.0.1");
+        int port = Integer.parseInt(System.getProperty("_PORT", "9400"));
+        System.setProperty("_SERVER_IP", host);
+        System.setProperty("_PORT", String.valueOf(port));
+        LoadGenerator.liftRateLimits();
+
+        String serverMode = mode;
+        Thread server = new Thread(() -> ChatServer.main(new String[]{serverMode}), "server-main");
+        server.setDaemon(true);
+        server.start();
+        LoadGenerator.waitForPort(host, port);
+
+        Sample baseline = Sample.take();
+        System.out.printf("%n%-9s %8s %10s %9s %10s %12s %9s%n",
+                "mode", "clients", "connect_ms", "threads", "heap_mb", "heap_kb/conn", "rss_mb");
+
+        for (int count : counts) {
+            Drainer drainer = new Drainer();
+            long start = System.nanoTime();
+            int opened = open(host, port, count, login, drainer);
+            long connectMillis = (System.nanoTime() - start) / 1_000_000;
+            Thread.sleep(2_000); // let the server finish accepting
+
+            Sample sample = Sample.take();
+            double heapMb = (sample.heapBytes - baseline.heapBytes) / (1024.0 * 1024.0);
+            System.out.printf("%-9s %8d %10d %9d %10.1f %12.2f %9s%n",
+                    mode, opened, connectMillis, sample.threads - baseline.threads, heapMb,
+                    opened == 0 ? 0.0 : heapMb * 1024.0 / opened,
+                    sample.rssKb < 0 ? "n/a" : String.valueOf((sample.rssKb - baseline.rssKb) / 1024));
+            if (opened < count) {
+                System.out.println("  stopped early at " + opened + " connections (open-file or port limit)");
+            }
+
+            drainer.closeAll();
+            Thread.sleep(2_000);
+        }
+
+        ChatServer.shutdown();
+    }
+
+    private static int open(String host, int port, int count, boolean login, Drainer drainer) {
+        InetSocketAddress server = new InetSocketAddress(host, port);
+        boolean loopback = server.getAddress().isLoopbackAddress();
+        for (int i = 0; i < count; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                if (loopback && i >= CONNECTIONS_PER_LOCAL_ADDRESS) {
+                    channel.bind(new InetSocketAddress("127.0.0." + (1 + i / CONNECTIONS_PER_LOCAL_ADDRESS), 0));
+                }
+                channel.connect(server);
+                if (login) {
+                    channel.write(new ByteBuffer[]{
+                            ByteBuffer.wrap(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, 0)),
+                            ByteBuffer.wrap(MessageCodec.encode(new Message(Message.Type.CONNECT, "sim" + i, "")))});
+                }
+                drainer.add(channel);
+            } catch (IOException e) {
+                return i;
+            }
+        }
+        return count;
+    }
+
+
+    // Reads and discards whatever the server sends, so it never blocks on a full socket
+    static class Drainer implements Runnable {
+        private final Selector selector;
+        private final List<SocketChannel> channels = new ArrayList<>();
+        private final Queue<SocketChannel> pending = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        Drainer() throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, "drainer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void add(SocketChannel channel) throws IOException {
+            channel.configureBlocking(false);
+            channels.add(channel);
+            pending.add(channel);
+        }
+
+        void closeAll() throws IOException {
+            running = false;
+            selector.wakeup();
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            selector.close();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+            while (running) {
+                try {
+                    selector.select(100);
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        sink.clear();
+                        if (((SocketChannel) key.channel()).read(sink) < 0) {
+                            key.cancel();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException | ClosedSelectorException | CancelledKeyException e) {
+                    // closing down
+                }
+            }
+        }
+    }
+
+    record Sample(int threads, long heapBytes, long rssKb) {
+        static Sample take() throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(200);
+            }
+            return new Sample(ManagementFactory.getThreadMXBean().getThreadCount(),
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+                    readRssKb());
+        }
+
+        private static long readRssKb() {
+            try {
+                for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("\\D", ""));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // not Linux
+            }
+            return -1;
+        }
+    }
+}
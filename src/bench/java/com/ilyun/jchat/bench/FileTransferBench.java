@@ -0,0 +1,144 @@
+package com.ilyun.jchat.bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.client.ChatClient;
+import com.ilyun.jchat.client.SharedFile;
+
+// Chat latency while a big file goes up and comes back down, against a server JVM on
+// localhost with its file store in a temp directory:
+//   FileTransferBench [blocking|virtual|nio] [megabytes] [messages per second]
+// One user sends lobby messages at a steady rate carrying their send time, another times
+// their arrival. That runs first on its own, then while a third user uploads the file and
+// then downloads it, over connections of their own beside their chat one. Reports the
+// latency of each phase and the transfer rates.
+public class FileTransferBench {
+    private static final String HOST = "127.0.0.1";
+    private static final int IDLE_SECONDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "nio";
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int port = Integer.parseInt(System.getProperty("_PORT", "9441"));
+
+        Path dir = Files.createTempDirectory("jchat-files");
+        Path file = dir.resolve("upload.bin");
+        Path copy = dir.resolve("download.bin");
+        byte[] block = new byte[1 << 20];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < megabytes; i++) {
+                out.write(block);
+            }
+        }
+
+        LoadGenerator.liftRateLimits();
+        Process server = server(mode, port, dir.resolve("store"));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroy));
+        try {
+            LoadGenerator.waitForPort(HOST, port);
+            AtomicReference<LatencyHistogram> phase = new AtomicReference<>();
+            ChatClient sender = client(port, "probe-sender", batch -> {
+            });
+            client(port, "probe-receiver", batch -> {
+                long now = System.nanoTime();
+                LatencyHistogram histogram = phase.get();
+                for (Message message : batch) {
+                    if (histogram != null && message.getType() == Message.Type.TEXT) {
+                        histogram.record((now - Long.parseLong(message.getContent())) / 1000);
+                    }
+                }
+            });
+            ChatClient uploader = client(port, "uploader", batch -> {
+            });
+            Thread probe = Thread.ofPlatform().daemon().start(() -> {
+                long interval = 1_000_000_000L / rate;
+                long next = System.nanoTime();
+                while (true) {
+                    sender.sendText(null, Long.toString(System.nanoTime()));
+                    next += interval;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            Thread.sleep(1000); // warm-up
+
+            System.out.printf("%n%s mode, %d MB file, %d chat messages/s%n", mode, megabytes, rate);
+            LatencyHistogram idle = new LatencyHistogram();
+            phase.set(idle);
+            Thread.sleep(IDLE_SECONDS * 1000L);
+            report("chat, no transfer", idle, 0, 0);
+
+            LatencyHistogram uploading = new LatencyHistogram();
+            phase.set(uploading);
+            long start = System.nanoTime();
+            String id = uploader.upload(file, null, null, bytes -> {
+            });
+            report("chat during upload", uploading, Files.size(file), System.nanoTime() - start);
+
+            LatencyHistogram downloading = new LatencyHistogram();
+            phase.set(downloading);
+            start = System.nanoTime();
+            uploader.download(new SharedFile(id, "upload.bin", Files.size(file)), copy, bytes -> {
+            });
+            report("chat during download", downloading, Files.size(copy), System.nanoTime() - start);
+            phase.set(null);
+            probe.interrupt();
+            if (Files.mismatch(file, copy) != -1) {
+                throw new IllegalStateException("Downloaded file differs from the upload");
+            }
+        } finally {
+            server.destroy();
+            server.waitFor();
+            delete(dir);
+        }
+        System.exit(0);
+    }
+
+    private static ChatClient client(int port, String name, java.util.function.Consumer<List<Message>> handler) {
+        ChatClient client = new ChatClient(Runnable::run);
+        if (!client.connect(HOST, port, name, System.currentTimeMillis(), handler)) {
+            throw new IllegalStateException(name + " could not connect");
+        }
+        return client;
+    }
+
+    private static void report(String name, LatencyHistogram histogram, long bytes, long nanos) {
+        System.out.printf("%-22s p50 %,7d us  p99 %,7d us  max %,7d us  (%,d msgs)", name,
+                histogram.percentile(50), histogram.percentile(99), histogram.max(), histogram.count());
+        if (bytes > 0) {
+            System.out.printf("   %,7.1f MB/s", bytes / (nanos / 1e9) / (1 << 20));
+        }
+        System.out.println();
+    }
+
+    private static Process server(String mode, int port, Path store) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path")));
+        for (String key : LoadGenerator.RATE_LIMITS) {
+            command.add("-D" + key + "=" + System.getProperty(key));
+        }
+        command.addAll(List.of("-D_SERVER_IP=" + HOST, "-D_PORT=" + port, "-D_HISTORY_ENABLED=false",
+                "-D_METRICS_PORT=0", "-D_FILE_DIR=" + store, "-D_LOG_LEVEL=" + System.getProperty("_LOG_LEVEL", "warn"),
+                "com.ilyun.jchat.server.ChatServer", mode));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (var files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.ilyun.jchat.bench;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.client.ChatClient;
+import com.ilyun.jchat.server.ChatServer;
+
+// Simulated users against an in-process server, using the real ChatClient without a UI.
+// Every user sends at a fixed rate (open loop, so a slow server shows up as latency and
+// not as a lower send rate) and records each message it receives. Reports throughput
+// and latency percentiles:
+//   e2e    send to receive, from a System.nanoTime() carried in the content (same JVM)
+//   relay  server to receive, from Message.getTimestamp(), which the server stamps on relay
+//   LoadGenerator [users] [messagesPerSecondPerUser] [seconds] [rooms] [blocking|virtual|nio]
+// With rooms = 0 everyone talks in the lobby (fan-out of users - 1 per message), otherwise
+// users are spread over that many rooms. History is turned off so replayed messages
+// don't count as latency; pass -D_HISTORY_ENABLED=true to load the log as well.
+public class LoadGenerator {
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final String FILLER = "lorem ipsum dolor sit amet, consectetur";
+
+    private static final LatencyHistogram e2e = new LatencyHistogram();
+    private static final LatencyHistogram relay = new LatencyHistogram();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static volatile long measureFrom = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int rooms = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        String mode = args.length > 4 ? args[4] : "virtual";
+
+        String host = System.getProperty("_SERVER_IP", "127.0.0.1");
+        int port = Integer.parseInt(System.getProperty("_PORT", "9401"));
+        System.setProperty("_SERVER_IP", host);
+        System.setProperty("_PORT", String.valueOf(port));
+        if (System.getProperty("_HISTORY_ENABLED") == null) {
+            System.setProperty("_HISTORY_ENABLED", "false");
+        }
+        // Logins would otherwise fill the console
+        if (System.getProperty("_LOG_LEVEL") == null) {
+            System.setProperty("_LOG_LEVEL", "warn");
+        }
+        liftRateLimits();
+
+        Thread server = new Thread(() -> ChatServer.main(new String[]{mode}), "server-main");
+        server.setDaemon(true);
+        server.start();
+        waitForPort(host, port);
+
+        List<ChatClient> clients = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            ChatClient client = new ChatClient(Runnable::run);
+            if (!client.connect(host, port, "load" + i, 0, LoadGenerator::receive)) {
+                throw new IllegalStateException("user " + i + " could not connect");
+            }
+            if (rooms > 0) {
+                client.joinRoom(roomOf(i, rooms));
+            }
+            clients.add(client);
+        }
+
+        // Spread the first sends over one period so users don't all fire together
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        long period = (long) (1e9 / rate);
+        for (int i = 0; i < users; i++) {
+            ChatClient client = clients.get(i);
+            String room = rooms > 0 ? roomOf(i, rooms) : null;
+            senders.scheduleAtFixedRate(() -> {
+                client.sendText(room, System.nanoTime() + " " + FILLER);
+                sent.increment();
+            }, period * i / users, period, TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(WARMUP_NANOS / 1_000_000);
+        long sentBefore = sent.sum();
+        measureFrom = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long elapsed = System.nanoTime() - measureFrom;
+        long sentDuring = sent.sum() - sentBefore;
+        long receivedDuring = received.sum();
+        senders.shutdownNow();
+
+        int fanout = (rooms > 0 ? (users + rooms - 1) / rooms : users) - 1;
+        System.out.printf("%n%d users, %s mode, %s, %.1f msg/s each, %d s%n", users, mode,
+                rooms > 0 ? rooms + " rooms" : "lobby", rate, seconds);
+        System.out.printf("sent      %,12.0f msg/s%n", sentDuring * 1e9 / elapsed);
+        System.out.printf("delivered %,12.0f msg/s  (%.1f%% of sent x %d recipients)%n",
+                receivedDuring * 1e9 / elapsed, 100.0 * receivedDuring / Math.max(1, sentDuring * fanout), fanout);
+        report("e2e", e2e);
+        report("relay", relay);
+
+        for (ChatClient client : clients) {
+            client.disconnect();
+        }
+        ChatServer.shutdown();
+        System.exit(0);
+    }
+
+    private static void receive(List<Message> batch) {
+        long now = System.nanoTime();
+        if (now < measureFrom) {
+            return;
+        }
+        long wallClock = System.currentTimeMillis();
+        for (Message message : batch) {
+            if (message.getType() != Message.Type.TEXT) {
+                continue;
+            }
+            String content = message.getContent();
+            int space = content.indexOf(' ');
+            long sentAt = Long.parseLong(space < 0 ? content : content.substring(0, space));
+            if (sentAt < measureFrom) {
+                continue; // sent during the warm-up
+            }
+            e2e.record((now - sentAt) / 1000);
+            relay.record((wallClock - message.getTimestamp()) * 1000);
+            received.increment();
+        }
+    }
+
+    private static void report(String name, LatencyHistogram histogram) {
+        System.out.printf("%-9s p50 %,9d us  p99 %,9d us  p999 %,9d us  max %,9d us%n", name,
+                histogram.percentile(50), histogram.percentile(99), histogram.percentile(99.9), histogram.max());
+    }
+
+    private static String roomOf(int user, int rooms) {
+        return "load" + (user % rooms);
+    }
+
+    // Every simulated user connects from this one address, far over the flood limits, so they
+    // are lifted unless set explicitly
+    static final List<String> RATE_LIMITS = List.of("_RATE_MESSAGES_PER_SECOND",
+            "_RATE_ADDRESS_MESSAGES_PER_SECOND", "_RATE_CONNECTIONS_PER_SECOND");
+
+    static void liftRateLimits() {
+        for (String key : RATE_LIMITS) {
+            if (System.getProperty(key) == null) {
+                System.setProperty(key, "0");
+            }
+        }
+    }
+
+    // Until the server, started in another process, takes connections
+    static void waitForPort(String host, int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on " + host + ":" + port);
+    }
+}
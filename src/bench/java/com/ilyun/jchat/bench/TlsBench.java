@@ -0,0 +1,207 @@
+package com.ilyun.jchat.bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.*;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import com.ilyun.jchat.Tls;
+import com.ilyun.jchat.client.ChatClient;
+
+// TLS on versus off, against two server JVMs on localhost started side by side, one plain and
+// one with TLS on a throwaway self-signed EC certificate:
+//   TlsBench [blocking|virtual|nio] [handshakes] [users] [seconds]
+// Handshake rate: connections opened one after another up to the protocol hello, plain, TLS
+// with a full handshake each time, and TLS resuming the first session. Steady state: one user
+// sends into the lobby as fast as the others take it in, and the bench reports messages
+// delivered, bytes and the server's CPU time per delivered message.
+public class TlsBench {
+    private static final String HOST = "127.0.0.1";
+    private static final String PASSWORD = "changeit";
+    private static final int WINDOW = 1000;
+    private static final String FILLER = "x".repeat(200);
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "nio";
+        int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int users = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int basePort = Integer.parseInt(System.getProperty("_PORT", "9431"));
+
+        Path dir = Files.createTempDirectory("jchat-tls");
+        Path keyStore = dir.resolve("server.p12");
+        Path trustStore = dir.resolve("trust.p12");
+        Path cert = dir.resolve("server.crt");
+        keytool("-genkeypair", "-alias", "jchat", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:" + HOST, "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", PASSWORD);
+        keytool("-exportcert", "-alias", "jchat", "-keystore", keyStore.toString(), "-storepass", PASSWORD,
+                "-file", cert.toString());
+        keytool("-importcert", "-noprompt", "-alias", "jchat", "-file", cert.toString(),
+                "-storetype", "PKCS12", "-keystore", trustStore.toString(), "-storepass", PASSWORD);
+
+        LoadGenerator.liftRateLimits();
+        List<Process> servers = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servers.forEach(Process::destroy)));
+        Process plainServer = server(mode, basePort, null);
+        Process tlsServer = server(mode, basePort + 1, keyStore);
+        servers.add(plainServer);
+        servers.add(tlsServer);
+        LoadGenerator.waitForPort(HOST, basePort);
+        LoadGenerator.waitForPort(HOST, basePort + 1);
+
+        System.out.printf("%n%s mode, %d handshakes, %d users, %d s%n", mode, handshakes, users, seconds);
+        Tls.context(null, null, trustStore.toString(), PASSWORD); // loads the providers before timing
+        handshakes("plain", handshakes, basePort, null);
+        // A context of its own for each connection, so none can resume
+        SSLContext[] fresh = new SSLContext[handshakes];
+        for (int i = 0; i < fresh.length; i++) {
+            fresh[i] = Tls.context(null, null, trustStore.toString(), PASSWORD);
+        }
+        handshakes("tls full", handshakes, basePort + 1, i -> fresh[i]);
+        SSLContext shared = Tls.context(null, null, trustStore.toString(), PASSWORD);
+        handshakes("tls resumed", handshakes, basePort + 1, i -> shared);
+
+        throughput("plain", basePort, users, seconds, null, plainServer);
+        throughput("tls", basePort + 1, users, seconds, Tls.context(null, null, trustStore.toString(), PASSWORD),
+                tlsServer);
+        System.exit(0);
+    }
+
+    private static Process server(String mode, int port, Path keyStore) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path")));
+        for (String key : LoadGenerator.RATE_LIMITS) {
+            command.add("-D" + key + "=" + System.getProperty(key));
+        }
+        command.addAll(List.of("-D_SERVER_IP=" + HOST, "-D_PORT=" + port, "-D_HISTORY_ENABLED=false",
+                "-D_METRICS_PORT=0", "-D_LOG_LEVEL=" + System.getProperty("_LOG_LEVEL", "warn")));
+        if (keyStore != null) {
+            command.addAll(List.of("-D_TLS=true", "-D_TLS_KEYSTORE=" + keyStore, "-D_TLS_KEYSTORE_PASSWORD=" + PASSWORD));
+        }
+        command.addAll(List.of("com.ilyun.jchat.server.ChatServer", mode));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    // Connect, agree on the protocol version, close: the TCP and TLS handshakes and the hello
+    private static void handshakes(String name, int count, int port, java.util.function.IntFunction<SSLContext> tls)
+            throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // The first few warm up both sides and are not counted
+        int warmup = Math.min(100, count);
+        long started = 0;
+        for (int i = -warmup; i < count; i++) {
+            if (i == 0) {
+                started = System.nanoTime();
+            }
+            long start = System.nanoTime();
+            SSLContext context = tls != null ? tls.apply(Math.max(0, i)) : null;
+            try (Socket socket = context != null ? context.getSocketFactory().createSocket(HOST, port)
+                    : new Socket(HOST, port)) {
+                socket.setTcpNoDelay(true);
+                if (socket instanceof SSLSocket secure) {
+                    secure.setSSLParameters(Tls.parameters(context, Tls.CIPHER_SUITES, true));
+                }
+                socket.getOutputStream().write(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, 0));
+                MessageCodec.readHello(new DataInputStream(socket.getInputStream()));
+            }
+            if (i >= 0) {
+                histogram.record((System.nanoTime() - start) / 1000);
+            }
+        }
+        double elapsed = (System.nanoTime() - started) / 1e9;
+        System.out.printf("handshake  %-12s %,8.0f /s   p50 %,7d us  p99 %,7d us%n", name, count / elapsed,
+                histogram.percentile(50), histogram.percentile(99));
+    }
+
+    // User 0 sends, never more than WINDOW ahead of the slowest reader, the rest count
+    private static void throughput(String name, int port, int users, int seconds, SSLContext tls, Process server)
+            throws Exception {
+        LongAdder[] received = new LongAdder[users];
+        List<ChatClient> clients = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            LongAdder count = received[i] = new LongAdder();
+            ChatClient client = new ChatClient(Runnable::run);
+            if (tls != null) {
+                client.useTls(tls);
+            }
+            if (!client.connect(HOST, port, name + "-" + i, System.currentTimeMillis(), batch -> {
+                for (Message message : batch) {
+                    if (message.getType() == Message.Type.TEXT) {
+                        count.increment();
+                    }
+                }
+            })) {
+                throw new IllegalStateException(name + "-" + i + " could not connect");
+            }
+            clients.add(client);
+        }
+        Thread.sleep(500);
+
+        ChatClient sender = clients.get(0);
+        long sent = 0;
+        long measureFrom = System.nanoTime() + 2_000_000_000L; // after a warm-up
+        long measureTo = measureFrom + seconds * 1_000_000_000L;
+        long deliveredBefore = 0;
+        Duration cpuBefore = Duration.ZERO;
+        boolean measuring = false;
+        while (System.nanoTime() < measureTo) {
+            if (!measuring && System.nanoTime() >= measureFrom) {
+                measuring = true;
+                deliveredBefore = delivered(received);
+                cpuBefore = cpu(server);
+            }
+            if (sent - slowest(received) < WINDOW) {
+                sender.sendText(null, FILLER);
+                sent++;
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+        long delivered = delivered(received) - deliveredBefore;
+        Duration cpu = cpu(server).minus(cpuBefore);
+        int frameBytes = MessageCodec.encode(new Message(Message.Type.TEXT, name + "-0", FILLER)).length;
+        System.out.printf("throughput %-12s %,8.0f msg/s delivered  %,6.1f MB/s  server cpu %,5.2f us/msg%n",
+                name, delivered / (double) seconds, delivered * (double) frameBytes / seconds / (1 << 20),
+                cpu.toNanos() / 1000.0 / Math.max(1, delivered));
+        for (ChatClient client : clients) {
+            client.disconnect();
+        }
+    }
+
+    private static long delivered(LongAdder[] received) {
+        long total = 0;
+        for (int i = 1; i < received.length; i++) {
+            total += received[i].sum();
+        }
+        return total;
+    }
+
+    private static long slowest(LongAdder[] received) {
+        long slowest = Long.MAX_VALUE;
+        for (int i = 1; i < received.length; i++) {
+            slowest = Math.min(slowest, received[i].sum());
+        }
+        return slowest;
+    }
+
+    private static Duration cpu(Process process) {
+        return process.info().totalCpuDuration().orElse(Duration.ZERO);
+    }
+
+    private static void keytool(String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "keytool").toString());
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed: " + output);
+        }
+    }
+}
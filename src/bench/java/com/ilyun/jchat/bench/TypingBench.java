@@ -0,0 +1,232 @@
+package com.ilyun.jchat.bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import com.ilyun.jchat.client.ChatClient;
+
+// What typing indicators cost with everyone typing at once, against a server JVM on
+// localhost: TypingBench [blocking|virtual|nio] [typists] [seconds per phase]
+// The typists are bare connections in the lobby that read and discard everything. Two
+// ChatClients time lobby messages between them meanwhile. Phases: nobody typing, everyone
+// typing as ChatClient reports it (once every 3s), and everyone sending an event on every
+// keystroke (5 a second), as a client without throttling would. Per phase: typing events
+// the server took in, what went out to each typist, the server's CPU and chat latency.
+// naive is what each would get with every event passed on to the whole lobby as it came.
+public class TypingBench {
+    private static final String HOST = "127.0.0.1";
+    private static final int CHAT_RATE = 50;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "nio";
+        int typists = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int port = Integer.parseInt(System.getProperty("_PORT", "9442"));
+        int metricsPort = port + 1;
+
+        LoadGenerator.liftRateLimits();
+        Process server = server(mode, port, metricsPort);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroy));
+        try {
+            LoadGenerator.waitForPort(HOST, port);
+            Typists crowd = new Typists(port, typists);
+            AtomicReference<LatencyHistogram> phase = new AtomicReference<>();
+            ChatClient sender = client(port, "probe-sender", batch -> {
+            });
+            client(port, "probe-receiver", batch -> {
+                long now = System.nanoTime();
+                LatencyHistogram histogram = phase.get();
+                for (Message message : batch) {
+                    if (histogram != null && message.getType() == Message.Type.TEXT) {
+                        histogram.record((now - Long.parseLong(message.getContent())) / 1000);
+                    }
+                }
+            });
+            Thread probe = Thread.ofPlatform().daemon().start(() -> {
+                try {
+                    while (true) {
+                        sender.sendText(null, Long.toString(System.nanoTime()));
+                        Thread.sleep(1000 / CHAT_RATE);
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            });
+            Thread.sleep(3000); // logins and their presence fan-out settle
+
+            System.out.printf("%n%s mode, %d typists in the lobby, %d chat messages/s%n", mode, typists, CHAT_RATE);
+            System.out.printf("%-16s %9s %10s %12s %12s %12s %8s %9s %9s%n", "phase", "events/s", "updates/s",
+                    "frames/s/user", "naive/s/user", "bytes/s/user", "cpu", "chat_p50", "chat_p99");
+            for (int everyMillis : new int[]{0, 3000, 200}) {
+                String name = everyMillis == 0 ? "nobody typing" : everyMillis == 3000 ? "throttled" : "every keystroke";
+                LatencyHistogram latency = new LatencyHistogram();
+                crowd.typeEvery(everyMillis);
+                Thread.sleep(1000); // into the new steady state
+                Map<String, Double> before = scrape(metricsPort);
+                long bytes = crowd.received.sum();
+                Duration cpu = server.info().totalCpuDuration().orElse(Duration.ZERO);
+                long start = System.nanoTime();
+                phase.set(latency);
+                Thread.sleep(seconds * 1000L);
+                phase.set(null);
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                Map<String, Double> after = scrape(metricsPort);
+                double cpuShare = (server.info().totalCpuDuration().orElse(Duration.ZERO).minus(cpu).toNanos() / 1e9) / elapsed;
+                double events = delta(before, after, "jchat_typing_events_total") / elapsed;
+                double frames = delta(before, after, "jchat_messages_sent_total") / elapsed / (typists + 2);
+                System.out.printf("%-16s %9.0f %10.1f %12.2f %12.2f %12.0f %7.0f%% %7dus %7dus%n", name, events,
+                        delta(before, after, "jchat_typing_updates_total") / elapsed, frames, frames + events,
+                        (crowd.received.sum() - bytes) / elapsed / typists,
+                        cpuShare * 100, latency.percentile(50), latency.percentile(99));
+            }
+            crowd.typeEvery(0);
+            probe.interrupt();
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+        System.exit(0);
+    }
+
+    // The bare connections: one thread reads them all, another sends their typing events
+    private static final class Typists {
+        final LongAdder received = new LongAdder();
+        private final List<SocketChannel> channels = new ArrayList<>();
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Selector selector = Selector.open();
+        private volatile int everyMillis;
+
+        Typists(int port, int count) throws IOException {
+            Thread.ofPlatform().daemon().name("typists-reader").start(this::read);
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, port));
+                writeFully(channel, ByteBuffer.wrap(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, 0)));
+                writeFully(channel, ByteBuffer.wrap(MessageCodec.encode(new Message(Message.Type.CONNECT, "typist" + i, ""))));
+                channel.configureBlocking(false);
+                channels.add(channel);
+                pending.add(channel);
+                selector.wakeup();
+            }
+            Thread.ofPlatform().daemon().name("typists-writer").start(this::type);
+        }
+
+        // 0 for not typing
+        void typeEvery(int millis) {
+            everyMillis = millis;
+        }
+
+        // Spread over the period, so events come at a steady rate rather than all at once
+        private void type() {
+            byte[][] frames = new byte[channels.size()][];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = MessageCodec.encode(new Message(Message.Type.TYPING, "typist" + i, ""));
+            }
+            long next = System.nanoTime();
+            for (int i = 0; ; i = (i + 1) % channels.size()) {
+                int every = everyMillis;
+                if (every == 0) {
+                    sleepNanos(10_000_000);
+                    next = System.nanoTime();
+                    continue;
+                }
+                try {
+                    channels.get(i).write(ByteBuffer.wrap(frames[i]));
+                } catch (IOException e) {
+                    return;
+                }
+                next += every * 1_000_000L / channels.size();
+                sleepNanos(next - System.nanoTime());
+            }
+        }
+
+        private void read() {
+            ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+            while (true) {
+                try {
+                    selector.select(100);
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        sink.clear();
+                        int read = ((SocketChannel) key.channel()).read(sink);
+                        if (read < 0) {
+                            key.cancel();
+                        } else {
+                            received.add(read);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                } catch (IOException | ClosedSelectorException | CancelledKeyException e) {
+                    return;
+                }
+            }
+        }
+
+        private static void writeFully(SocketChannel channel, ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        private static void sleepNanos(long nanos) {
+            if (nanos > 0) {
+                try {
+                    Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static ChatClient client(int port, String name, java.util.function.Consumer<List<Message>> handler) {
+        ChatClient client = new ChatClient(Runnable::run);
+        if (!client.connect(HOST, port, name, System.currentTimeMillis(), handler)) {
+            throw new IllegalStateException(name + " could not connect");
+        }
+        return client;
+    }
+
+    // The server's counters, unlabelled ones only
+    private static Map<String, Double> scrape(int metricsPort) throws IOException {
+        Map<String, Double> values = new HashMap<>();
+        URL url = URI.create("http://" + HOST + ":" + metricsPort + "/metrics").toURL();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (!line.startsWith("#") && parts.length == 2 && !parts[0].contains("{")) {
+                    values.put(parts[0], Double.parseDouble(parts[1]));
+                }
+            }
+        }
+        return values;
+    }
+
+    private static double delta(Map<String, Double> before, Map<String, Double> after, String name) {
+        return after.getOrDefault(name, 0.0) - before.getOrDefault(name, 0.0);
+    }
+
+    private static Process server(String mode, int port, int metricsPort) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path")));
+        for (String key : LoadGenerator.RATE_LIMITS) {
+            command.add("-D" + key + "=" + System.getProperty(key));
+        }
+        command.addAll(List.of("-D_SERVER_IP=" + HOST, "-D_PORT=" + port, "-D_HISTORY_ENABLED=false",
+                "-D_FILE_ENABLED=false", "-D_METRICS_PORT=" + metricsPort,
+                "-D_LOG_LEVEL=" + System.getProperty("_LOG_LEVEL", "warn"),
+                "com.ilyun.jchat.server.ChatServer", mode));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+}
@@ -0,0 +1,82 @@
+package com.ilyun.jchat.client;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import com.ilyun.jchat.Message;
+
+// The client's on-disk message cache for one busy room. Appends messages until well past
+// its size limit, then opens it again the way a client starts: the time to the newest page
+// of scrollback (scanning the segments to rebuild their index included), and the time to
+// page further back through it.
+//   MessageCacheBench [messages] [limit MB]
+public class MessageCacheBench {
+    private static final int PAGE = 100;
+    private static final int PAGE_READS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        long maxBytes = (args.length > 1 ? Long.parseLong(args[1]) : 8) << 20;
+        Path dir = Files.createTempDirectory("jchat-cache");
+        try {
+            run(dir, count, maxBytes);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(Path dir, int count, long maxBytes) throws IOException {
+        Random random = new Random(1);
+        long start = 1_700_000_000_000L;
+        MessageCache cache = new MessageCache(dir, "localhost", 9000, "bench", 1 << 20, maxBytes);
+        long began = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(Message.Type.TEXT, "user" + random.nextInt(50),
+                    "message number " + i + " with a few more words to make it look like chat".substring(0, random.nextInt(40)),
+                    start + i * 10L);
+            cache.append(message);
+        }
+        double appendNanos = (System.nanoTime() - began) / (double) count;
+        cache.close();
+
+        long bytes;
+        int segments;
+        try (Stream<Path> files = Files.walk(dir)) {
+            List<Path> logs = files.filter(path -> path.toString().endsWith(".log")).toList();
+            segments = logs.size();
+            bytes = 0;
+            for (Path log : logs) {
+                bytes += Files.size(log);
+            }
+        }
+
+        // A client starting: open, find where to ask the server from, show the newest page
+        began = System.nanoTime();
+        MessageCache reopened = new MessageCache(dir, "localhost", 9000, "bench", 1 << 20, maxBytes);
+        long newest = reopened.lastTimestamp(null);
+        List<Message> firstPage = reopened.before(null, Long.MAX_VALUE, PAGE);
+        double startupMillis = (System.nanoTime() - began) / 1e6;
+        long oldest = reopened.before(null, Long.MAX_VALUE, Integer.MAX_VALUE).get(0).getTimestamp();
+        long kept = (newest - oldest) / 10 + 1;
+
+        long[] pageNanos = new long[PAGE_READS];
+        for (int i = 0; i < PAGE_READS; i++) {
+            long before = oldest + (long) (random.nextDouble() * (newest - oldest));
+            long t = System.nanoTime();
+            reopened.before(null, before, PAGE);
+            pageNanos[i] = System.nanoTime() - t;
+        }
+        Arrays.sort(pageNanos);
+        reopened.close();
+
+        System.out.printf("%n%,d messages appended, %.2f us each, %d MB limit%n", count, appendNanos / 1000, maxBytes >> 20);
+        System.out.printf("on disk: %d segments, %.1f MB, newest %,d messages kept (%s)%n", segments, bytes / 1048576.0,
+                kept, firstPage.get(firstPage.size() - 1).getTimestamp() == newest ? "newest page ok" : "NEWEST PAGE WRONG");
+        System.out.printf("startup to the newest %d: %.1f ms%n", PAGE, startupMillis);
+        System.out.printf("page of %d further back: p50 %.1f us, p99 %.1f us%n", PAGE,
+                pageNanos[PAGE_READS / 2] / 1000.0, pageNanos[PAGE_READS * 99 / 100] / 1000.0);
+    }
+}
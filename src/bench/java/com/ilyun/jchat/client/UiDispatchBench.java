@@ -0,0 +1,146 @@
+package com.ilyun.jchat.client;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.stage.Stage;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// A fake server floods one client with TEXT messages, which land in a Transcript on
+// a showing stage. Reports the time until the last one has been laid out, the longest
+// gap between two pulses while it ran (how long the UI stayed frozen) and peak heap.
+//   UiDispatchBench <coalesced|runlater> [messages]
+// coalesced is ChatClient as it is, runlater the old one Platform.runLater per message.
+// Without a display it runs on Monocle's headless platform.
+public class UiDispatchBench {
+    private static Transcript transcript;
+    private static Scene scene;
+    private static int applied;
+    private static long lastPulse;
+    private static long longestGap;
+    private static final CountDownLatch rendered = new CountDownLatch(1);
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "coalesced";
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        if (System.getenv("DISPLAY") == null && System.getProperty("glass.platform") == null) {
+            System.setProperty("glass.platform", "Monocle");
+            System.setProperty("monocle.platform", "Headless");
+            System.setProperty("prism.order", "sw");
+        }
+        CountDownLatch started = new CountDownLatch(1);
+        Platform.startup(() -> {
+            transcript = new Transcript();
+            scene = new Scene(transcript, 800, 600);
+            Stage stage = new Stage();
+            stage.setScene(scene);
+            stage.show();
+            started.countDown();
+        });
+        started.await();
+
+        ServerSocket server = new ServerSocket(0);
+        Thread flood = new Thread(() -> flood(server, messages), "fake-server");
+        flood.setDaemon(true);
+        flood.start();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        CountDownLatch watching = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            lastPulse = System.nanoTime();
+            // After layout, right before the frame is drawn
+            scene.addPostLayoutPulseListener(() -> {
+                long now = System.nanoTime();
+                longestGap = Math.max(longestGap, now - lastPulse);
+                lastPulse = now;
+                if (applied == messages) {
+                    rendered.countDown();
+                }
+            });
+            watching.countDown();
+        });
+        watching.await();
+
+        if (mode.equals("runlater")) {
+            runLaterClient(server.getLocalPort());
+        } else {
+            new ChatClient().connect("127.0.0.1", server.getLocalPort(), "bench", 0, batch -> {
+                List<Transcript.Line> lines = new ArrayList<>(batch.size());
+                for (Message message : batch) {
+                    lines.add(new Transcript.Line(message.getTimestamp(), message.getSender(), message.getContent()));
+                }
+                transcript.addAll(lines);
+                applied += batch.size();
+            });
+        }
+        rendered.await();
+        long elapsed = System.nanoTime() - start;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf("%n%-10s %,d messages rendered in %.0f ms (%,.0f/s), longest pulse gap %.0f ms, peak heap %.0f MB%n",
+                mode, messages, elapsed / 1e6, messages * 1e9 / elapsed, longestGap / 1e6, peakHeap / 1e6);
+        Platform.exit();
+        System.exit(0);
+    }
+
+    // Handshake, wait for CONNECT, then write every message as fast as the socket takes them
+    private static void flood(ServerSocket server, int messages) {
+        try (Socket socket = server.accept()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            MessageCodec.readHello(in);
+            out.write(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, 0));
+            out.flush();
+            MessageCodec.readFrame(in);
+            for (int i = 0; i < messages; i++) {
+                MessageCodec.writeFrame(out, new Message(Message.Type.TEXT, "user" + (i % 50),
+                        "message number " + i + " of the flood", System.currentTimeMillis()));
+            }
+            out.flush();
+            in.read(); // hold the connection until the client goes away
+        } catch (IOException e) {
+            System.err.println("Fake server: " + e.getMessage());
+        }
+    }
+
+    // What ChatClient used to do: read a frame, post one task for it
+    private static void runLaterClient(int port) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        out.write(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, 0));
+        MessageCodec.readHello(in);
+        MessageCodec.writeFrame(out, new Message(Message.Type.CONNECT, "bench", ""));
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Message message = MessageCodec.readFrame(in);
+                    Platform.runLater(() -> {
+                        transcript.addMessage(message.getSender(), message.getContent(), message.getTimestamp());
+                        applied++;
+                    });
+                }
+            } catch (IOException e) {
+                // done
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+    }
+}
@@ -0,0 +1,48 @@
+package com.ilyun.jchat.server;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import com.ilyun.jchat.Message;
+
+// One lobby broadcast (encode once, hand the frame to every connection) against the
+// number of users online. The connections are in-memory sinks, see FanoutBench.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    public int users;
+
+    private final List<FanoutBench.SinkConnection> connections = new ArrayList<>();
+    private Message message;
+
+    @Setup
+    public void setup() {
+        // Only warnings from the server log; the port is never bound but the config needs one
+        System.setProperty("_LOG_LEVEL", "warn");
+        System.setProperty("_PORT", System.getProperty("_PORT", "0"));
+        for (int i = 0; i < users; i++) {
+            FanoutBench.SinkConnection connection = new FanoutBench.SinkConnection("user" + i);
+            ChatServer.addClient(connection.getUsername(), connection, 0, "");
+            connections.add(connection);
+        }
+        message = new Message(Message.Type.TEXT, "alice", "hey, are we still on for lunch today?");
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (FanoutBench.SinkConnection connection : connections) {
+            ChatServer.removeClient(connection.getUsername(), connection);
+        }
+        connections.clear();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        ChatServer.broadcast(message, "alice");
+    }
+}
@@ -0,0 +1,47 @@
+package com.ilyun.jchat.server;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A user logging in and straight out again while others are online: the clients map
+// update plus the USER_LIST snapshot and the two presence broadcasts that go with it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientChurnBenchmark {
+    @Param({"0", "100", "1000"})
+    public int online;
+
+    private final List<FanoutBench.SinkConnection> connections = new ArrayList<>();
+    private final FanoutBench.SinkConnection churner = new FanoutBench.SinkConnection("churner");
+
+    @Setup
+    public void setup() {
+        // Only warnings from the server log; the port is never bound but the config needs one
+        System.setProperty("_LOG_LEVEL", "warn");
+        System.setProperty("_PORT", System.getProperty("_PORT", "0"));
+        for (int i = 0; i < online; i++) {
+            FanoutBench.SinkConnection connection = new FanoutBench.SinkConnection("user" + i);
+            ChatServer.addClient(connection.getUsername(), connection, 0, "");
+            connections.add(connection);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (FanoutBench.SinkConnection connection : connections) {
+            ChatServer.removeClient(connection.getUsername(), connection);
+        }
+        connections.clear();
+    }
+
+    @Benchmark
+    public void connectAndLeave() {
+        ChatServer.addClient(churner.getUsername(), churner, 0, "");
+        ChatServer.removeClient(churner.getUsername(), churner);
+    }
+}
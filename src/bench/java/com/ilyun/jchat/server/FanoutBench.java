@@ -0,0 +1,123 @@
+package com.ilyun.jchat.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// Broadcast fan-out throughput against room size, using in-memory connections that
+// consume each frame like a socket write would. Compares encoding once per broadcast
+// (ChatServer.broadcast) with encoding again for every recipient (the old behaviour).
+//   FanoutBench [roomSize...]
+public class FanoutBench {
+    private static final long RUN_NANOS = 2_000_000_000L;
+
+    public static void main(String[] args) {
+        int[] roomSizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{10, 100, 1_000, 10_000};
+        Message message = new Message(Message.Type.TEXT, "alice", "hey, are we still on for lunch today?");
+        // Only warnings from the server log; the port is never bound but the config needs one
+        System.setProperty("_LOG_LEVEL", "warn");
+        System.setProperty("_PORT", System.getProperty("_PORT", "0"));
+
+        System.out.printf("%n%9s %16s %16s %18s%n", "room_size", "encode_once/s", "per_recipient/s", "deliveries/s(once)");
+        List<SinkConnection> room = new ArrayList<>();
+        for (int size : roomSizes) {
+            while (room.size() < size) {
+                SinkConnection connection = new SinkConnection("user" + room.size());
+                ChatServer.addClient(connection.getUsername(), connection, 0, "");
+                room.add(connection);
+            }
+
+            double once = rate(() -> ChatServer.broadcast(message, "alice"));
+            double perRecipient = rate(() -> {
+                for (SinkConnection connection : room) {
+                    connection.sendMessage(message);
+                }
+            });
+            System.out.printf("%9d %16.0f %16.0f %18.0f%n", size, once, perRecipient, once * size);
+        }
+    }
+
+    // Broadcasts per second, after a warm-up run
+    private static double rate(Runnable broadcast) {
+        for (int pass = 0; ; pass++) {
+            long start = System.nanoTime();
+            long count = 0;
+            while (System.nanoTime() - start < RUN_NANOS) {
+                broadcast.run();
+                count++;
+            }
+            if (pass == 1) {
+                return count * 1e9 / (System.nanoTime() - start);
+            }
+        }
+    }
+
+    static class SinkConnection implements ClientConnection {
+        private final String username;
+        private Session session;
+        long bytes;
+
+        SinkConnection(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public InetAddress getAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            sendFrame(ByteBuffer.wrap(MessageCodec.encode(message)));
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame, ByteBuffer compressed, OutboundQueue.Lane lane) {
+            ByteBuffer bytes = frame.duplicate();
+            this.bytes += bytes.remaining();
+            bytes.position(bytes.limit());
+        }
+
+        @Override
+        public int queueDepth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public int getVersion() {
+            return MessageCodec.PROTOCOL_VERSION;
+        }
+
+        @Override
+        public Session getSession() {
+            return session;
+        }
+
+        @Override
+        public void attach(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void hold() {
+        }
+
+        @Override
+        public boolean handOver(ClientConnection successor, long received) {
+            return false;
+        }
+    }
+}
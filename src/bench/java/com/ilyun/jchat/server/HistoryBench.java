@@ -0,0 +1,85 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// History log ingest and replay. Several threads append as fast as they can (like
+// handlers broadcasting), then the log is closed, reopened (recovery scan) and replayed.
+// Messages the writer couldn't keep up with are reported as dropped.
+//   HistoryBench [messages] [threads] [queueSize] [dir]
+public class HistoryBench {
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int queueSize = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+        Path dir = args.length > 3 ? Path.of(args[3]) : Files.createTempDirectory("history-bench");
+        int segmentBytes = 64 << 20;
+
+        ByteBuffer frame = MessageCodec.encodeShared(
+                new Message(Message.Type.TEXT, "alice", "hey, are we still on for lunch today?"));
+        HistoryLog log = new HistoryLog(dir, segmentBytes, Long.MAX_VALUE, Long.MAX_VALUE, queueSize, false);
+
+        long start = System.nanoTime();
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < messages / threads; i++) {
+                    log.append(frame);
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        long offered = System.nanoTime() - start;
+        log.close(60_000);
+        long committed = System.nanoTime() - start;
+
+        long appended = HistoryLog.appended.sum();
+        System.out.printf("%nappend:  %,d messages from %d threads, %,d logged, %,d dropped%n",
+                messages, threads, appended, HistoryLog.dropped.sum());
+        System.out.printf("         %,.0f offered/s, %,.0f logged/s, %d commits (%.0f messages per fsync), %.1f MB on disk%n",
+                messages * 1e9 / offered, appended * 1e9 / committed, HistoryLog.commits.sum(),
+                (double) appended / Math.max(1, HistoryLog.commits.sum()), size(dir) / 1e6);
+
+        start = System.nanoTime();
+        HistoryLog reopened = new HistoryLog(dir, segmentBytes, Long.MAX_VALUE, Long.MAX_VALUE, queueSize, false);
+        System.out.printf("recover: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+        FanoutBench.SinkConnection sink = new FanoutBench.SinkConnection("reader");
+        for (int count : new int[]{50, 1000}) {
+            int runs = 10_000;
+            for (int i = 0; i < runs; i++) {
+                reopened.replay(sink, 0, Long.MAX_VALUE, count);
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                reopened.replay(sink, 0, Long.MAX_VALUE, count);
+            }
+            System.out.printf("replay:  last %d in %.2f us%n", count, (System.nanoTime() - start) / 1e3 / runs);
+        }
+        reopened.close(1000);
+
+        if (args.length <= 3) {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static long size(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+}
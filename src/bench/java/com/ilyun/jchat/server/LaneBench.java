@@ -0,0 +1,127 @@
+package com.ilyun.jchat.server;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// One client's outbound queue in front of a slow link, in arrival order and then with lanes.
+// A writer thread takes batches like ClientHandler's and "writes" them at the link's rate.
+// History pages are kept queued a megabyte deep, as for a client paging back through a big
+// history, while chat messages and presence changes come at a steady rate carrying the
+// time they were queued. Reports how long those waited and how fast the history went.
+//   LaneBench [seconds] [link MB/s] [chat messages per second]
+public class LaneBench {
+    private static final int PAGE_MESSAGES = 50;
+    private static final long BULK_BACKLOG_BYTES = 1 << 20;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int BATCH_FRAMES = 64;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        long linkBytesPerSecond = (args.length > 1 ? Long.parseLong(args[1]) : 10) << 20;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        ByteBuffer page = ByteBuffer.allocate(PAGE_MESSAGES * 128);
+        for (int i = 0; i < PAGE_MESSAGES; i++) {
+            page.put(MessageCodec.encode(new Message(Message.Type.TEXT, "alice",
+                    "an older message from the history, replayed " + i, i)));
+        }
+        page.flip();
+
+        System.out.printf("%n%d MB/s link, %d chat messages/s, %d byte history pages%n",
+                linkBytesPerSecond >> 20, rate, page.remaining());
+        System.out.printf("%-12s %11s %11s %11s %11s %11s%n", "lanes", "chat_p50", "chat_p99", "chat_max",
+                "presence_p99", "bulk_MB/s");
+        for (String lanes : List.of("off", "8,2,1")) {
+            run(lanes, seconds, linkBytesPerSecond, rate, page);
+        }
+    }
+
+    private static void run(String lanes, int seconds, long linkBytesPerSecond, int rate, ByteBuffer page)
+            throws Exception {
+        OutboundQueue queue = new OutboundQueue(1 << 20, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+                OutboundQueue.parseWeights(lanes));
+        List<Long> chat = Collections.synchronizedList(new ArrayList<>());
+        List<Long> presence = Collections.synchronizedList(new ArrayList<>());
+        long[] bulkBytes = new long[1];
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+        Thread writer = Thread.ofPlatform().start(() -> {
+            ByteBuffer[] batch = new ByteBuffer[BATCH_FRAMES];
+            long linkFree = System.nanoTime();
+            try {
+                while (System.nanoTime() < end) {
+                    int count = queue.takeBatch(batch, BATCH_BYTES, 0);
+                    long bytes = 0;
+                    for (int i = 0; i < count; i++) {
+                        bytes += batch[i].remaining();
+                    }
+                    // The link is busy with the batch for as long as its bytes take
+                    linkFree = Math.max(linkFree, System.nanoTime()) + bytes * 1_000_000_000L / linkBytesPerSecond;
+                    LockSupport.parkNanos(linkFree - System.nanoTime());
+                    long now = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        Message.Type type = MessageCodec.typeOf(batch[i]);
+                        if (MessageCodec.frameSize(batch[i]) < batch[i].remaining()) {
+                            bulkBytes[0] += batch[i].remaining();
+                        } else if (type == Message.Type.TEXT) {
+                            chat.add(now - Long.parseLong(decode(batch[i]).getContent()));
+                        } else if (type == Message.Type.USER_JOINED) {
+                            presence.add(now - Long.parseLong(decode(batch[i]).getContent()));
+                        }
+                        batch[i] = null;
+                    }
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread bulk = Thread.ofPlatform().daemon().start(() -> {
+            while (System.nanoTime() < end) {
+                if (queue.bytes() < BULK_BACKLOG_BYTES) {
+                    queue.offer(page.duplicate(), Message.Type.TEXT, OutboundQueue.Lane.BULK);
+                } else {
+                    LockSupport.parkNanos(100_000);
+                }
+            }
+        });
+        Thread.sleep(200); // backlog builds up
+        long interval = 1_000_000_000L / rate;
+        long next = System.nanoTime();
+        for (int i = 0; System.nanoTime() < end - 500_000_000L; i++) {
+            Message.Type type = i % 4 == 3 ? Message.Type.USER_JOINED : Message.Type.TEXT;
+            ByteBuffer frame = ByteBuffer.wrap(MessageCodec.encode(
+                    new Message(type, "bob", Long.toString(System.nanoTime()))));
+            queue.offer(frame, type, OutboundQueue.Lane.of(frame));
+            next += interval;
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+        writer.join();
+        queue.close();
+        bulk.join();
+
+        long[] chatNanos = sorted(chat);
+        System.out.printf("%-12s %9.1fms %9.1fms %9.1fms %10.1fms %11.1f%n", lanes,
+                percentile(chatNanos, 50) / 1e6, percentile(chatNanos, 99) / 1e6, percentile(chatNanos, 100) / 1e6,
+                percentile(sorted(presence), 99) / 1e6, bulkBytes[0] / (double) seconds / (1 << 20));
+    }
+
+    private static Message decode(ByteBuffer frame) throws Exception {
+        return MessageCodec.poll(frame.duplicate());
+    }
+
+    private static long[] sorted(List<Long> values) {
+        synchronized (values) {
+            return values.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percentile / 100) - 1)];
+    }
+}
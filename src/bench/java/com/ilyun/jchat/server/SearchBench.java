@@ -0,0 +1,149 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// Search index build rate and query latency. Messages of words drawn from a Zipf-like
+// vocabulary (a few words in most messages, most words in few) by a few hundred senders,
+// one millisecond apart, are appended to a history log without and with the index, then
+// the indexed log is reopened (index rebuilt from disk) and queried.
+//   SearchBench [messages] [queries]
+public class SearchBench {
+    private static final int VOCABULARY = 50_000;
+    private static final int SENDERS = 500;
+    private static final int QUEUE_SIZE = 64 * 1024;
+    private static final int SEGMENT_BYTES = 64 << 20;
+    private static final long START = 1_700_000_000_000L;
+    private static final int PAGE = 50;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Random random = new Random(42);
+        String[] words = new String[VOCABULARY];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = word(random, i);
+        }
+
+        System.out.printf("%n%,d messages, %,d words, %d senders%n", messages, VOCABULARY, SENDERS);
+        Path plain = Files.createTempDirectory("search-bench");
+        Path indexed = Files.createTempDirectory("search-bench");
+        try {
+            ingest("append, no index", plain, false, messages, words);
+            ingest("append, indexed", indexed, true, messages, words);
+
+            long heapBefore = usedHeap();
+            long start = System.nanoTime();
+            HistoryLog log = new HistoryLog(indexed, SEGMENT_BYTES, Long.MAX_VALUE, Long.MAX_VALUE, QUEUE_SIZE, true);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long heap = usedHeap() - heapBefore;
+            System.out.printf("rebuild on open    %,10.0f msg/s   %.2f s   index heap %,d MB (%.0f bytes/msg)%n",
+                    messages / seconds, seconds, heap >> 20, (double) heap / messages);
+
+            // Ranks 0-9 are in a good share of all messages, 10k+ in a handful each
+            query(log, "common word", queries, r -> words[r.nextInt(10)], 0, 0);
+            query(log, "mid word", queries, r -> words[100 + r.nextInt(900)], 0, 0);
+            query(log, "rare word", queries, r -> words[10_000 + r.nextInt(40_000)], 0, 0);
+            query(log, "two common", queries, r -> words[r.nextInt(10)] + " " + words[10 + r.nextInt(90)], 0, 0);
+            query(log, "common+rare", queries, r -> words[r.nextInt(10)] + " " + words[10_000 + r.nextInt(40_000)], 0, 0);
+            query(log, "from: + word", queries, r -> "from:user" + r.nextInt(SENDERS) + " " + words[r.nextInt(100)], 0, 0);
+            query(log, "no match", queries, r -> words[r.nextInt(10)] + " nosuchword", 0, 0);
+            // Last tenth of the time range, and a page from halfway back
+            query(log, "recent tenth", queries, r -> words[100 + r.nextInt(900)], START + messages * 9L / 10, 0);
+            query(log, "page halfway", queries, r -> words[100 + r.nextInt(900)], 0, START + messages / 2);
+            log.close(1000);
+        } finally {
+            delete(plain);
+            delete(indexed);
+        }
+    }
+
+    // One thread appends, kept from running more than half a queue ahead of the writer so
+    // nothing is dropped and the rate is the writer's
+    private static void ingest(String name, Path dir, boolean searchable, int messages, String[] words)
+            throws IOException, InterruptedException {
+        HistoryLog log = new HistoryLog(dir, SEGMENT_BYTES, Long.MAX_VALUE, Long.MAX_VALUE, QUEUE_SIZE, searchable);
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder();
+        long appendedBefore = HistoryLog.appended.sum();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            text.setLength(0);
+            int length = 4 + random.nextInt(12);
+            for (int w = 0; w < length; w++) {
+                text.append(w == 0 ? "" : " ").append(words[zipf(random)]);
+            }
+            ByteBuffer frame = MessageCodec.encodeShared(
+                    new Message(Message.Type.TEXT, "user" + random.nextInt(SENDERS), text.toString(), START + i));
+            while (i - (HistoryLog.appended.sum() - appendedBefore) > QUEUE_SIZE / 2) {
+                Thread.onSpinWait();
+            }
+            log.append(frame);
+        }
+        log.close(60_000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-18s %,10.0f msg/s   %.2f s%n", name, messages / seconds, seconds);
+    }
+
+    private static void query(HistoryLog log, String name, int queries, Function<Random, String> query,
+                              long since, long before) {
+        Random random = new Random(name.hashCode());
+        long[] nanos = new long[queries];
+        long hits = 0;
+        // Same queries twice, the first round only warms up
+        for (int round = 0; round < 2; round++) {
+            random.setSeed(name.hashCode());
+            hits = 0;
+            for (int i = 0; i < queries; i++) {
+                String text = query.apply(random);
+                long start = System.nanoTime();
+                List<Message> page = log.search(SearchIndex.query(text), since, before > 0 ? before : Long.MAX_VALUE,
+                        PAGE);
+                nanos[i] = System.nanoTime() - start;
+                hits += page.size();
+            }
+        }
+        Arrays.sort(nanos);
+        System.out.printf("query %-12s p50 %,8.1f us  p99 %,8.1f us  max %,8.1f us  %5.1f hits/page%n", name,
+                nanos[queries / 2] / 1e3, nanos[queries * 99 / 100] / 1e3, nanos[queries - 1] / 1e3,
+                (double) hits / queries);
+    }
+
+    // Rank with probability about 1/rank, from a log-uniform draw
+    private static int zipf(Random random) {
+        return (int) Math.pow(VOCABULARY, random.nextDouble()) - 1;
+    }
+
+    private static String word(Random random, int rank) {
+        StringBuilder word = new StringBuilder();
+        int length = 3 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            word.append((char) ('a' + random.nextInt(26)));
+        }
+        return word.append(rank).toString(); // unique
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,151 @@
+package com.ilyun.jchat;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional deflate of frames, for peers that both set MessageCodec.COMPRESS_FLAG in their hello.
+//
+// Compressed frame: varint(body length) COMPRESSED varint(frames) varint(inflated length) deflate
+// where the deflate stream (raw, with DICTIONARY preset) inflates to that many whole frames.
+// One compressed frame can carry a page of history or a writer's batch at once. Each is
+// compressed on its own, so it can be shared by every connection it goes to, and the preset
+// dictionary makes up for the lost context on short ones.
+public final class Compression {
+    // Body type byte of a compressed frame, outside the range of Message.Type
+    public static final int COMPRESSED = 0x80;
+
+    // Strings common in chat, the most frequent last. Part of the protocol: both ends must
+    // use the same bytes.
+    private static final byte[] DICTIONARY = ("https://www. .com .org .html .png .jpg "
+            + "error exception warning null true false return import public private static final "
+            + "class void String int new if else for while this function const let var "
+            + "because would could should about there their think really just what when where "
+            + "have with that this from your they will been were some like know good thanks "
+            + "the and you for are not but all can yes lol Server").getBytes(StandardCharsets.UTF_8);
+
+    // Deflaters hold a few hundred KB of native memory, so they are pooled, not per thread
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private Compression() {
+    }
+
+    // frames (whole frames, as many as count) as one compressed frame, or null if that is not
+    // smaller. Leaves frames' position alone.
+    public static ByteBuffer compress(ByteBuffer frames, int count) {
+        int inflatedLength = frames.remaining();
+        if (inflatedLength > MessageCodec.MAX_FRAME_SIZE) {
+            return null;
+        }
+        int header = 1 + MessageCodec.varLongSize(count) + MessageCodec.varLongSize(inflatedLength);
+        // Only worth sending if at least this much is saved
+        int limit = inflatedLength - inflatedLength / 8 - header;
+        byte[] out = new byte[Math.max(0, limit)];
+        int length;
+        Deflater deflater = deflater();
+        try {
+            deflater.setInput(frames.duplicate());
+            deflater.finish();
+            length = deflater.deflate(out);
+            if (!deflater.finished()) {
+                return null;
+            }
+        } finally {
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflaters.offer(deflater);
+        }
+
+        int body = header + length;
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.varLongSize(body) + body);
+        MessageCodec.putVarLong(frame, body);
+        frame.put((byte) COMPRESSED);
+        MessageCodec.putVarLong(frame, count);
+        MessageCodec.putVarLong(frame, inflatedLength);
+        frame.put(out, 0, length);
+        return frame.flip();
+    }
+
+    // Whether the frame at the buffer's position is compressed
+    public static boolean isCompressed(ByteBuffer frame) {
+        int position = frame.position();
+        while ((frame.get(position++) & 0x80) != 0) {
+        }
+        return (frame.get(position) & 0xFF) == COMPRESSED;
+    }
+
+    // Frames the frame at the buffer's position stands for, more than one if it is compressed
+    public static int framesIn(ByteBuffer frame) throws IOException {
+        if (!isCompressed(frame)) {
+            return 1;
+        }
+        ByteBuffer body = frame.duplicate();
+        MessageCodec.getVarLong(body); // length prefix
+        body.get();
+        return (int) MessageCodec.getVarLong(body);
+    }
+
+    // Frames in a buffer of whole frames, counting what compressed ones hold
+    public static int count(ByteBuffer frames) throws IOException {
+        ByteBuffer walk = frames.duplicate();
+        int count = 0;
+        while (walk.hasRemaining()) {
+            count += framesIn(walk);
+            walk.position(walk.position() + MessageCodec.frameSize(walk));
+        }
+        return count;
+    }
+
+    // The frames a compressed frame holds, in a buffer ready to poll them from
+    public static ByteBuffer inflate(ByteBuffer frame) throws IOException {
+        ByteBuffer body = frame.duplicate();
+        MessageCodec.getVarLong(body); // length prefix
+        body.get(); // COMPRESSED
+        long count = MessageCodec.getVarLong(body);
+        long inflatedLength = MessageCodec.getVarLong(body);
+        if (count < 1 || inflatedLength > MessageCodec.MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid compressed frame");
+        }
+        ByteBuffer frames = ByteBuffer.allocate((int) inflatedLength);
+        Inflater inflater = inflater();
+        try {
+            inflater.setInput(body);
+            while (frames.hasRemaining()) {
+                if (inflater.inflate(frames) == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new StreamCorruptedException("Truncated compressed frame");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Corrupt compressed frame: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflaters.offer(inflater);
+        }
+        return frames.flip();
+    }
+
+    private static Deflater deflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setDictionary(DICTIONARY);
+        }
+        return deflater;
+    }
+
+    private static Inflater inflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflater.setDictionary(DICTIONARY);
+        }
+        return inflater;
+    }
+}
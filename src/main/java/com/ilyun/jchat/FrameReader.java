@@ -0,0 +1,55 @@
+package com.ilyun.jchat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+// Reads the messages off one connection, opening compressed frames, whose messages are then
+// handed out one per call like any other
+public final class FrameReader {
+    private ByteBuffer inflated;
+
+    // Blocking read of the next message
+    public Message read(DataInputStream in) throws IOException {
+        if (inflated != null && inflated.hasRemaining()) {
+            return nextInflated();
+        }
+        return open(MessageCodec.readRawFrame(in));
+    }
+
+    // The next message from a buffer in read mode, or null without consuming anything if
+    // its frame has not fully arrived yet (see MessageCodec.poll)
+    public Message poll(ByteBuffer buffer) throws IOException {
+        if (inflated != null && inflated.hasRemaining()) {
+            return nextInflated();
+        }
+        int size = MessageCodec.frameSize(buffer);
+        if (size < 0 || buffer.remaining() < size) {
+            return null;
+        }
+        if (!Compression.isCompressed(buffer)) {
+            return MessageCodec.poll(buffer);
+        }
+        ByteBuffer frame = buffer.slice(buffer.position(), size);
+        buffer.position(buffer.position() + size);
+        return open(frame);
+    }
+
+    private Message open(ByteBuffer frame) throws IOException {
+        if (!Compression.isCompressed(frame)) {
+            return MessageCodec.poll(frame);
+        }
+        inflated = Compression.inflate(frame);
+        return nextInflated();
+    }
+
+    // A compressed frame holds whole frames only, one cut short is corrupt
+    private Message nextInflated() throws IOException {
+        Message message = MessageCodec.poll(inflated);
+        if (message == null) {
+            throw new StreamCorruptedException("Truncated compressed frame");
+        }
+        return message;
+    }
+}
@@ -1,23 +1,60 @@
 package com.ilyun.jchat;
 
-import java.io.Serializable;
-
-public class Message implements Serializable {
-    private static final long serialVersionUID = 1L;
-
+// Sent on the wire by MessageCodec, not Java serialization
+public class Message {
+    // Append new types at the end, the ordinal is the wire code
     public enum Type {
-        CONNECT,        // Client wants to connect with username
+        CONNECT,        // Client wants to connect with username, content "token frames" to resume a session
         DISCONNECT,     // Client disconnecting
         TEXT,           // Regular text message
         USER_LIST,      // Server sends list of online users
         USER_JOINED,    // Notify others a user joined
-        USER_LEFT       // Notify others a user left
+        USER_LEFT,      // Notify others a user left
+        JOIN_ROOM,      // Join a room, echoed to its members
+        LEAVE_ROOM,     // Leave a room, echoed to its members
+        PRIVATE,        // Direct message to one user
+        HISTORY,        // Ask for older lobby messages; the server answers with them, then this
+        PING,           // Are you still there? Answered with PONG, by either side
+        PONG,
+        SESSION,        // Server to client at login: the token to resume the session with
+        NOTICE,         // Server to client: something only this user is told, e.g. to slow down
+        SEARCH,         // Search lobby history; the server answers with the matches, then SEARCH_END
+        FILE,           // A file shared into the chat; requests and replies on a transfer connection
+        TYPING,         // The user is typing; from the server, who is
+        SEARCH_END      // Server to client: the end of a page of SEARCH matches
     }
 
     private Type type;
     private String sender;
     private String content;
     private long timestamp;
+    // Ordering number set by the server, 0 if unused. On presence messages
+    // (USER_LIST, USER_JOINED, USER_LEFT) it is the presence version. On CONNECT
+    // the client sets it to the time (epoch millis) it wants history from, on HISTORY
+    // to the time the page should end before. On SESSION it is how many frames the
+    // server has read from the client in this session. On NOTICE, if not 0, the millis
+    // until the user may send again.
+    //
+    // A SEARCH request has as content "<since> <before> <query>": the time (epoch millis)
+    // results start after, the time they end before, 0 and Long.MAX_VALUE for no limit, and
+    // the query. Each match comes back as a SEARCH with its sender, content and timestamp,
+    // newest first, then a SEARCH_END with as content the time to ask for the next page
+    // before, empty if there are no more.
+    //
+    // On the chat connection a FILE is sent like a TEXT or PRIVATE, by the server once an
+    // upload is complete, with content "<id> <name>" and the file's size as seq. See
+    // MessageCodec for what it means on a transfer connection.
+    //
+    // A client sends TYPING with the room it is typing in (null for the lobby), every few
+    // seconds while the user types. The server sends each room's members one every interval
+    // while anyone is typing there and once more after the last one stops: up to three of
+    // them as comma separated content, and how many there are in all as seq. These aren't
+    // numbered for a session resume, and may be dropped on the way.
+    private long seq;
+    // Room the message belongs to, null for the lobby everyone is in
+    private String room;
+    // Addressee of a PRIVATE message
+    private String recipient;
 
     public Message(Type type, String sender, String content) {
         this.type = type;
@@ -26,11 +63,30 @@ public class Message implements Serializable {
         this.timestamp = System.currentTimeMillis();
     }
 
+    public Message(Type type, String sender, String content, long timestamp) {
+        this.type = type;
+        this.sender = sender;
+        this.content = content;
+        this.timestamp = timestamp;
+    }
+
+    public Message(Type type, String sender, String content, long timestamp, long seq) {
+        this(type, sender, content, timestamp);
+        this.seq = seq;
+    }
+
 
     public Type getType() { return type; }
     public String getSender() { return sender; }
     public String getContent() { return content; }
     public long getTimestamp() { return timestamp; }
+    public long getSeq() { return seq; }
+    public String getRoom() { return room; }
+
+    public String getRecipient() { return recipient; }
+
+    public void setRoom(String room) { this.room = room; }
+    public void setRecipient(String recipient) { this.recipient = recipient; }
 
     @Override
     public String toString() {
@@ -0,0 +1,337 @@
+package com.ilyun.jchat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compact binary wire format shared by client and server.
+//
+// Handshake, once per direction before any frame: 'J' 'C' version flags
+// (NODE_FLAG set on links between server nodes, COMPRESS_FLAG by a side that takes
+// compressed frames, see Compression; each side compresses only if both set it;
+// TRANSFER_FLAG by a client opening a file transfer connection rather than a chat one)
+// Frame: varint(body length) body
+// Body:  type(1) fields(1) varint(len) sender-utf8 varint(len) content-utf8 varint(timestamp)
+//        then each optional field whose bit is set in fields, in this order:
+//        varint(seq), varint(len) room-utf8, varint(len) recipient-utf8
+//
+// Version 2 added the fields byte and seq, version 3 rooms, version 4 direct
+// messages, version 5 history paging, version 6 heartbeats, version 7 session resume,
+// version 8 notices, version 9 search, version 10 file sharing, version 11 typing indicators,
+// version 12 search bounds in the request's content and SEARCH_END.
+// Each side answers the hello with the version they agree on, the highest both speak, and
+// then sends nothing the other side's version doesn't have (see since). Clients older than
+// MIN_PROTOCOL_VERSION are refused. Nodes of a cluster link up only at the same version, the
+// bus carries more than messages a version can go without.
+//
+// A transfer connection carries one file at a time beside the chat connection, so a big
+// one never holds chat up. After the hello the client logs in with CONNECT, its username
+// and its chat session's token as content, then sends FILE requests with a command as content:
+//   "put <size> <name>" with room or recipient set as for a chat message: answered with
+//       FILE, the new file's id as content and 0 as seq, then the client sends the file
+//   "resume <id>": an upload of its own that was cut off, answered like put with as seq
+//       the bytes the server has, and the client sends the rest
+//   "get <id> <offset>": answered with FILE, the id as content and the file's size as seq,
+//       then the raw bytes from offset to the end, with no framing
+// An upload goes in chunks, each int32(length) then that many bytes, of at most
+// MAX_CHUNK_SIZE, and every chunk is acknowledged with a FILE whose seq is the bytes
+// received so far. Refusals come as a NOTICE, then the server closes the connection.
+public final class MessageCodec {
+    public static final int PROTOCOL_VERSION = 12;
+    public static final int MIN_PROTOCOL_VERSION = 10;
+    public static final int HELLO_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+    public static final int NODE_FLAG = 1;
+    public static final int COMPRESS_FLAG = 2;
+    public static final int TRANSFER_FLAG = 4;
+    public static final int MAX_CHUNK_SIZE = 1 << 20;
+
+    private static final byte MAGIC_0 = 'J';
+    private static final byte MAGIC_1 = 'C';
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    // Optional field bits
+    private static final int HAS_SEQ = 1;
+    private static final int HAS_ROOM = 2;
+    private static final int HAS_RECIPIENT = 4;
+
+    private MessageCodec() {
+    }
+
+    // Handshake
+
+    public record Hello(int version, int flags) {
+    }
+
+    public static byte[] hello(int version, int flags) {
+        return new byte[]{MAGIC_0, MAGIC_1, (byte) version, (byte) flags};
+    }
+
+    public static Hello readHello(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[HELLO_SIZE];
+        in.readFully(bytes);
+        return parseHello(ByteBuffer.wrap(bytes));
+    }
+
+    // Non-blocking variant, returns null until all handshake bytes have arrived
+    public static Hello pollHello(ByteBuffer buffer) throws IOException {
+        return buffer.remaining() < HELLO_SIZE ? null : parseHello(buffer);
+    }
+
+    private static Hello parseHello(ByteBuffer buffer) throws IOException {
+        if (buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1) {
+            throw new StreamCorruptedException("Not a JChat connection");
+        }
+        return new Hello(buffer.get() & 0xFF, buffer.get() & 0xFF);
+    }
+
+    // Highest version both sides speak, or 0 if there is none
+    public static int negotiate(int peerVersion) {
+        int version = Math.min(peerVersion, PROTOCOL_VERSION);
+        return version >= MIN_PROTOCOL_VERSION ? version : 0;
+    }
+
+    // The version a message type came in, never sent on a connection that agreed on an older one
+    public static int since(Message.Type type) {
+        return switch (type) {
+            case TYPING -> 11;
+            case SEARCH_END -> 12;
+            default -> MIN_PROTOCOL_VERSION;
+        };
+    }
+
+    // Frames
+
+    // Encode a message into a complete frame, length prefix included
+    public static byte[] encode(Message message) {
+        return encode(message, false).array();
+    }
+
+    // Encode once into a read-only, off-heap frame that any number of connections can
+    // write from; each writer takes its own duplicate() so positions don't interfere
+    public static ByteBuffer encodeShared(Message message) {
+        return encode(message, true).flip().asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer encode(Message message, boolean direct) {
+        byte[] sender = utf8(message.getSender());
+        byte[] content = utf8(message.getContent());
+        byte[] room = message.getRoom() != null ? utf8(message.getRoom()) : null;
+        byte[] recipient = message.getRecipient() != null ? utf8(message.getRecipient()) : null;
+        int fields = (message.getSeq() != 0 ? HAS_SEQ : 0) | (room != null ? HAS_ROOM : 0)
+                | (recipient != null ? HAS_RECIPIENT : 0);
+        int bodyLength = 2
+                + varLongSize(sender.length) + sender.length
+                + varLongSize(content.length) + content.length
+                + varLongSize(message.getTimestamp())
+                + ((fields & HAS_SEQ) != 0 ? varLongSize(message.getSeq()) : 0)
+                + (room != null ? varLongSize(room.length) + room.length : 0)
+                + (recipient != null ? varLongSize(recipient.length) + recipient.length : 0);
+
+        int frameLength = varLongSize(bodyLength) + bodyLength;
+        ByteBuffer frame = direct ? ByteBuffer.allocateDirect(frameLength) : ByteBuffer.allocate(frameLength);
+        putVarLong(frame, bodyLength);
+        frame.put((byte) message.getType().ordinal());
+        frame.put((byte) fields);
+        putBytes(frame, sender);
+        putBytes(frame, content);
+        putVarLong(frame, message.getTimestamp());
+        if ((fields & HAS_SEQ) != 0) {
+            putVarLong(frame, message.getSeq());
+        }
+        if (room != null) {
+            putBytes(frame, room);
+        }
+        if (recipient != null) {
+            putBytes(frame, recipient);
+        }
+        return frame;
+    }
+
+    // Decode a frame body (without its length prefix)
+    public static Message decode(ByteBuffer body) throws IOException {
+        try {
+            int type = body.get() & 0xFF;
+            if (type >= TYPES.length) {
+                throw new StreamCorruptedException("Unknown message type: " + type);
+            }
+            int fields = body.get();
+            String sender = getString(body);
+            String content = getString(body);
+            long timestamp = getVarLong(body);
+            long seq = (fields & HAS_SEQ) != 0 ? getVarLong(body) : 0;
+            Message message = new Message(TYPES[type], sender, content, timestamp, seq);
+            if ((fields & HAS_ROOM) != 0) {
+                message.setRoom(getString(body));
+            }
+            if ((fields & HAS_RECIPIENT) != 0) {
+                message.setRecipient(getString(body));
+            }
+            return message;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated message frame");
+        }
+    }
+
+    // Type of an encoded frame, read in place without decoding or moving the position.
+    // Null for a compressed frame.
+    public static Message.Type typeOf(ByteBuffer frame) {
+        int position = frame.position();
+        while ((frame.get(position++) & 0x80) != 0) {
+        }
+        int type = frame.get(position) & 0xFF;
+        return type < TYPES.length ? TYPES[type] : null;
+    }
+
+    // Timestamp of the frame at the buffer's position, skipping over the strings
+    // instead of decoding them. Doesn't move the position.
+    public static long timestampOf(ByteBuffer frame) throws IOException {
+        ByteBuffer body = frame.duplicate();
+        try {
+            getVarLong(body); // length prefix
+            body.position(body.position() + 2); // type, fields
+            for (int i = 0; i < 2; i++) { // sender, content
+                long length = getVarLong(body);
+                if (length > body.remaining()) {
+                    throw new StreamCorruptedException("Invalid string length: " + length);
+                }
+                body.position(body.position() + (int) length);
+            }
+            return getVarLong(body);
+        } catch (java.nio.BufferUnderflowException | IllegalArgumentException e) {
+            throw new StreamCorruptedException("Truncated message frame");
+        }
+    }
+
+    public static void writeFrame(OutputStream out, Message message) throws IOException {
+        out.write(encode(message));
+    }
+
+    // Blocking read of one frame
+    public static Message readFrame(DataInputStream in) throws IOException {
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            checkLength(length, shift);
+        }
+        byte[] body = new byte[checkLength(length, 0)];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    // Blocking read of one frame as it came, length prefix and all, to be passed on unchanged
+    public static ByteBuffer readRawFrame(DataInputStream in) throws IOException {
+        byte[] prefix = new byte[5];
+        int prefixSize = 0;
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            prefix[prefixSize++] = (byte) b;
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            checkLength(length, shift);
+        }
+        byte[] frame = new byte[prefixSize + checkLength(length, 0)];
+        System.arraycopy(prefix, 0, frame, 0, prefixSize);
+        in.readFully(frame, prefixSize, frame.length - prefixSize);
+        return ByteBuffer.wrap(frame);
+    }
+
+    // Total size of the frame at the buffer's position, or -1 if the length prefix is incomplete
+    public static int frameSize(ByteBuffer buffer) throws IOException {
+        long length = 0;
+        int position = buffer.position();
+        for (int shift = 0; position < buffer.limit(); shift += 7) {
+            int b = buffer.get(position++) & 0xFF;
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return position - buffer.position() + checkLength(length, 0);
+            }
+            checkLength(length, shift);
+        }
+        return -1;
+    }
+
+    // Decode the next complete frame from a buffer in read mode, or return null
+    // without consuming anything if the frame has not fully arrived yet
+    public static Message poll(ByteBuffer buffer) throws IOException {
+        int size = frameSize(buffer);
+        if (size < 0 || buffer.remaining() < size) {
+            return null;
+        }
+        int end = buffer.position() + size;
+        getVarLong(buffer); // length prefix
+        ByteBuffer body = buffer.slice(buffer.position(), end - buffer.position());
+        buffer.position(end);
+        return decode(body);
+    }
+
+    private static int checkLength(long length, int shift) throws IOException {
+        if (length > MAX_FRAME_SIZE || shift >= 28) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        return (int) length;
+    }
+
+    // Primitives
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        putVarLong(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        long length = getVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new StreamCorruptedException("Invalid string length: " + length);
+        }
+        if (!buffer.hasArray()) {
+            byte[] bytes = new byte[(int) length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) length);
+        return value;
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buffer.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+}
@@ -0,0 +1,69 @@
+package com.ilyun.jchat;
+
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.*;
+import javax.net.ssl.*;
+
+// TLS settings shared by client and server. TLS 1.3 only: a handshake is one round trip, and
+// a client coming back within the session timeout resumes from its ticket instead of doing
+// the key exchange and certificate check again, which keeps reconnects cheap. Suites and
+// groups are ordered for speed on current CPUs: AES-GCM runs on AES-NI and carry-less
+// multiply (HotSpot has intrinsics for both), ChaCha20 is kept for peers without them, and
+// x25519 is the cheapest key exchange.
+public final class Tls {
+    public static final List<String> CIPHER_SUITES = List.of(
+            "TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_CHACHA20_POLY1305_SHA256");
+    private static final String[] PROTOCOLS = {"TLSv1.3"};
+    private static final String[] NAMED_GROUPS = {"x25519", "secp256r1", "x448", "secp384r1"};
+
+    private Tls() {
+    }
+
+    // keyStore (null for a client) holds this side's certificate and key, trustStore (null
+    // for the JDK's own) the certificates of the peers it accepts. Either file may be PKCS12
+    // or JKS, the type is found from its contents.
+    public static SSLContext context(String keyStore, String keyStorePassword, String trustStore,
+                                     String trustStorePassword) throws IOException, GeneralSecurityException {
+        KeyManager[] keyManagers = null;
+        if (keyStore != null) {
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(load(keyStore, keyStorePassword), password(keyStorePassword));
+            keyManagers = factory.getKeyManagers();
+        }
+        TrustManager[] trustManagers = null;
+        if (trustStore != null) {
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(load(trustStore, trustStorePassword));
+            trustManagers = factory.getTrustManagers();
+        }
+        SSLContext context = SSLContext.getInstance("TLSv1.3");
+        context.init(keyManagers, trustManagers, null);
+        return context;
+    }
+
+    // For a socket or engine of the context, with cipherSuites (in order of preference) cut
+    // down to those the JDK has. A client also checks the server's certificate is for the
+    // host it dialled.
+    public static SSLParameters parameters(SSLContext context, List<String> cipherSuites, boolean client) {
+        Set<String> supported = Set.of(context.getSupportedSSLParameters().getCipherSuites());
+        SSLParameters parameters = context.getDefaultSSLParameters();
+        parameters.setProtocols(PROTOCOLS);
+        parameters.setCipherSuites(cipherSuites.stream().filter(supported::contains).toArray(String[]::new));
+        parameters.setUseCipherSuitesOrder(true);
+        parameters.setNamedGroups(NAMED_GROUPS);
+        if (client) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        return parameters;
+    }
+
+    private static KeyStore load(String path, String password) throws IOException, GeneralSecurityException {
+        return KeyStore.getInstance(new File(path), password(password));
+    }
+
+    private static char[] password(String password) {
+        return password != null ? password.toCharArray() : null;
+    }
+}
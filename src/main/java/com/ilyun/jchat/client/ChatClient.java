@@ -1,91 +1,648 @@
 package com.ilyun.jchat.client;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import com.ilyun.jchat.Compression;
+import com.ilyun.jchat.FrameReader;
 import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import com.ilyun.jchat.Tls;
 
 
 public class ChatClient {
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    // Frames written per flush by the writer thread
+    private static final int MAX_BATCH_FRAMES = 64;
+    private static final byte[] END_OF_STREAM = new byte[0];
+    // Most messages handed to the UI per pulse, so a burst is spread over a few frames
+    private static final int MAX_MESSAGES_PER_PULSE = 4096;
+    // Nothing from the server for this long: the writer PINGs it, and if it stays silent as
+    // long again the read times out and the connection is taken for dead. The timeout is
+    // never read past, it may have cut a frame in half.
+    private static final int SILENCE_MILLIS = 30_000;
+    // Reconnect attempts back off from the first delay to the last, doubling, each one
+    // picked at random from the upper half so clients dropped together don't return together
+    private static final long RECONNECT_MIN_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+    // Frames sent lately, kept to send again if the server never got them
+    private static final int RESEND_FRAMES = 256;
+    // Frames this big or bigger (a pasted log, say) go deflated if the server takes that
+    private static final int COMPRESS_MIN_BYTES = 512;
+    // Connections an upload or download may go through, each one picking up where the
+    // last dropped, before it is given up
+    private static final int TRANSFER_ATTEMPTS = 5;
+    // While the user types, the server is told so at most this often per room, well inside
+    // the time it forgets a typist after (_TYPING_TIMEOUT_MILLIS)
+    private static final long TYPING_EVERY_MILLIS = 3000;
+    // Message cache segment files, the unit the oldest messages are let go in
+    private static final int CACHE_SEGMENT_BYTES = 1 << 20;
+
+    private String host;
+    private int port;
+    // Null for plain sockets. The same context every time, so a reconnect resumes the TLS session.
+    private volatile SSLContext tls;
+    private volatile Socket socket;
+    private OutputStream out;
+    private DataInputStream in;
+    private FrameReader reader;
+    // The server takes compressed frames on this connection
+    private volatile boolean compress;
+    // The protocol version agreed on with the server, which may be older than ours
+    private volatile int version;
+    private final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>();
+    private volatile Thread writer;
+    private Thread listener;
     private String username;
-    private Consumer<Message> messageHandler;
-    private boolean connected = false;
+    private Consumer<List<Message>> messageHandler;
+    private volatile boolean connected = false;
+
+    // For resuming after a drop, all on the listener thread except sentFrames, which the
+    // writer fills while it runs. Frames are numbered in both directions, all but SESSION
+    // (and TYPING from the server, which is never sent again):
+    // the server resends what came after framesReceived, we resend what came after the
+    // count it puts in SESSION. The token is also what transfer connections log in with.
+    private volatile String sessionToken;
+    private long framesReceived;
+    private final byte[][] sentFrames = new byte[RESEND_FRAMES][];
+    private long framesSent;
+    // Lobby history to ask for if the session is gone: since the newest lobby message we have
+    private long historySince;
+    // Lobby and room messages kept on disk, if useCache was called. Appended as they are
+    // dispatched, so a handler reading it meanwhile never sees what it is about to be given.
+    private MessageCache cache;
+    // Older lobby history being paged in from the server: the time the page ends before, 0
+    // if none is pending. Those messages are not cached, they would go in out of order.
+    private volatile long pageBefore;
+    // When the server was last told we are typing, per room ("" for the lobby)
+    private final Map<String, Long> typingSent = new ConcurrentHashMap<>();
+    // System.nanoTime() of the last frame from the server, for the writer to PING on silence
+    private volatile long lastReceived;
+
+    // Received messages wait here for the FX thread, which takes all of them once per pulse
+    // instead of running one task per message
+    private final Queue<Message> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private AnimationTimer dispatcher;
+    // Runs the batches instead of the FX thread when set, for clients without a UI
+    private final Executor dispatchExecutor;
+
+    public ChatClient() {
+        this(null);
+    }
+
+    // Headless client: batches are handed to messageHandler on dispatchExecutor
+    // (Runnable::run for the listener thread itself), no JavaFX toolkit needed
+    public ChatClient(Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    // Connect over TLS, trusting the certificates context trusts (see Tls.context)
+    public void useTls(SSLContext context) {
+        this.tls = context;
+    }
+
+    // Keep the lobby and room messages from host for username in a cache under dir, at most
+    // maxBytesPerRoom of each room's newest. Call before connect with the same host, port and
+    // username. What is cached can be read at once (see cached), and connect asks the server
+    // only for the lobby messages since the newest one cached.
+    public void useCache(Path dir, String host, int port, String username, long maxBytesPerRoom) throws IOException {
+        cache = new MessageCache(dir, host, port, username, CACHE_SEGMENT_BYTES, maxBytesPerRoom);
+    }
+
+    // The newest max messages cached for room (null for the lobby) from before before (epoch
+    // millis), oldest first. None without a cache.
+    public List<Message> cached(String room, long before, int max) {
+        return cache != null ? cache.before(room, before, max) : List.of();
+    }
 
     public boolean connect(String host, int port, String username, Consumer<Message> messageHandler) {
+        return connect(host, port, username, 0, batch -> batch.forEach(messageHandler));
+    }
+
+    // historySince: replay lobby messages since this time (epoch millis), 0 for the last few,
+    // or since the newest cached if that is later.
+    // messageHandler gets everything that arrived since the last pulse, on the FX thread
+    // (or the dispatch executor). If the connection drops the client reconnects by itself
+    // and resumes the session; meanwhile the handler gets a SESSION without a token.
+    public boolean connect(String host, int port, String username, long historySince,
+                           Consumer<List<Message>> messageHandler) {
+        this.host = host;
+        this.port = port;
         this.username = username;
+        this.historySince = Math.max(historySince, cache != null ? cache.lastTimestamp(null) : 0);
         this.messageHandler = messageHandler;
 
         try {
-            socket = new Socket(host, port);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-
-            // Send CONNECT message
-            sendMessage(new Message(Message.Type.CONNECT, username, ""));
-
-            // Start listening thread
-            new Thread(this::listenForMessages).start();
-
+            if (!open()) {
+                return false;
+            }
             connected = true;
+            listener = new Thread(this::listenForMessages, "chat-listener");
+            listener.start();
             return true;
-
         } catch (IOException e) {
             System.err.println("Connection failed: " + e.getMessage());
             return false;
         }
     }
 
+    // New socket, handshake and CONNECT, asking to resume the session if there is one.
+    // The writer starts once SESSION has told us what to send again. Returns false if the
+    // server doesn't speak our protocol version.
+    private boolean open() throws IOException {
+        Socket socket = tls != null ? tls.getSocketFactory().createSocket(host, port) : new Socket(host, port);
+        try {
+            // Before the first read or write, which does the TLS handshake
+            if (socket instanceof SSLSocket secure) {
+                secure.setSSLParameters(Tls.parameters(tls, Tls.CIPHER_SUITES, true));
+            }
+            socket.setTcpNoDelay(true); // the writer batches frames itself
+            socket.setSoTimeout(2 * SILENCE_MILLIS);
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            reader = new FrameReader();
+
+            // Agree on a protocol version before any frame, and on compression
+            out.write(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, MessageCodec.COMPRESS_FLAG));
+            out.flush();
+            MessageCodec.Hello hello = MessageCodec.readHello(in);
+            compress = (hello.flags() & MessageCodec.COMPRESS_FLAG) != 0;
+            version = MessageCodec.negotiate(hello.version());
+            if (version == 0) {
+                System.err.println("Connection failed: server does not speak protocol version "
+                        + MessageCodec.PROTOCOL_VERSION);
+                socket.close();
+                return false;
+            }
+
+            String resume = sessionToken != null ? sessionToken + " " + framesReceived : "";
+            MessageCodec.writeFrame(out, new Message(Message.Type.CONNECT, username, resume,
+                    System.currentTimeMillis(), historySince));
+            out.flush();
+            this.socket = socket;
+            lastReceived = System.nanoTime();
+            return true;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
     private void listenForMessages() {
+        while (connected) {
+            try {
+                Message message = reader.read(in);
+                lastReceived = System.nanoTime();
+                receive(message);
+            } catch (SocketTimeoutException e) {
+                // Even the writer's PING went unanswered, the server is gone
+                reconnect("server not responding");
+            } catch (IOException e) {
+                if (connected) {
+                    reconnect(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void receive(Message message) throws IOException {
+        if (message.getType() == Message.Type.SESSION) {
+            startSession(message);
+            deliver(message);
+            return;
+        }
+        if (message.getType() == Message.Type.TYPING) {
+            deliver(message); // not numbered
+            return;
+        }
+        framesReceived++;
+        // Heartbeats are answered here, the UI never sees them
+        if (message.getType() == Message.Type.PING) {
+            sendMessage(new Message(Message.Type.PONG, username, ""));
+        } else if (message.getType() != Message.Type.PONG) {
+            if ((message.getType() == Message.Type.TEXT || message.getType() == Message.Type.FILE)
+                    && message.getRoom() == null && message.getRecipient() == null) {
+                historySince = Math.max(historySince, message.getTimestamp());
+            } else if (message.getType() == Message.Type.DISCONNECT) {
+                connected = false; // the server sent us away, don't come back
+            }
+            deliver(message);
+        }
+    }
+
+    // Logged in. Our own token back means the session was resumed and the server has read
+    // message.getSeq() of our frames, so the ones after that go again, before anything
+    // new. Any older than the last RESEND_FRAMES are gone, which the handler is told of.
+    // A new token is a new session that knows nothing of the old one.
+    private void startSession(Message session) throws IOException {
+        if (session.getContent().equals(sessionToken)) {
+            long read = session.getSeq();
+            if (read < framesSent - RESEND_FRAMES) {
+                deliver(new Message(Message.Type.NOTICE, "Server",
+                        "Some of what you sent before the connection dropped never reached the server"));
+            }
+            List<byte[]> unread = new ArrayList<>();
+            for (long n = Math.max(read, framesSent - RESEND_FRAMES); n < framesSent; n++) {
+                unread.add(sentFrames[(int) (n % RESEND_FRAMES)]);
+            }
+            framesSent = read;
+            for (byte[] frame : unread) {
+                sent(frame);
+                write(out, frame);
+            }
+            out.flush();
+        } else {
+            sessionToken = session.getContent();
+            framesReceived = 0;
+            framesSent = 0;
+            Arrays.fill(sentFrames, null);
+        }
+        Socket socket = this.socket;
+        OutputStream out = this.out;
+        writer = new Thread(() -> writeLoop(socket, out), "chat-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Keeps trying, further apart each time, until the server takes us back or
+    // disconnect() is called
+    private void reconnect(String reason) {
+        System.err.println("Connection lost: " + reason + ", reconnecting");
+        closeSocket();
+        stopWriter();
+        deliver(new Message(Message.Type.SESSION, "Server", ""));
+        long delay = RECONNECT_MIN_MILLIS;
+        while (connected) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+                if (!open()) {
+                    connected = false;
+                    deliver(new Message(Message.Type.DISCONNECT, "Server",
+                            "Server no longer speaks protocol version " + MessageCodec.PROTOCOL_VERSION));
+                }
+                return;
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+            } catch (InterruptedException e) {
+                return; // disconnect()
+            }
+        }
+    }
+
+    // Listener thread, once the socket is closed so a writer stuck in a write fails out of it
+    private void stopWriter() {
+        Thread current = writer;
+        if (current != null) {
+            current.interrupt();
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+    }
+
+    private void closeSocket() {
         try {
-            while (connected) {
-                Message message = (Message) in.readObject();
+            Socket current = socket;
+            if (current != null) {
+                current.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                // Handle on JavaFX thread
-                Platform.runLater(() -> {
-                    if (messageHandler != null) {
-                        messageHandler.accept(message);
+    // Listener thread: queue the message, and wake the dispatcher if it isn't running
+    private void deliver(Message message) {
+        inbound.add(message);
+        if (dispatching.compareAndSet(false, true)) {
+            if (dispatchExecutor != null) {
+                dispatchExecutor.execute(() -> {
+                    while (dispatchBatch()) {
                     }
                 });
+            } else {
+                Platform.runLater(this::startDispatcher);
             }
-        } catch (IOException | ClassNotFoundException e) {
-            if (connected) {
-                System.err.println("Connection lost: " + e.getMessage());
-                Platform.runLater(() -> {
-                    if (messageHandler != null) {
-                        messageHandler.accept(new Message(Message.Type.DISCONNECT,
-                                "Server", "Connection lost"));
+        }
+    }
+
+    private void startDispatcher() {
+        if (dispatcher == null) {
+            dispatcher = new AnimationTimer() {
+                @Override
+                public void handle(long now) {
+                    if (!dispatchBatch()) {
+                        stop();
                     }
-                });
+                }
+            };
+        }
+        dispatcher.start();
+    }
+
+    // One batch to the handler, on the FX thread once per pulse while messages keep coming.
+    // Returns false when the queue has run dry and the dispatcher should stop.
+    private boolean dispatchBatch() {
+        List<Message> batch = new ArrayList<>();
+        Message message;
+        while (batch.size() < MAX_MESSAGES_PER_PULSE && (message = inbound.poll()) != null) {
+            batch.add(message);
+        }
+        if (!batch.isEmpty() && messageHandler != null) {
+            messageHandler.accept(batch);
+        }
+        if (cache != null) {
+            for (Message received : batch) {
+                cache(received);
             }
         }
+        if (!inbound.isEmpty()) {
+            return true;
+        }
+        dispatching.set(false);
+        // Something may have been queued after the check, with no wake-up since we were still running
+        return !inbound.isEmpty() && dispatching.compareAndSet(false, true);
+    }
+
+    // Lobby and room chat, but not the older history pages asked for
+    private void cache(Message message) {
+        Message.Type type = message.getType();
+        if (type == Message.Type.HISTORY && message.getSeq() == pageBefore) {
+            pageBefore = 0;
+        } else if ((type == Message.Type.TEXT || type == Message.Type.FILE) && message.getRecipient() == null
+                && (message.getRoom() != null || pageBefore == 0 || message.getTimestamp() >= pageBefore)) {
+            cache.append(message);
+        }
     }
 
-    public void sendMessage(Message message) {
+    // Never blocks on the socket, the writer thread sends it. A message too big for a frame
+    // is not sent, the server would only drop the connection over it: the handler gets a
+    // NOTICE instead and this returns false.
+    public boolean sendMessage(Message message) {
+        byte[] frame = MessageCodec.encode(message);
+        if (frame.length > MessageCodec.MAX_FRAME_SIZE) {
+            Message notice = new Message(Message.Type.NOTICE, "Server",
+                    "Message too long to send, the limit is " + (MessageCodec.MAX_FRAME_SIZE >> 10) + " KB");
+            notice.setRoom(message.getRoom());
+            deliver(notice);
+            return false;
+        }
+        outbound.add(frame);
+        return true;
+    }
+
+    // Writes every frame queued since the last wake-up, then flushes once. Frames are
+    // numbered before any is written, so none taken from the queue can be lost in a drop.
+    // Sends a PING once the server has been quiet for SILENCE_MILLIS.
+    private void writeLoop(Socket socket, OutputStream out) {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH_FRAMES);
+        long pinged = 0; // lastReceived when we last PINGed
         try {
-            out.writeObject(message);
-            out.flush();
+            while (true) {
+                long heard = lastReceived;
+                long quiet = (System.nanoTime() - heard) / 1_000_000;
+                byte[] first = outbound.poll(heard == pinged ? SILENCE_MILLIS : Math.max(1, SILENCE_MILLIS - quiet),
+                        TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (heard != lastReceived || heard == pinged
+                            || System.nanoTime() - heard < SILENCE_MILLIS * 1_000_000L) {
+                        continue;
+                    }
+                    pinged = heard;
+                    first = MessageCodec.encode(new Message(Message.Type.PING, username, ""));
+                }
+                batch.add(first);
+                outbound.drainTo(batch, MAX_BATCH_FRAMES - 1);
+                for (byte[] frame : batch) {
+                    if (frame != END_OF_STREAM) {
+                        sent(frame);
+                    }
+                }
+                for (byte[] frame : batch) {
+                    if (frame == END_OF_STREAM) {
+                        out.flush();
+                        return;
+                    }
+                    write(out, frame);
+                }
+                out.flush();
+                batch.clear();
+            }
         } catch (IOException e) {
+            // Wakes the listener up, which reconnects
             System.err.println("Error sending message: " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        } catch (InterruptedException e) {
+            // Stopped for a reconnect
+        }
+    }
+
+    private void write(OutputStream out, byte[] frame) throws IOException {
+        ByteBuffer compressed = compress && frame.length >= COMPRESS_MIN_BYTES
+                ? Compression.compress(ByteBuffer.wrap(frame), 1) : null;
+        if (compressed != null) {
+            out.write(compressed.array(), 0, compressed.limit());
+        } else {
+            out.write(frame);
+        }
+    }
+
+    private void sent(byte[] frame) {
+        sentFrames[(int) (framesSent++ % RESEND_FRAMES)] = frame;
+    }
+
+    public boolean sendText(String content) {
+        return sendText(null, content);
+    }
+
+    // room null is the lobby. False if it was too long to send (see sendMessage).
+    public boolean sendText(String room, String content) {
+        Message message = roomMessage(Message.Type.TEXT, room, content);
+        if (!sendMessage(message)) {
+            return false;
+        }
+        if (cache != null) {
+            cache.append(message);
+        }
+        // The server takes this as having stopped typing, the next keystroke says so again
+        typingSent.remove(room == null ? "" : room);
+        return true;
+    }
+
+    // The user typed something in room (null for the lobby), call on every keystroke. Only
+    // every few seconds gets as far as the server, and never while the connection is down or
+    // backed up, it would be stale by the time it got there. Nothing if the server is too old.
+    public void typing(String room) {
+        if (version < MessageCodec.since(Message.Type.TYPING)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        String key = room == null ? "" : room;
+        Long last = typingSent.get(key);
+        if ((last != null && now - last < TYPING_EVERY_MILLIS) || writer == null || outbound.size() > MAX_BATCH_FRAMES) {
+            return;
         }
+        typingSent.put(key, now);
+        sendMessage(roomMessage(Message.Type.TYPING, room, ""));
     }
 
-    public void sendText(String content) {
-        sendMessage(new Message(Message.Type.TEXT, username, content));
+    // False if it was too long to send (see sendMessage)
+    public boolean sendPrivate(String recipient, String content) {
+        Message message = new Message(Message.Type.PRIVATE, username, content);
+        message.setRecipient(recipient);
+        return sendMessage(message);
+    }
+
+    // Up to count lobby messages older than before (epoch millis), answered by
+    // those messages and then a HISTORY message
+    public void requestHistory(long before, int count) {
+        pageBefore = before;
+        sendMessage(new Message(Message.Type.HISTORY, username, String.valueOf(count),
+                System.currentTimeMillis(), before));
+    }
+
+    // Lobby messages holding every word of the query (from:name for a user's), after since
+    // and before before (epoch millis, 0 and Long.MAX_VALUE for no limit), answered by a
+    // page of SEARCH messages, newest first, and then a SEARCH_END. A server too old to
+    // search this way isn't asked, the handler gets a NOTICE and the SEARCH_END at once.
+    public void search(String query, long since, long before) {
+        if (version < MessageCodec.since(Message.Type.SEARCH_END)) {
+            deliver(new Message(Message.Type.NOTICE, "Server", "This server can't search its history"));
+            deliver(new Message(Message.Type.SEARCH_END, "Server", ""));
+            return;
+        }
+        sendMessage(new Message(Message.Type.SEARCH, username, since + " " + before + " " + query));
+    }
+
+    // Shares a file where a chat message to room, or to recipient if set, would go, over a
+    // connection of its own so chat carries on meanwhile. progress gets how many bytes the
+    // server has so far. Blocks until it is all in, returns the file's id; the server then
+    // sends the reference to everyone else. Refused by the server, it throws a ProtocolException.
+    public String upload(Path file, String room, String recipient, LongConsumer progress) throws IOException {
+        long size = Files.size(file);
+        String name = file.getFileName().toString();
+        String id = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int attempt = 1; ; attempt++) {
+                try (FileTransfer transfer = openTransfer()) {
+                    long offset = 0;
+                    if (id == null) {
+                        id = transfer.put(name, size, room, recipient);
+                    } else {
+                        offset = transfer.resume(id);
+                    }
+                    progress.accept(offset);
+                    transfer.send(channel, offset, size, progress);
+                    return id;
+                } catch (ProtocolException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (attempt >= TRANSFER_ATTEMPTS) {
+                        throw e;
+                    }
+                    pause(attempt);
+                }
+            }
+        }
+    }
+
+    // Fetches a shared file into target, by way of target.part, which a download cut off
+    // (in an earlier run, even) picks up from. progress gets how many bytes are in so far.
+    public void download(SharedFile file, Path target, LongConsumer progress) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int attempt = 1; ; attempt++) {
+                try (FileTransfer transfer = openTransfer()) {
+                    long offset = channel.size();
+                    long size = transfer.get(file.id(), offset);
+                    if (offset > size) {
+                        channel.truncate(0); // not this file's, start over
+                        continue;
+                    }
+                    progress.accept(offset);
+                    transfer.receive(channel, offset, size, progress);
+                    break;
+                } catch (ProtocolException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (attempt >= TRANSFER_ATTEMPTS) {
+                        throw e;
+                    }
+                    pause(attempt);
+                }
+            }
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private FileTransfer openTransfer() throws IOException {
+        String token = sessionToken;
+        if (token == null || !connected) {
+            throw new ProtocolException("Not logged in");
+        }
+        return FileTransfer.open(host, port, tls, username, token);
+    }
+
+    // Before another attempt at a transfer, backing off like a reconnect
+    private static void pause(int attempt) throws InterruptedIOException {
+        long delay = Math.min(RECONNECT_MIN_MILLIS << (attempt - 1), RECONNECT_MAX_MILLIS);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        }
+    }
+
+    public void joinRoom(String room) {
+        sendMessage(roomMessage(Message.Type.JOIN_ROOM, room, ""));
+    }
+
+    public void leaveRoom(String room) {
+        sendMessage(roomMessage(Message.Type.LEAVE_ROOM, room, ""));
+    }
+
+    private Message roomMessage(Message.Type type, String room, String content) {
+        Message message = new Message(type, username, content);
+        message.setRoom(room);
+        return message;
     }
 
     public void disconnect() {
         connected = false;
         try {
             sendMessage(new Message(Message.Type.DISCONNECT, username, ""));
+            outbound.add(END_OF_STREAM);
+            Thread current = writer;
+            if (current != null) current.join(1000);
+            if (listener != null) listener.interrupt(); // in case it is waiting to reconnect
             if (in != null) in.close();
             if (out != null) out.close();
             if (socket != null) socket.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (cache != null) {
+            cache.close();
         }
     }
 
@@ -1,6 +1,10 @@
 package com.ilyun.jchat.client;
 
 import atlantafx.base.theme.NordLight;
+import io.github.cdimascio.dotenv.Dotenv;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -10,21 +14,74 @@ import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
+import javafx.scene.text.FontPosture;
 import javafx.scene.text.FontWeight;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import javafx.util.Duration;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.LongConsumer;
 import com.ilyun.jchat.Message;
+import com.ilyun.jchat.Tls;
 
 public class ChatUI extends Application {
     private ChatClient client;
-    private TextArea messageArea;
+    // One tab per room, the lobby's room is null
+    private TabPane roomTabs;
+    private final Map<String, Tab> tabs = new HashMap<>();
+    // Direct message tabs, by the other user's name
+    private final Map<String, Tab> directTabs = new HashMap<>();
     private TextField inputField;
     private ListView<String> userList;
     private Label statusLabel;
+    // How far the last upload or download has got
+    private Label transferLabel;
+    private Button attachButton;
+    // Who else is typing in the open tab, under its transcript
+    private Label typingLabel;
+    // The last word from the server on who is typing, per room (null for the lobby). Dropped
+    // once it is older than TYPING_STALE_MILLIS, in case the update saying they stopped was lost.
+    private static final long TYPING_STALE_MILLIS = 3000;
+    private final Map<String, Typing> typing = new HashMap<>();
     private HBox header;
     private String username;
+    // Version of the user list we hold, -1 until the first snapshot arrives
+    private long presenceVersion = -1;
+    // Each room's newest messages kept on disk between runs (see ChatClient.useCache)
+    private static final long CACHE_MAX_MB = 8;
+    // Older lobby history being paged in: the time the pending page ends before (0 if
+    // none is pending) and the lines received for it so far
+    private static final int HISTORY_PAGE = 100;
+    private long historyBefore;
+    private final List<Transcript.Line> historyPage = new ArrayList<>();
+    private boolean historyExhausted;
+    private boolean resyncRequested;
+    // Search results tab, if open: its query, the matches of the page coming in (newest
+    // first), and the time to ask for the next page before, -1 once there are no more.
+    // One page is asked for at a time; a search typed meanwhile waits for it.
+    private Tab searchTab;
+    private String searchQuery;
+    private final List<Transcript.Line> searchPage = new ArrayList<>();
+    private long searchNext;
+    private boolean searchPending;
+    private String queuedSearch;
+    // Session we are in, and whether the client is trying to get back to it
+    private String sessionToken;
+    private boolean reconnecting;
+    // What a batch of messages changes, collected while handling it and applied once at
+    // the end: new lines per transcript, and the net join (true) / leave (false) per user
+    private final Map<Transcript, List<Transcript.Line>> pendingLines = new LinkedHashMap<>();
+    private final Map<String, Boolean> pendingPresence = new LinkedHashMap<>();
 
     public static void main(String[] args) {
         launch(args);
@@ -154,6 +211,17 @@ public class ChatUI extends Application {
         userList.setStyle("-fx-background-color: white;");
         VBox.setVgrow(userList, Priority.ALWAYS);
 
+        // Clicking someone opens a direct message tab with them
+        userList.setOnMouseClicked(e -> {
+            String item = userList.getSelectionModel().getSelectedItem();
+            if (item != null) {
+                String user = item.substring(item.indexOf(' ') + 1);
+                if (!user.equals(username)) {
+                    roomTabs.getSelectionModel().select(directTab(user));
+                }
+            }
+        });
+
         panel.getChildren().addAll(title, userList);
         return panel;
     }
@@ -173,6 +241,10 @@ public class ChatUI extends Application {
         titleLabel.setFont(Font.font("System", FontWeight.BOLD, 16));
         titleLabel.setTextFill(Color.WHITE);
 
+        transferLabel = new Label();
+        transferLabel.setTextFill(Color.WHITE);
+        transferLabel.setFont(Font.font(12));
+
         statusLabel = new Label("Connecting...");
         statusLabel.setTextFill(Color.WHITE);
         statusLabel.setFont(Font.font(12));
@@ -180,20 +252,200 @@ public class ChatUI extends Application {
         Region spacer = new Region();
         HBox.setHgrow(spacer, Priority.ALWAYS);
 
-        header.getChildren().addAll(titleLabel, spacer, statusLabel);
+        Button joinButton = new Button("Join room");
+        joinButton.setOnAction(e -> showJoinRoomDialog());
 
-        // Message area
-        messageArea = new TextArea();
-        messageArea.setEditable(false);
-        messageArea.setWrapText(true);
-        messageArea.setFont(Font.font("System", 13));
-        messageArea.setStyle("-fx-control-inner-background: #f9f9f9;");
-        VBox.setVgrow(messageArea, Priority.ALWAYS);
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search history");
+        searchField.setPrefWidth(160);
+        searchField.setOnAction(e -> {
+            search(searchField.getText().trim());
+            searchField.clear();
+        });
 
-        panel.getChildren().addAll(header, messageArea);
+        header.getChildren().addAll(titleLabel, spacer, transferLabel, statusLabel, searchField, joinButton);
+
+        // Message area, a tab per room
+        roomTabs = new TabPane();
+        VBox.setVgrow(roomTabs, Priority.ALWAYS);
+        Tab lobby = roomTab(null);
+        lobby.setClosable(false);
+        transcript(null).setOnScrolledToTop(this::loadOlderHistory);
+
+        typingLabel = new Label();
+        typingLabel.setFont(Font.font("System", FontPosture.ITALIC, 12));
+        typingLabel.setTextFill(Color.GRAY);
+        roomTabs.getSelectionModel().selectedItemProperty().addListener((observable, old, tab) -> showTyping());
+        Timeline expiry = new Timeline(new KeyFrame(Duration.seconds(1), e -> expireTyping()));
+        expiry.setCycleCount(Animation.INDEFINITE);
+        expiry.play();
+
+        panel.getChildren().addAll(header, roomTabs, typingLabel);
         return panel;
     }
 
+    // Tab for a room, created on first use
+    private Tab roomTab(String room) {
+        Tab tab = tabs.get(room);
+        if (tab != null) {
+            return tab;
+        }
+        tab = newTab(room == null ? "Lobby" : "#" + room, room);
+        tab.setOnClosed(e -> {
+            tabs.remove(room);
+            if (client != null) {
+                client.leaveRoom(room);
+            }
+        });
+        tabs.put(room, tab);
+        // What was said while we were away isn't kept anywhere but here
+        if (room != null && client != null) {
+            Transcript transcript = (Transcript) tab.getContent();
+            transcript.addAll(lines(client.cached(room, Long.MAX_VALUE, HISTORY_PAGE)));
+            transcript.setOnScrolledToTop(() -> loadOlderCached(room));
+        }
+        return tab;
+    }
+
+    // Tab for direct messages with one user, created on first use
+    private Tab directTab(String user) {
+        Tab tab = directTabs.get(user);
+        if (tab != null) {
+            return tab;
+        }
+        tab = newTab("@" + user, new Direct(user));
+        tab.setOnClosed(e -> directTabs.remove(user));
+        directTabs.put(user, tab);
+        return tab;
+    }
+
+    // target is the room name (null for the lobby) or a Direct
+    private Tab newTab(String title, Object target) {
+        Transcript transcript = new Transcript();
+        transcript.setOnFileOpened(this::saveFile);
+        Tab tab = new Tab(title, transcript);
+        tab.setUserData(target);
+        roomTabs.getTabs().add(tab);
+        return tab;
+    }
+
+    private record Direct(String user) {
+    }
+
+    private record Typing(String text, long receivedAt) {
+    }
+
+    private Transcript transcript(String room) {
+        return (Transcript) roomTab(room).getContent();
+    }
+
+    // Scrolled to the top of the lobby: the page before the oldest message from the cache,
+    // or once that has no more, from the server
+    private void loadOlderHistory() {
+        Transcript lobby = transcript(null);
+        if (client == null || historyBefore != 0 || historyExhausted || lobby.isFull()) {
+            return;
+        }
+        long oldest = lobby.oldestMessageTimestamp();
+        if (oldest > 0 && lobby.addOlder(lines(client.cached(null, oldest, HISTORY_PAGE))) > 0) {
+            return;
+        }
+        historyBefore = oldest > 0 ? oldest : System.currentTimeMillis();
+        client.requestHistory(historyBefore, HISTORY_PAGE);
+    }
+
+    // Scrolled to the top of a room, which has no history on the server
+    private void loadOlderCached(String room) {
+        Transcript transcript = transcript(room);
+        long oldest = transcript.oldestMessageTimestamp();
+        if (oldest > 0 && !transcript.isFull()) {
+            transcript.addOlder(lines(client.cached(room, oldest, HISTORY_PAGE)));
+        }
+    }
+
+    // Cached messages as they were shown when they came
+    private List<Transcript.Line> lines(List<Message> messages) {
+        List<Transcript.Line> lines = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            String sender = message.getSender().equals(username) ? "You" : message.getSender();
+            SharedFile file = message.getType() == Message.Type.FILE ? SharedFile.of(message) : null;
+            if (file != null) {
+                lines.add(new Transcript.Line(message.getTimestamp(), sender, file.name(), file));
+            } else if (message.getType() == Message.Type.TEXT) {
+                lines.add(new Transcript.Line(message.getTimestamp(), sender, message.getContent()));
+            }
+        }
+        return lines;
+    }
+
+    // Results in a tab of their own, replacing the last search's
+    private void search(String query) {
+        if (query.isEmpty() || client == null) {
+            return;
+        }
+        if (searchPending) {
+            queuedSearch = query;
+            return;
+        }
+        if (searchTab == null) {
+            searchTab = newTab("", null);
+            searchTab.setOnClosed(e -> searchTab = null);
+        }
+        Transcript results = new Transcript();
+        results.setOnScrolledToTop(this::loadMoreResults);
+        searchTab.setContent(results);
+        searchTab.setText("🔍 " + query);
+        roomTabs.getSelectionModel().select(searchTab);
+        searchQuery = query;
+        searchPending = true;
+        client.search(query, 0, Long.MAX_VALUE);
+    }
+
+    // Scrolled to the top of the results: ask for the matches before the oldest
+    private void loadMoreResults() {
+        if (searchTab != null && !searchPending && searchNext >= 0
+                && !((Transcript) searchTab.getContent()).isFull()) {
+            searchPending = true;
+            client.search(searchQuery, 0, searchNext);
+        }
+    }
+
+    // The end of a page of results: newest first from the server, oldest at the top here
+    private void showResults(long next) {
+        searchPending = false;
+        if (searchTab != null) {
+            Transcript results = (Transcript) searchTab.getContent();
+            if (searchPage.isEmpty() && results.getItems().isEmpty()) {
+                results.addSystem("No messages match \"" + searchQuery + "\"");
+            }
+            Collections.reverse(searchPage);
+            results.addOlder(searchPage);
+            searchNext = next;
+        }
+        searchPage.clear();
+        if (queuedSearch != null) {
+            String query = queuedSearch;
+            queuedSearch = null;
+            search(query);
+        }
+    }
+
+    private void showJoinRoomDialog() {
+        TextInputDialog dialog = new TextInputDialog();
+        dialog.setTitle("Join Room");
+        dialog.setHeaderText("Enter the name of the room to join");
+        dialog.showAndWait()
+                .map(String::trim)
+                .filter(room -> !room.isEmpty())
+                .ifPresent(room -> {
+                    if (tabs.containsKey(room)) {
+                        roomTabs.getSelectionModel().select(tabs.get(room));
+                    } else if (client != null) {
+                        client.joinRoom(room);
+                    }
+                });
+    }
+
     private HBox createBottomPanel() {
         HBox panel = new HBox(10);
         panel.setPadding(new Insets(10));
@@ -214,8 +466,15 @@ public class ChatUI extends Application {
         sendButton.setOnAction(e -> sendMessage());
 
         inputField.setOnAction(e -> sendMessage());
+        inputField.textProperty().addListener((observable, old, text) -> typed(text));
+
+        attachButton = new Button("📎");
+        attachButton.setPrefHeight(40);
+        attachButton.setTooltip(new Tooltip("Share a file here"));
+        attachButton.setDisable(true);
+        attachButton.setOnAction(e -> shareFile());
 
-        panel.getChildren().addAll(inputField, sendButton);
+        panel.getChildren().addAll(inputField, sendButton, attachButton);
         return panel;
     }
 
@@ -224,16 +483,48 @@ public class ChatUI extends Application {
 
         // Initialize client
         client = new ChatClient();
+        if (Boolean.parseBoolean(setting("_TLS"))) {
+            try {
+                client.useTls(Tls.context(null, null, setting("_TLS_TRUSTSTORE"), setting("_TLS_TRUSTSTORE_PASSWORD")));
+            } catch (IOException | GeneralSecurityException e) {
+                updateStatus("Connection failed", true);
+                showAlert("TLS Error", "Could not load the trust store: " + e.getMessage());
+                return;
+            }
+        }
 
-        // Try to connect
-        boolean success = client.connect(serverIp, serverPort, username, this::handleMessage);
+        // The lobby as we last saw it, up before the server has answered, or if it never does
+        if (!"false".equalsIgnoreCase(setting("_CACHE_ENABLED"))) {
+            String dir = setting("_CACHE_DIR");
+            String maxMb = setting("_CACHE_MAX_MB");
+            try {
+                client.useCache(dir != null ? Path.of(dir) : Path.of(System.getProperty("user.home"), ".jchat", "cache"),
+                        serverIp, serverPort, username, (maxMb != null ? Long.parseLong(maxMb) : CACHE_MAX_MB) << 20);
+                transcript(null).addAll(lines(client.cached(null, Long.MAX_VALUE, HISTORY_PAGE)));
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Message cache unavailable: " + e.getMessage());
+            }
+        }
+
+        // Try to connect, off the FX thread so the window stays live meanwhile. Only the lobby
+        // messages since the newest cached one are asked for.
+        Thread connecting = new Thread(() -> {
+            boolean success = client.connect(serverIp, serverPort, username, 0, this::handleMessages);
+            Platform.runLater(() -> connected(success, serverIp, serverPort));
+        }, "chat-connect");
+        connecting.setDaemon(true);
+        connecting.start();
+    }
 
+    private void connected(boolean success, String serverIp, int serverPort) {
         if (success) {
             System.out.println("Connected successfully!");
             updateStatus("Connected",false);
             inputField.setDisable(false);
             ((Button) inputField.getParent().getChildrenUnmodifiable().get(1)).setDisable(false);
+            attachButton.setDisable(false);
             displaySystemMessage("Connected to chat server");
+            flushPending();
         } else {
             System.err.println("Connection failed!");
             updateStatus("Connection failed",true);
@@ -244,29 +535,159 @@ public class ChatUI extends Application {
         }
     }
 
+    // From .env, a -D system property with the same key wins, as on the server. Null if unset.
+    private static String setting(String key) {
+        String value = System.getProperty(key, Dotenv.configure().ignoreIfMissing().load().get(key));
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    // Everything that arrived since the last pulse, drawn in one layout pass
+    private void handleMessages(List<Message> batch) {
+        for (Message message : batch) {
+            handleMessage(message);
+        }
+        flushPending();
+    }
+
     private void handleMessage(Message message) {
         switch (message.getType()) {
             case TEXT:
-                displayMessage(message.getSender(), message.getContent(), message.getTimestamp());
+                // Older than the page being loaded, so part of it rather than live
+                if (message.getRoom() == null && historyBefore != 0 && message.getTimestamp() < historyBefore) {
+                    historyPage.add(new Transcript.Line(message.getTimestamp(), message.getSender(), message.getContent()));
+                // Rooms whose tab was just closed may still have messages in flight
+                } else if (message.getRoom() == null || tabs.containsKey(message.getRoom())) {
+                    displayMessage(message.getRoom(), message.getSender(), message.getContent(), message.getTimestamp());
+                }
+                break;
+
+            case PRIVATE:
+                display((Transcript) directTab(message.getSender()).getContent(),
+                        new Transcript.Line(message.getTimestamp(), message.getSender(), message.getContent()));
+                break;
+
+            case FILE:
+                // Goes where a TEXT or PRIVATE with the same room or recipient would
+                SharedFile file = SharedFile.of(message);
+                if (file == null) {
+                    break;
+                }
+                Transcript.Line line = new Transcript.Line(message.getTimestamp(), message.getSender(), file.name(), file);
+                if (message.getRecipient() != null) {
+                    display((Transcript) directTab(message.getSender()).getContent(), line);
+                } else if (message.getRoom() == null && historyBefore != 0 && message.getTimestamp() < historyBefore) {
+                    historyPage.add(line);
+                } else if (message.getRoom() == null || tabs.containsKey(message.getRoom())) {
+                    display(transcript(message.getRoom()), line);
+                }
+                break;
+
+            case HISTORY:
+                // End of the page
+                if (message.getSeq() == historyBefore) {
+                    flushPending(); // keep the live lines that came before it in order
+                    historyExhausted = historyPage.isEmpty();
+                    transcript(null).addOlder(historyPage);
+                    historyPage.clear();
+                    historyBefore = 0;
+                }
+                break;
+
+            case SEARCH:
+                searchPage.add(new Transcript.Line(message.getTimestamp(), message.getSender(), message.getContent()));
+                break;
+
+            case SEARCH_END:
+                showResults(message.getContent().isEmpty() ? -1 : Long.parseLong(message.getContent()));
+                break;
+
+            case JOIN_ROOM:
+                if (message.getSender().equals(username)) {
+                    roomTabs.getSelectionModel().select(roomTab(message.getRoom()));
+                }
+                if (tabs.containsKey(message.getRoom())) {
+                    displaySystemMessage(message.getRoom(), message.getSender() + " joined #" + message.getRoom());
+                }
+                break;
+
+            case LEAVE_ROOM:
+                if (tabs.containsKey(message.getRoom()) && !message.getSender().equals(username)) {
+                    displaySystemMessage(message.getRoom(), message.getSender() + " left #" + message.getRoom());
+                }
+                break;
+
+            case TYPING:
+                if (message.getRoom() == null || tabs.containsKey(message.getRoom())) {
+                    typing.put(message.getRoom(), new Typing(typingText(message), System.currentTimeMillis()));
+                    showTyping();
+                }
                 break;
 
             case USER_LIST:
-                updateUserList(message.getContent());
+                updateUserList(message.getContent(), message.getSeq());
                 break;
 
             case USER_JOINED:
+                if (applyPresence(message)) {
+                    pendingPresence.put(message.getContent(), true);
+                }
                 displaySystemMessage(message.getContent() + " joined the chat");
                 break;
 
             case USER_LEFT:
+                if (applyPresence(message)) {
+                    pendingPresence.put(message.getContent(), false);
+                }
                 displaySystemMessage(message.getContent() + " left the chat");
                 break;
 
+            case SESSION:
+                if (message.getContent().isEmpty()) {
+                    // Input stays on, what is typed meanwhile goes out once we are back
+                    reconnecting = true;
+                    typing.clear();
+                    showTyping();
+                    updateStatus("Reconnecting...", true);
+                    displaySystemMessage("Connection lost, reconnecting...");
+                    break;
+                }
+                if (sessionToken != null && !message.getContent().equals(sessionToken)) {
+                    // The server had let the session go, so nothing we held about it counts:
+                    // the user list comes again from scratch, and our rooms have to be rejoined
+                    presenceVersion = -1;
+                    resyncRequested = false;
+                    historyBefore = 0;
+                    historyPage.clear();
+                    searchPending = false;
+                    searchPage.clear();
+                    for (String room : tabs.keySet()) {
+                        if (room != null) {
+                            client.joinRoom(room);
+                        }
+                    }
+                }
+                sessionToken = message.getContent();
+                if (reconnecting) {
+                    reconnecting = false;
+                    updateStatus("Connected", false);
+                    displaySystemMessage("Reconnected");
+                }
+                break;
+
+            case NOTICE:
+                String notice = message.getSeq() > 0
+                        ? message.getContent() + " (try again in " + (message.getSeq() + 999) / 1000 + "s)"
+                        : message.getContent();
+                displaySystemMessage(tabs.containsKey(message.getRoom()) ? message.getRoom() : null, notice);
+                break;
+
             case DISCONNECT:
                 updateStatus("Disconnected",true);
                 inputField.setDisable(true);
                 ((Button) inputField.getParent().getChildrenUnmodifiable().get(1)).setDisable(true);
-                showAlert("Disconnected", message.getContent());
+                attachButton.setDisable(true);
+                // Can't block in the middle of a pulse
+                Platform.runLater(() -> showAlert("Disconnected", message.getContent()));
                 break;
         }
     }
@@ -274,42 +695,221 @@ public class ChatUI extends Application {
     private void sendMessage() {
         String text = inputField.getText().trim();
         if (!text.isEmpty() && client != null) {
-            client.sendText(text);
-            displayMessage("You", text, System.currentTimeMillis());
+            Tab tab = roomTabs.getSelectionModel().getSelectedItem();
+            if (tab == searchTab) {
+                // Typed into the results: search again
+                search(text);
+            } else if (tab.getUserData() instanceof Direct direct) {
+                if (!client.sendPrivate(direct.user(), text)) {
+                    return; // too long, the client says so, and the text stays to be cut down
+                }
+                Transcript transcript = (Transcript) tab.getContent();
+                display(transcript, new Transcript.Line(System.currentTimeMillis(), "You", text));
+                if (!userList.getItems().contains("🟢 " + direct.user())) {
+                    display(transcript, new Transcript.Line(System.currentTimeMillis(), null,
+                            direct.user() + " is offline, they will get it when they connect"));
+                }
+            } else {
+                String room = (String) tab.getUserData();
+                if (!client.sendText(room, text)) {
+                    return;
+                }
+                displayMessage(room, "You", text, System.currentTimeMillis());
+            }
+            flushPending();
             inputField.clear();
         }
     }
 
-    private void displayMessage(String sender, String content, long timestamp) {
-        SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
-        String time = sdf.format(new Date(timestamp));
+    // A keystroke in a room or the lobby, passed on for the others to see (ChatClient keeps
+    // it to one every few seconds)
+    private void typed(String text) {
+        Tab tab = roomTabs.getSelectionModel().getSelectedItem();
+        if (client != null && !text.isBlank() && tab != null && tab != searchTab && !(tab.getUserData() instanceof Direct)) {
+            client.typing((String) tab.getUserData());
+        }
+    }
 
-        String formattedMessage = String.format("[%s] %s: %s\n", time, sender, content);
-        messageArea.appendText(formattedMessage);
+    // "alice is typing…", "alice and bob are typing…" or "alice, bob, carol and 4 others are
+    // typing…", leaving us out. Empty if nobody else is.
+    private String typingText(Message message) {
+        List<String> names = new ArrayList<>(List.of(message.getContent().split(",")));
+        names.removeIf(String::isEmpty);
+        long others = message.getSeq() - names.size();
+        names.remove(username);
+        if (names.isEmpty()) {
+            return "";
+        }
+        String who;
+        if (others > 0) {
+            who = String.join(", ", names) + " and " + others + (others == 1 ? " other" : " others");
+        } else if (names.size() == 1) {
+            who = names.getFirst();
+        } else {
+            who = String.join(", ", names.subList(0, names.size() - 1)) + " and " + names.getLast();
+        }
+        return who + (names.size() + others == 1 ? " is typing…" : " are typing…");
     }
 
-    private void displaySystemMessage(String content) {
-        messageArea.appendText("*** " + content + " ***\n");
+    private void showTyping() {
+        Tab tab = roomTabs.getSelectionModel().getSelectedItem();
+        Typing shown = tab != null && tab != searchTab ? typing.get(tab.getUserData()) : null;
+        typingLabel.setText(shown != null ? shown.text() : "");
+    }
+
+    private void expireTyping() {
+        long now = System.currentTimeMillis();
+        if (typing.values().removeIf(entry -> now - entry.receivedAt() > TYPING_STALE_MILLIS)) {
+            showTyping();
+        }
     }
 
-    private void updateUserList(String userListStr) {
-        if (userListStr == null || userListStr.isEmpty()) {
+    // Uploads a file picked by the user into the open tab, in the background. The others see
+    // it once it is all on the server, we see it then too.
+    private void shareFile() {
+        Tab tab = roomTabs.getSelectionModel().getSelectedItem();
+        if (tab == null || tab == searchTab || client == null) {
+            return;
+        }
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Share a file");
+        File file = chooser.showOpenDialog(roomTabs.getScene().getWindow());
+        if (file == null) {
             return;
         }
+        String room = tab.getUserData() instanceof String name ? name : null;
+        String recipient = tab.getUserData() instanceof Direct direct ? direct.user() : null;
+        Transcript transcript = (Transcript) tab.getContent();
+        String name = file.getName();
+        long size = file.length();
+        Thread.ofVirtual().start(() -> {
+            try {
+                String id = client.upload(file.toPath(), room, recipient, progress("Uploading " + name, size));
+                finishTransfer(transcript, new Transcript.Line(System.currentTimeMillis(), "You", name,
+                        new SharedFile(id, name, size)));
+            } catch (IOException e) {
+                finishTransfer(transcript, new Transcript.Line(System.currentTimeMillis(), null,
+                        "Could not share " + name + ": " + e.getMessage()));
+            }
+        });
+    }
 
-        String[] users = userListStr.split(",");
-        userList.getItems().clear();
-        for (String user : users) {
+    // Double-clicked a shared file: download it to where the user says, in the background
+    private void saveFile(SharedFile file) {
+        Tab tab = roomTabs.getSelectionModel().getSelectedItem();
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Save " + file.name());
+        chooser.setInitialFileName(file.name());
+        File target = chooser.showSaveDialog(roomTabs.getScene().getWindow());
+        if (target == null || client == null) {
+            return;
+        }
+        Transcript transcript = (Transcript) tab.getContent();
+        Thread.ofVirtual().start(() -> {
+            String result;
+            try {
+                client.download(file, target.toPath(), progress("Downloading " + file.name(), file.size()));
+                result = "Saved " + file.name() + " to " + target;
+            } catch (IOException e) {
+                result = "Could not download " + file.name() + ": " + e.getMessage();
+            }
+            finishTransfer(transcript, new Transcript.Line(System.currentTimeMillis(), null, result));
+        });
+    }
+
+    // Percent done in the header, passed to the FX thread only when it changes
+    private LongConsumer progress(String what, long size) {
+        int[] shown = {-1};
+        return done -> {
+            int percent = size > 0 ? (int) (done * 100 / size) : 100;
+            if (percent != shown[0]) {
+                shown[0] = percent;
+                Platform.runLater(() -> transferLabel.setText(what + " " + percent + "%"));
+            }
+        };
+    }
+
+    // From a transfer's thread
+    private void finishTransfer(Transcript transcript, Transcript.Line line) {
+        Platform.runLater(() -> {
+            transferLabel.setText("");
+            display(transcript, line);
+            flushPending();
+        });
+    }
+
+    private void displayMessage(String room, String sender, String content, long timestamp) {
+        display(transcript(room), new Transcript.Line(timestamp, sender, content));
+    }
+
+    private void displaySystemMessage(String content) {
+        displaySystemMessage(null, content);
+    }
+
+    private void displaySystemMessage(String room, String content) {
+        display(transcript(room), new Transcript.Line(System.currentTimeMillis(), null, content));
+    }
+
+    // Shows up on the next flushPending()
+    private void display(Transcript transcript, Transcript.Line line) {
+        pendingLines.computeIfAbsent(transcript, t -> new ArrayList<>()).add(line);
+    }
+
+    // One append per transcript and at most one removal and one addition on the user list,
+    // however many messages the batch held
+    private void flushPending() {
+        pendingLines.forEach(Transcript::addAll);
+        pendingLines.clear();
+
+        if (!pendingPresence.isEmpty()) {
+            List<String> left = new ArrayList<>();
+            List<String> joined = new ArrayList<>();
+            pendingPresence.forEach((user, online) -> (online ? joined : left).add("🟢 " + user));
+            pendingPresence.clear();
+            userList.getItems().removeAll(left);
+            joined.removeAll(userList.getItems());
+            userList.getItems().addAll(joined);
+        }
+    }
+
+    // Full snapshot, replaces the list in one change
+    private void updateUserList(String userListStr, long version) {
+        if (version < presenceVersion) {
+            return; // older than the deltas already applied
+        }
+        presenceVersion = version;
+        resyncRequested = false;
+        pendingPresence.clear(); // already part of the snapshot
+
+        List<String> items = new ArrayList<>();
+        for (String user : userListStr.split(",")) {
             if (!user.trim().isEmpty()) {
-                userList.getItems().add("🟢 " + user.trim());
+                items.add("🟢 " + user.trim());
             }
         }
+        userList.getItems().setAll(items);
+    }
+
+    // True if a join/leave is the next change after our list. On a gap (a delta got
+    // dropped under load) ask the server for a fresh snapshot instead.
+    private boolean applyPresence(Message message) {
+        if (presenceVersion >= 0 && message.getSeq() == presenceVersion + 1) {
+            presenceVersion = message.getSeq();
+            return true;
+        }
+        if (message.getSeq() > presenceVersion && !resyncRequested) {
+            resyncRequested = true;
+            client.sendMessage(new Message(Message.Type.USER_LIST, username, ""));
+        }
+        return false;
     }
 
     private void updateStatus(String status,boolean failed) {
         statusLabel.setText(status);
         if (failed) {
             header.setStyle("-fx-background-color: #f81111; -fx-background-radius: 5;");
+        } else {
+            header.setStyle("-fx-background-color: #25D366; -fx-background-radius: 5;");
         }
     }
 
@@ -0,0 +1,148 @@
+package com.ilyun.jchat.client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.function.LongConsumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import com.ilyun.jchat.Tls;
+
+// One file transfer connection (see MessageCodec), opened beside the chat connection for
+// each upload or download. Over a plain socket the bytes go between the file and a socket
+// channel with transferTo / transferFrom, over TLS through the SSLSocket's streams.
+// Refusals from the server are thrown as a ProtocolException, anything else that goes wrong
+// means the connection is gone and the transfer can be picked up again on a new one.
+final class FileTransfer implements Closeable {
+    static final int CHUNK_SIZE = 256 * 1024;
+    // Chunks sent ahead of the server's acknowledgements
+    static final int WINDOW = 16;
+    // Each transferFrom call of a download, so progress is reported as it goes
+    private static final long RECEIVE_STEP = 1 << 20;
+
+    private final Socket socket;
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    // Unbuffered, so the raw bytes of a download after its reply are left in the channel
+    private final DataInputStream frames;
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(4);
+
+    private FileTransfer(Socket socket, ReadableByteChannel in, WritableByteChannel out) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.frames = new DataInputStream(Channels.newInputStream(in));
+    }
+
+    // Connected and logged in with the chat session's token. tls null for a plain socket.
+    static FileTransfer open(String host, int port, SSLContext tls, String username, String token)
+            throws IOException {
+        FileTransfer transfer;
+        if (tls != null) {
+            SSLSocket secure = (SSLSocket) tls.getSocketFactory().createSocket(host, port);
+            secure.setSSLParameters(Tls.parameters(tls, Tls.CIPHER_SUITES, true));
+            transfer = new FileTransfer(secure, Channels.newChannel(secure.getInputStream()),
+                    Channels.newChannel(secure.getOutputStream()));
+        } else {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            transfer = new FileTransfer(channel.socket(), channel, channel);
+        }
+        try {
+            transfer.write(ByteBuffer.wrap(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION,
+                    MessageCodec.TRANSFER_FLAG)));
+            if (MessageCodec.negotiate(MessageCodec.readHello(transfer.frames).version()) == 0) {
+                throw new ProtocolException("Server does not speak protocol version " + MessageCodec.PROTOCOL_VERSION);
+            }
+            transfer.send(new Message(Message.Type.CONNECT, username, token));
+            return transfer;
+        } catch (IOException e) {
+            transfer.close();
+            throw e;
+        }
+    }
+
+    // A new upload to where a chat message to room or recipient would go, returns its id
+    String put(String name, long size, String room, String recipient) throws IOException {
+        Message request = new Message(Message.Type.FILE, "", "put " + size + " " + name);
+        request.setRoom(room);
+        request.setRecipient(recipient);
+        send(request);
+        return reply().getContent();
+    }
+
+    // An upload that was cut off, returns how much of it the server has
+    long resume(String id) throws IOException {
+        send(new Message(Message.Type.FILE, "", "resume " + id));
+        return reply().getSeq();
+    }
+
+    // The file from offset to size after a put or resume, no more than WINDOW chunks ahead
+    // of the server. Returns once the server has all of it.
+    void send(FileChannel file, long offset, long size, LongConsumer progress) throws IOException {
+        long sent = offset;
+        long acknowledged = offset;
+        while (acknowledged < size) {
+            if (sent < size && sent - acknowledged < (long) WINDOW * CHUNK_SIZE) {
+                int length = (int) Math.min(CHUNK_SIZE, size - sent);
+                write(chunkHeader.clear().putInt(length).flip());
+                long end = sent + length;
+                while (sent < end) {
+                    sent += file.transferTo(sent, end - sent, out);
+                }
+            } else {
+                acknowledged = reply().getSeq();
+                progress.accept(acknowledged);
+            }
+        }
+    }
+
+    // Asks for a file from offset on, returns its size. The bytes follow, see receive.
+    long get(String id, long offset) throws IOException {
+        send(new Message(Message.Type.FILE, "", "get " + id + " " + offset));
+        return reply().getSeq();
+    }
+
+    // The rest of the file after a get, written from offset on
+    void receive(FileChannel file, long offset, long size, LongConsumer progress) throws IOException {
+        long position = offset;
+        while (position < size) {
+            long read = file.transferFrom(in, position, Math.min(RECEIVE_STEP, size - position));
+            if (read == 0) {
+                throw new EOFException("Download cut off");
+            }
+            position += read;
+            progress.accept(position);
+        }
+    }
+
+    private Message reply() throws IOException {
+        Message reply = MessageCodec.readFrame(frames);
+        if (reply.getType() == Message.Type.NOTICE) {
+            throw new ProtocolException(reply.getContent());
+        }
+        if (reply.getType() != Message.Type.FILE) {
+            throw new ProtocolException("Unexpected " + reply.getType() + " on a transfer connection");
+        }
+        return reply;
+    }
+
+    private void send(Message message) throws IOException {
+        write(ByteBuffer.wrap(MessageCodec.encode(message)));
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
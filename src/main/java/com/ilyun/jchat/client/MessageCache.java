@@ -0,0 +1,374 @@
+package com.ilyun.jchat.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// Messages received from one server, kept on disk so the next start can show them before
+// it is even connected and only ask the server for what came since. One log per room (and
+// the lobby), each a directory of segment files holding frames exactly as on the wire,
+// appended in the order they were received and read through a MappedByteBuffer, so only
+// the messages shown ever get decoded. Segments are named after the number of their first
+// record and rolled once full; once a room holds more than maxBytes its oldest segment
+// goes. Each segment has a sparse index of every INDEX_EVERY-th record's position and
+// timestamp, rebuilt by scanning it the first time it is read, so a start only scans as
+// far back as it shows.
+//
+// The server stamps the messages it relays, ours are cached with the time we sent them, so
+// the timestamps only run in order as far as the clocks agree. Good enough for scrollback.
+final class MessageCache {
+    private static final int INDEX_EVERY = 64;
+    private static final String LOBBY = "lobby";
+    // Longer file names get cut short, with a hash to tell them apart
+    private static final int MAX_NAME = 100;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    // By room, "" for the lobby, opened on first use
+    private final Map<String, RoomLog> rooms = new HashMap<>();
+    private boolean closed;
+
+    // Under dir, a directory per server and user. Room logs hold at most maxBytes each,
+    // in segments of segmentBytes.
+    MessageCache(Path dir, String host, int port, String username, int segmentBytes, long maxBytes) throws IOException {
+        this.dir = dir.resolve(fileName(host) + "-" + port).resolve(fileName(username));
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = Math.max(maxBytes, segmentBytes);
+        Files.createDirectories(this.dir);
+    }
+
+    // A lobby or room message received, or sent by us (room null for the lobby). A message
+    // bigger than a segment isn't kept.
+    synchronized void append(Message message) {
+        if (closed) {
+            return;
+        }
+        try {
+            room(message.getRoom()).append(MessageCodec.encode(message), message.getTimestamp());
+        } catch (IOException e) {
+            System.err.println("Message cache: " + e.getMessage());
+        }
+    }
+
+    // Time of the newest message cached for room, 0 if there is none
+    synchronized long lastTimestamp(String room) {
+        try {
+            return room(room).lastTimestamp();
+        } catch (IOException e) {
+            System.err.println("Message cache: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // The newest max messages of room from before before (epoch millis), oldest first
+    synchronized List<Message> before(String room, long before, int max) {
+        try {
+            return room(room).before(before, max);
+        } catch (IOException e) {
+            System.err.println("Message cache: " + e.getMessage());
+            return List.of();
+        }
+    }
+
+    // Push what was appended out to the files. Nothing more is appended after.
+    synchronized void close() {
+        closed = true;
+        for (RoomLog log : rooms.values()) {
+            log.close();
+        }
+    }
+
+    private RoomLog room(String room) throws IOException {
+        String key = room == null ? "" : room;
+        RoomLog log = rooms.get(key);
+        if (log == null) {
+            log = new RoomLog(dir.resolve(room == null ? LOBBY : "room-" + fileName(room)));
+            rooms.put(key, log);
+        }
+        return log;
+    }
+
+    // Letters, digits, '-' and '_' as they are, anything else (upper case too, for file
+    // systems that ignore case) as %XX of its UTF-8 bytes
+    static String fileName(String name) {
+        StringBuilder file = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            if (b >= 'a' && b <= 'z' || b >= '0' && b <= '9' || b == '-' || b == '_') {
+                file.append((char) b);
+            } else {
+                file.append('%').append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+        if (file.length() > MAX_NAME) {
+            file.setLength(MAX_NAME);
+            file.append('-').append(Integer.toHexString(name.hashCode()));
+        }
+        return file.toString();
+    }
+
+    // Oldest segment first, the last one is being written to
+    private final class RoomLog {
+        private final Path dir;
+        private final List<Segment> segments = new ArrayList<>();
+
+        RoomLog(Path dir) throws IOException {
+            this.dir = dir;
+            Files.createDirectories(dir);
+            List<Path> files;
+            try (Stream<Path> listing = Files.list(dir)) {
+                files = listing.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+            }
+            for (int i = 0; i < files.size(); i++) {
+                segments.add(Segment.open(files.get(i), i == files.size() - 1 ? segmentBytes : 0));
+            }
+            if (segments.isEmpty()) {
+                segments.add(Segment.create(dir, 0, segmentBytes));
+            }
+            evict();
+        }
+
+        void append(byte[] frame, long timestamp) throws IOException {
+            if (frame.length > segmentBytes) {
+                return;
+            }
+            Segment active = segments.get(segments.size() - 1);
+            if (active.written + frame.length > segmentBytes) {
+                active.seal();
+                active = Segment.create(dir, active.baseRecord + active.records, segmentBytes);
+                segments.add(active);
+                evict();
+            }
+            active.append(frame, timestamp);
+        }
+
+        long lastTimestamp() {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment segment = segments.get(i).scanned();
+                if (segment.records > 0) {
+                    return segment.lastTimestamp;
+                }
+            }
+            return 0;
+        }
+
+        // Newest segment first, until max are found
+        List<Message> before(long before, int max) throws IOException {
+            List<List<Message>> pages = new ArrayList<>();
+            int wanted = max;
+            for (int i = segments.size() - 1; i >= 0 && wanted > 0; i--) {
+                Segment segment = segments.get(i).scanned();
+                int end = segment.countBefore(before);
+                int from = Math.max(0, end - wanted);
+                pages.add(segment.read(from, end));
+                wanted -= end - from;
+            }
+            List<Message> messages = new ArrayList<>(max - wanted);
+            for (int i = pages.size() - 1; i >= 0; i--) {
+                messages.addAll(pages.get(i));
+            }
+            return messages;
+        }
+
+        // Oldest segments go until the rest fit, the one being written to counts in full
+        private void evict() throws IOException {
+            long bytes = segmentBytes;
+            for (int i = 0; i < segments.size() - 1; i++) {
+                bytes += segments.get(i).written;
+            }
+            while (bytes > maxBytes && segments.size() > 1) {
+                Segment oldest = segments.remove(0);
+                bytes -= oldest.written;
+                oldest.close();
+                Files.deleteIfExists(oldest.path);
+            }
+        }
+
+        void close() {
+            segments.get(segments.size() - 1).close();
+        }
+    }
+
+    private static final class Segment {
+        final long baseRecord;
+        final Path path;
+        // Open while the segment is written to
+        private FileChannel channel;
+        private final MappedByteBuffer map;
+        // Records and index are only known once scanned, written is the file size till then
+        private boolean scanned = true;
+        int written;
+        int records;
+        long lastTimestamp;
+        // Position and timestamp of every INDEX_EVERY-th record
+        private int[] positions = new int[16];
+        private long[] timestamps = new long[16];
+
+        private Segment(long baseRecord, Path path, FileChannel channel, MappedByteBuffer map) {
+            this.baseRecord = baseRecord;
+            this.path = path;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        static Segment create(Path dir, long baseRecord, int size) throws IOException {
+            Path path = dir.resolve(String.format("%020d.log", baseRecord));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(baseRecord, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        // An existing segment. writableSize > 0 reopens it for appending, scanning it at once
+        // for where its records end; one that is only read is scanned on first use.
+        static Segment open(Path path, int writableSize) throws IOException {
+            String name = path.getFileName().toString();
+            long baseRecord = Long.parseLong(name.substring(0, name.indexOf('.')));
+            Segment segment;
+            if (writableSize > 0) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segment = new Segment(baseRecord, path, channel,
+                        channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(writableSize, channel.size())));
+            } else {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    segment = new Segment(baseRecord, path, null,
+                            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                }
+                segment.scanned = false;
+                segment.written = segment.map.capacity();
+                return segment;
+            }
+
+            segment.scan();
+            // Clear whatever a crash left behind so it can't be mistaken for records later
+            byte[] zeros = new byte[64 * 1024];
+            for (int i = segment.written; i < segment.map.capacity(); i += zeros.length) {
+                segment.map.put(i, zeros, 0, Math.min(zeros.length, segment.map.capacity() - i));
+            }
+            return segment;
+        }
+
+        Segment scanned() {
+            if (!scanned) {
+                written = 0;
+                scan();
+                scanned = true;
+            }
+            return this;
+        }
+
+        // Where the records end, rebuilding the index on the way
+        private void scan() {
+            ByteBuffer view = map.duplicate();
+            while (view.hasRemaining()) {
+                try {
+                    int size = MessageCodec.frameSize(view);
+                    // Unwritten space is zeros, so a record cut short runs on into them. A
+                    // whole one never ends in a zero: it ends in its timestamp, the size of
+                    // a file or the name of its room.
+                    if (size < 3 || size > view.remaining() || view.get(view.position() + size - 1) == 0) {
+                        break;
+                    }
+                    record(size, MessageCodec.timestampOf(view));
+                    view.position(view.position() + size);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+        }
+
+        void append(byte[] frame, long timestamp) {
+            map.put(written, frame);
+            record(frame.length, timestamp);
+        }
+
+        // Account for a record of size bytes just written at the end, or found there when scanning
+        private void record(int size, long timestamp) {
+            if (records % INDEX_EVERY == 0) {
+                int entry = records / INDEX_EVERY;
+                if (entry == positions.length) {
+                    positions = Arrays.copyOf(positions, entry * 2);
+                    timestamps = Arrays.copyOf(timestamps, entry * 2);
+                }
+                positions[entry] = written;
+                timestamps[entry] = timestamp;
+            }
+            written += size;
+            records++;
+            lastTimestamp = timestamp;
+        }
+
+        // How many records there are from before the given time
+        int countBefore(long before) throws IOException {
+            if (records == 0 || lastTimestamp < before) {
+                return records;
+            }
+            // The last index entry before it, then frame by frame from there
+            int entries = (records + INDEX_EVERY - 1) / INDEX_EVERY;
+            int low = 0;
+            int high = entries - 1;
+            int entry = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] < before) {
+                    entry = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (entry < 0) {
+                return 0;
+            }
+            int record = entry * INDEX_EVERY;
+            ByteBuffer view = map.duplicate().position(positions[entry]).limit(written);
+            while (record < records && MessageCodec.timestampOf(view) < before) {
+                view.position(view.position() + MessageCodec.frameSize(view));
+                record++;
+            }
+            return record;
+        }
+
+        // Records from up to end, decoded
+        List<Message> read(int from, int end) throws IOException {
+            List<Message> messages = new ArrayList<>(end - from);
+            if (from >= end) {
+                return messages;
+            }
+            ByteBuffer view = map.duplicate().position(positions[from / INDEX_EVERY]).limit(written);
+            for (int record = from / INDEX_EVERY * INDEX_EVERY; record < from; record++) {
+                view.position(view.position() + MessageCodec.frameSize(view));
+            }
+            for (int record = from; record < end; record++) {
+                messages.add(MessageCodec.poll(view));
+            }
+            return messages;
+        }
+
+        // Stop writing: trim the unwritten tail off the file
+        void seal() throws IOException {
+            map.force();
+            channel.truncate(written);
+            channel.close();
+            channel = null;
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    map.force();
+                    channel.close();
+                } catch (IOException | UncheckedIOException e) {
+                    System.err.println("Message cache: " + e.getMessage());
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.ilyun.jchat.client;
+
+import java.util.*;
+import javafx.collections.ObservableListBase;
+
+// Observable list with a fixed capacity over a circular array. Adding at the end
+// drops the oldest items once full, so memory stays flat however long it runs;
+// adding at the front (older items paged in) only fills up what room is left.
+class RingList<E> extends ObservableListBase<E> {
+    private final Object[] items;
+    private int head;
+    private int size;
+
+    RingList(int capacity) {
+        items = new Object[capacity];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Objects.checkIndex(index, size);
+        return (E) items[(head + index) % items.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    int capacity() {
+        return items.length;
+    }
+
+    // One change for the whole batch, however many items it evicts
+    void addAllLast(List<? extends E> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<? extends E> added = batch.size() > items.length
+                ? batch.subList(batch.size() - items.length, batch.size()) : batch;
+        int evict = Math.max(0, size + added.size() - items.length);
+
+        beginChange();
+        if (evict > 0) {
+            nextRemove(0, new ArrayList<>(subList(0, evict)));
+            for (int i = 0; i < evict; i++) {
+                items[(head + i) % items.length] = null;
+            }
+            head = (head + evict) % items.length;
+            size -= evict;
+        }
+        for (E item : added) {
+            items[(head + size++) % items.length] = item;
+        }
+        nextAdd(size - added.size(), size);
+        endChange();
+    }
+
+    // Insert older items before the first one, newest of them kept if there isn't room
+    // for all. Returns how many were added.
+    int addAllFirst(List<? extends E> older) {
+        int count = Math.min(older.size(), items.length - size);
+        if (count == 0) {
+            return 0;
+        }
+        beginChange();
+        for (int i = 0; i < count; i++) {
+            head = (head - 1 + items.length) % items.length;
+            items[head] = older.get(older.size() - 1 - i);
+        }
+        size += count;
+        nextAdd(0, count);
+        endChange();
+        return count;
+    }
+}
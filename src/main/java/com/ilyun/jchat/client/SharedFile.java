@@ -0,0 +1,29 @@
+package com.ilyun.jchat.client;
+
+import com.ilyun.jchat.Message;
+
+// A file someone shared, as told by a FILE message: the id to download it by, its name
+// and its size in bytes
+public record SharedFile(String id, String name, long size) {
+    // Null if the message isn't a file reference
+    public static SharedFile of(Message message) {
+        if (message.getType() != Message.Type.FILE) {
+            return null;
+        }
+        int space = message.getContent().indexOf(' ');
+        if (space < 0) {
+            return null;
+        }
+        return new SharedFile(message.getContent().substring(0, space), message.getContent().substring(space + 1),
+                message.getSeq());
+    }
+
+    // For showing next to the name
+    public String sizeText() {
+        if (size < 1024) {
+            return size + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(size)) / 10;
+        return String.format("%.1f %sB", (double) size / (1L << (unit * 10)), " KMGTPE".charAt(unit));
+    }
+}
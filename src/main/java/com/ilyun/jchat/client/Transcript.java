@@ -0,0 +1,154 @@
+package com.ilyun.jchat.client;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.function.Consumer;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.scene.text.Font;
+
+// Chat transcript for one tab. A ListView only lays out the rows on screen, and the
+// lines live in a bounded ring, so a session that runs for days costs the same to
+// draw and to keep as one that just started. FX thread only.
+class Transcript extends ListView<Transcript.Line> {
+    static final int MAX_LINES = 10_000;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+    // "HH:mm" per minute, most lines share one with their neighbours
+    private static final long[] cachedMinutes = new long[64];
+    private static final String[] cachedTimes = new String[64];
+
+    private final RingList<Line> lines = new RingList<>(MAX_LINES);
+    private VirtualFlow<?> flow;
+    private Runnable onScrolledToTop;
+    private Consumer<SharedFile> onFileOpened;
+
+    // A message, or a system notice when sender is null. file is set on a file someone shared.
+    record Line(long timestamp, String sender, String content, SharedFile file) {
+        Line(long timestamp, String sender, String content) {
+            this(timestamp, sender, content, null);
+        }
+    }
+
+    Transcript() {
+        super();
+        setItems(lines);
+        setCellFactory(list -> new LineCell());
+        setStyle("-fx-control-inner-background: #f9f9f9;");
+
+        // Ask for older lines whenever the view is scrolled all the way up
+        skinProperty().addListener((observable, oldSkin, newSkin) -> {
+            flow = (VirtualFlow<?>) lookup(".virtual-flow");
+            if (flow != null) {
+                flow.positionProperty().addListener((o, oldPosition, position) -> {
+                    if (position.doubleValue() <= 0 && onScrolledToTop != null) {
+                        onScrolledToTop.run();
+                    }
+                });
+            }
+        });
+
+        // Double-clicking a shared file saves it
+        setOnMouseClicked(e -> {
+            Line line = getSelectionModel().getSelectedItem();
+            if (e.getClickCount() == 2 && line != null && line.file() != null && onFileOpened != null) {
+                onFileOpened.accept(line.file());
+            }
+        });
+    }
+
+    void setOnScrolledToTop(Runnable onScrolledToTop) {
+        this.onScrolledToTop = onScrolledToTop;
+    }
+
+    void setOnFileOpened(Consumer<SharedFile> onFileOpened) {
+        this.onFileOpened = onFileOpened;
+    }
+
+    void addMessage(String sender, String content, long timestamp) {
+        addAll(List.of(new Line(timestamp, sender, content)));
+    }
+
+    void addSystem(String content) {
+        addAll(List.of(new Line(System.currentTimeMillis(), null, content)));
+    }
+
+    // Newer lines at the bottom, following them if the view was already there
+    void addAll(List<Line> batch) {
+        boolean following = isAtBottom();
+        lines.addAllLast(batch);
+        if (following) {
+            scrollTo(lines.size() - 1);
+        }
+    }
+
+    // Older lines at the top, keeping what is on screen in place. Returns how many fit.
+    int addOlder(List<Line> older) {
+        int first = flow != null && flow.getFirstVisibleCell() != null ? flow.getFirstVisibleCell().getIndex() : 0;
+        int added = lines.addAllFirst(older);
+        if (added > 0) {
+            scrollTo(first + added);
+        }
+        return added;
+    }
+
+    // Time of the oldest message held (notices don't count), or 0 if there is none
+    long oldestMessageTimestamp() {
+        for (Line line : lines) {
+            if (line.sender() != null) {
+                return line.timestamp();
+            }
+        }
+        return 0;
+    }
+
+    boolean isFull() {
+        return lines.size() == lines.capacity();
+    }
+
+    private boolean isAtBottom() {
+        if (flow == null || flow.getLastVisibleCell() == null) {
+            return true;
+        }
+        return flow.getLastVisibleCell().getIndex() >= lines.size() - 1;
+    }
+
+    static String formatTime(long timestamp) {
+        long minute = Math.floorDiv(timestamp, 60_000);
+        int slot = (int) (minute & (cachedMinutes.length - 1));
+        if (cachedTimes[slot] == null || cachedMinutes[slot] != minute) {
+            cachedMinutes[slot] = minute;
+            cachedTimes[slot] = TIME_FORMAT.format(Instant.ofEpochMilli(timestamp));
+        }
+        return cachedTimes[slot];
+    }
+
+    // Reused as rows scroll in and out of view, only ever as many as fit on screen
+    private final class LineCell extends ListCell<Line> {
+        LineCell() {
+            setWrapText(true);
+            setFont(Font.font("System", 13));
+            // Wrap at the list's width instead of growing sideways
+            prefWidthProperty().bind(Transcript.this.widthProperty().subtract(20));
+        }
+
+        @Override
+        protected void updateItem(Line line, boolean empty) {
+            super.updateItem(line, empty);
+            if (empty || line == null) {
+                setText(null);
+            } else if (line.sender() == null) {
+                setText("*** " + line.content() + " ***");
+            } else if (line.file() != null) {
+                setText("[" + formatTime(line.timestamp()) + "] " + line.sender() + ": 📎 " + line.file().name()
+                        + " (" + line.file().sizeText() + ", double-click to save)");
+            } else {
+                setText("[" + formatTime(line.timestamp()) + "] " + line.sender() + ": " + line.content());
+            }
+        }
+    }
+}
@@ -1,99 +1,954 @@
 package com.ilyun.jchat.server;
 
-import io.github.cdimascio.dotenv.Dotenv;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import javax.net.ssl.*;
+import com.ilyun.jchat.Compression;
+import com.ilyun.jchat.FrameReader;
 import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import com.ilyun.jchat.Tls;
 
 public class ChatServer {
-    private static final Dotenv dotenv = Dotenv.load();
-    private static final int PORT = Integer.parseInt(dotenv.get("_PORT"));
-    private static final int BACKLOG = 50;
-    private static final String INET_ADDRESS = dotenv.get("_SERVER_IP");
-    private static final InetAddress ADDRESS;
+    private static final Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+    // Every open blocking-mode handler, logged in or not, so shutdown can reach them all
+    private static final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private static final RoomRegistry rooms = new RoomRegistry();
+    // Encoded direct messages for users who are offline, handed over when they log in
+    private static final Map<String, ArrayDeque<byte[]>> offlineMessages = new ConcurrentHashMap<>();
+    // Users logged in on other nodes of the cluster, and the node each one is on
+    private static final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+
+    // Joins and leaves are numbered so clients can apply them as deltas and spot gaps.
+    // The lock keeps the numbering and the order deltas are queued in the same.
+    private static final ReentrantLock presenceLock = new ReentrantLock();
+    private static long presenceVersion;
+
+    private static volatile boolean running = true;
+    private static volatile ServerSocketChannel serverChannel;
+    private static volatile ExecutorService handlerExecutor;
+    private static volatile NioServer nioServer;
+    private static volatile HistoryLog history;
+    // Where searches of it run, so a slow one never holds up a connection's thread
+    private static volatile ExecutorService searches;
+    // Shared files, null if sharing is off, and the threads NIO mode runs transfers on
+    private static volatile FileStore files;
+    private static volatile ExecutorService transfers;
+    private static volatile IdleReaper reaper;
+    // Who is typing where, null if typing indicators are off
+    private static volatile TypingRelay typing;
+    // Ends sessions held for a resume that never came
+    private static volatile ScheduledExecutorService sessionTimer;
+    private static volatile ClusterBus cluster;
+    // Null unless clients connect over TLS
+    private static volatile SSLContext tls;
+    // Sent to connections that have gone quiet, the same bytes every time
+    static final ByteBuffer PING_FRAME = MessageCodec.encodeShared(new Message(Message.Type.PING, "Server", ""));
+
+    public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : ServerConfig.MODE;
+        Log.info("=== Chat Server Started on Port %d (%s mode) ===%n", ServerConfig.PORT, mode);
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::shutdown, "shutdown"));
+        Metrics.start(ServerConfig.METRICS_ADDRESS, ServerConfig.METRICS_PORT);
 
-    static {
         try {
-            ADDRESS = InetAddress.getByName(INET_ADDRESS);
-        } catch (UnknownHostException e) {
-            throw new RuntimeException(e);
+            if (ServerConfig.HISTORY_ENABLED) {
+                history = new HistoryLog(Path.of(ServerConfig.HISTORY_DIR), ServerConfig.HISTORY_SEGMENT_BYTES,
+                        ServerConfig.HISTORY_MAX_BYTES, ServerConfig.HISTORY_RETENTION_MILLIS,
+                        ServerConfig.HISTORY_QUEUE_SIZE, ServerConfig.SEARCH_ENABLED);
+                if (ServerConfig.SEARCH_ENABLED) {
+                    searches = new ThreadPoolExecutor(ServerConfig.SEARCH_THREADS, ServerConfig.SEARCH_THREADS,
+                            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(ServerConfig.SEARCH_QUEUE_SIZE),
+                            Thread.ofPlatform().name("search-", 0).daemon().factory());
+                }
+            }
+            if (ServerConfig.FILE_ENABLED) {
+                files = new FileStore(Path.of(ServerConfig.FILE_DIR), ServerConfig.FILE_MAX_BYTES,
+                        ServerConfig.FILE_STORE_MAX_BYTES, ServerConfig.FILE_RETENTION_MILLIS,
+                        ServerConfig.FILE_MAX_TRANSFERS);
+            }
+            if (ServerConfig.IDLE_TIMEOUT_NANOS != Long.MAX_VALUE) {
+                reaper = new IdleReaper(TimeUnit.SECONDS.toNanos(1), ServerConfig.PING_INTERVAL_NANOS,
+                        ServerConfig.IDLE_TIMEOUT_NANOS);
+            }
+            if (ServerConfig.TYPING_ENABLED) {
+                typing = new TypingRelay(TimeUnit.MILLISECONDS.toNanos(ServerConfig.TYPING_INTERVAL_MILLIS),
+                        TimeUnit.MILLISECONDS.toNanos(ServerConfig.TYPING_TIMEOUT_MILLIS));
+            }
+            if (ServerConfig.RESUME_SECONDS > 0) {
+                sessionTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "session-expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            if (ServerConfig.TLS) {
+                tls = Tls.context(ServerConfig.TLS_KEYSTORE, ServerConfig.TLS_KEYSTORE_PASSWORD,
+                        ServerConfig.TLS_TRUSTSTORE, ServerConfig.TLS_TRUSTSTORE_PASSWORD);
+                tls.getServerSessionContext().setSessionCacheSize(ServerConfig.TLS_SESSION_CACHE_SIZE);
+                tls.getServerSessionContext().setSessionTimeout(ServerConfig.TLS_SESSION_TIMEOUT_SECONDS);
+            }
+            if (ServerConfig.CLUSTER_PORT > 0) {
+                cluster = new ClusterBus(ServerConfig.CLUSTER_NODE, ServerConfig.CLUSTER_PEERS);
+                cluster.start(new InetSocketAddress(ServerConfig.ADDRESS, ServerConfig.CLUSTER_PORT));
+            }
+            if (mode.equals("nio")) {
+                transfers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("transfer-", 0).factory());
+                nioServer = new NioServer(ServerConfig.IO_THREADS, tls);
+                nioServer.serve(new InetSocketAddress(ServerConfig.ADDRESS, ServerConfig.PORT), ServerConfig.BACKLOG);
+            } else if (mode.equals("virtual")) {
+                serveBlocking(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory()));
+            } else {
+                serveBlocking(Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("client-", 0).factory()));
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.error("Server error: %s", e.getMessage());
+            }
+        } catch (GeneralSecurityException e) {
+            Log.error("TLS setup failed: %s", e.getMessage());
+        }
+    }
+
+    // One blocking ClientHandler per client, each run as a task on the given executor.
+    // Sockets come from a channel so shared frames can be written without copying.
+    static void serveBlocking(ExecutorService executor) throws IOException {
+        handlerExecutor = executor;
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            serverChannel = channel;
+            channel.bind(new InetSocketAddress(ServerConfig.ADDRESS, ServerConfig.PORT), ServerConfig.BACKLOG);
+            while (running) {
+                Socket clientSocket = channel.accept().socket();
+                if (!RateLimits.acceptConnection(clientSocket.getInetAddress())) {
+                    clientSocket.close();
+                    continue;
+                }
+                clientSocket.setTcpNoDelay(ServerConfig.TCP_NODELAY);
+                executor.execute(new ClientHandler(clientSocket));
+            }
         }
     }
 
-    private static final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    // Stop accepting, tell every client we are going away and wait for the handlers to drain
+    public static void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        Log.info("Shutting down...");
 
-    public static void main(String[] args) {
-        System.out.println("=== Chat Server Started on Port " + PORT + " ===\n");
+        try {
+            if (serverChannel != null) serverChannel.close();
+            if (nioServer != null) nioServer.stopAccepting();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT, BACKLOG, ADDRESS)) {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(new ClientHandler(clientSocket)).start();
+        Message goodbye = new Message(Message.Type.DISCONNECT, "Server", "Server shutting down");
+        for (ClientConnection connection : clients.values()) {
+            connection.sendMessage(goodbye);
+            connection.close();
+        }
+        for (ClientHandler handler : handlers) {
+            handler.close();
+        }
+        if (reaper != null) {
+            reaper.stop();
+        }
+        if (typing != null) {
+            typing.stop();
+        }
+        if (sessionTimer != null) {
+            sessionTimer.shutdownNow();
+        }
+        if (searches != null) {
+            searches.shutdownNow();
+        }
+        // Cut off uploads can be resumed until the server restarts, no need to wait for them
+        if (transfers != null) {
+            transfers.shutdownNow();
+        }
+        // The peers drop our users as the links go
+        if (cluster != null) {
+            cluster.stop();
+        }
+
+        try {
+            if (handlerExecutor != null) {
+                handlerExecutor.shutdown();
+                if (!handlerExecutor.awaitTermination(ServerConfig.SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    Log.warn("Handlers still running after %ds", ServerConfig.SHUTDOWN_TIMEOUT_SECONDS);
+                    handlerExecutor.shutdownNow();
+                }
+            }
+            if (nioServer != null) {
+                nioServer.stop(TimeUnit.SECONDS.toMillis(ServerConfig.SHUTDOWN_TIMEOUT_SECONDS));
+            }
+            // Last, once no handler can append any more
+            if (history != null) {
+                history.close(TimeUnit.SECONDS.toMillis(ServerConfig.SHUTDOWN_TIMEOUT_SECONDS));
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        Metrics.stop();
+        Log.info("Server stopped");
+        Log.flush(1000);
     }
 
-    // Broadcast message to all clients except sender
+    // Handle a message from a logged-in client, returns false once the client leaves
+    static boolean handleMessage(ClientConnection from, Message message) {
+        Metrics.messagesIn.increment();
+        from.getSession().read.incrementAndGet();
+        if (message.getType() == Message.Type.DISCONNECT) {
+            return false;
+        } else if (message.getType() == Message.Type.PING) {
+            from.sendMessage(new Message(Message.Type.PONG, "Server", ""));
+        } else if (message.getType() == Message.Type.PONG) {
+            // Nothing to do, reading it was the point
+        } else if (message.getType() == Message.Type.USER_LIST) {
+            // Client missed a delta and asks for a fresh snapshot
+            sendUserList(from);
+        } else if (message.getType() == Message.Type.JOIN_ROOM) {
+            joinRoom(from, message.getRoom());
+        } else if (message.getType() == Message.Type.LEAVE_ROOM) {
+            leaveRoom(from, message.getRoom());
+        } else if (message.getType() == Message.Type.HISTORY) {
+            sendHistoryPage(from, message);
+        } else if (message.getType() == Message.Type.TYPING) {
+            typing(from, message.getRoom());
+        } else if ((message.getType() == Message.Type.TEXT || message.getType() == Message.Type.PRIVATE
+                || message.getType() == Message.Type.SEARCH) && !withinRate(from, message)) {
+            // Over the sender's rate limit, dropped
+        } else if (message.getType() == Message.Type.SEARCH) {
+            search(from, message);
+        } else if (message.getType() == Message.Type.PRIVATE) {
+            sendPrivate(from, message);
+        } else if (message.getType() == Message.Type.TEXT) {
+            // Relayed under the name the connection logged in with and stamped with the
+            // server's clock, which is what history is indexed by
+            relay(from, new Message(Message.Type.TEXT, from.getUsername(), message.getContent()), message.getRoom(),
+                    true);
+        }
+        return true;
+    }
+
+    // A message from a user to the lobby (broadcast to all other clients and kept in the
+    // history) or to a room they are in. Passed on to the other nodes if publish.
+    private static void relay(ClientConnection from, Message relay, String room, boolean publish) {
+        TypingRelay typists = typing;
+        if (typists != null) {
+            typists.stopped(from.getUsername(), room);
+        }
+        if (room == null) {
+            Log.debug("%s: %s", from.getUsername(), relay.getContent());
+            ByteBuffer frame = encodeShared(relay);
+            broadcastFrame(frame, from.getUsername());
+            if (history != null) {
+                history.append(frame);
+            }
+            if (publish) {
+                publish(frame);
+            }
+        } else if (rooms.isMember(room, from)) {
+            Log.debug("#%s %s: %s", room, from.getUsername(), relay.getContent());
+            relay.setRoom(room);
+            if (publish) {
+                broadcastToRoom(room, relay, from);
+            } else {
+                sendToRoom(room, encodeShared(relay), from);
+            }
+        }
+    }
+
+    // An upload is complete: its reference goes where the uploader sent it, as if they had
+    // sent it over their chat connection, which they need to still be logged in on. The bytes
+    // are on this node only, so the reference is not passed on to the other nodes. A DM to
+    // a user on another node is refused before the upload, and if they moved there while it
+    // ran the uploader is told it didn't reach them.
+    static void shareFile(String username, FileStore.Upload upload) {
+        ClientConnection from = clients.get(username);
+        if (from == null) {
+            return;
+        }
+        if (upload.recipient != null && isRemote(upload.recipient)) {
+            from.sendMessage(new Message(Message.Type.NOTICE, "Server",
+                    upload.name + " didn't reach " + upload.recipient + ", who is now on another server"));
+            return;
+        }
+        Message reference = new Message(Message.Type.FILE, username, upload.id + " " + upload.name,
+                System.currentTimeMillis(), upload.size);
+        if (upload.recipient != null) {
+            reference.setRecipient(upload.recipient);
+            deliverPrivate(reference, false);
+        } else {
+            relay(from, reference, upload.room, false);
+        }
+    }
+
+    // The user is typing in the lobby or a room they are in. Not rate limited, saying it
+    // again only stamps them again. Other nodes have members there too: they are told when
+    // the user starts, then at most once per typing interval while they keep at it.
+    private static void typing(ClientConnection from, String room) {
+        TypingRelay relay = typing;
+        if (relay == null || (room != null && !rooms.isMember(room, from))) {
+            return;
+        }
+        if (relay.typing(from.getUsername(), room) && cluster != null) {
+            Message event = new Message(Message.Type.TYPING, from.getUsername(), "");
+            event.setRoom(room);
+            publish(encodeShared(event));
+        }
+    }
+
+    // Who is typing in a room, from the typing thread, to everyone in it on this node
+    static void sendTyping(Message update) {
+        ByteBuffer frame = encodeShared(update);
+        if (update.getRoom() == null) {
+            broadcastFrame(frame, null);
+        } else {
+            sendToRoom(update.getRoom(), frame, null);
+        }
+    }
+
+    // Whether token is the session of the user logged in here under that name, which is
+    // what a transfer connection logs in with
+    static boolean hasSession(String username, String token) {
+        ClientConnection connection = clients.get(username);
+        Session session = connection != null ? connection.getSession() : null;
+        return session != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                session.token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static boolean isMember(String username, String room) {
+        ClientConnection connection = clients.get(username);
+        return connection != null && rooms.isMember(room, connection);
+    }
+
+    // Logged in on another node of the cluster
+    static boolean isRemote(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    // A connection whose hello asked for a file transfer, from an NIO loop that has made
+    // its channel blocking. Runs on a thread of its own.
+    static void transfer(ReadableByteChannel in, WritableByteChannel out, ByteBuffer pending, int version,
+                         Closeable socket) {
+        TransferHandler handler = new TransferHandler(files, in, out, pending, version, socket);
+        try {
+            transfers.execute(handler);
+            watchIdle(handler);
+        } catch (RejectedExecutionException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Shutting down
+            }
+        }
+    }
+
+    // Files being uploaded or downloaded, for the metrics
+    static int activeTransfers() {
+        FileStore store = files;
+        return store == null ? 0 : store.active();
+    }
+
+    private static void joinRoom(ClientConnection connection, String room) {
+        if (!RoomRegistry.isValidName(room) || !rooms.join(room, connection)) {
+            return;
+        }
+        Log.info("%s joined #%s", connection.getUsername(), room);
+        // Echoed to the joiner as well, as confirmation
+        broadcastToRoom(room, roomMessage(Message.Type.JOIN_ROOM, connection.getUsername(), room), null);
+    }
+
+    private static void leaveRoom(ClientConnection connection, String room) {
+        if (room == null || !rooms.leave(room, connection)) {
+            return;
+        }
+        Log.info("%s left #%s", connection.getUsername(), room);
+        Message notice = roomMessage(Message.Type.LEAVE_ROOM, connection.getUsername(), room);
+        connection.sendMessage(notice);
+        broadcastToRoom(room, notice, null);
+    }
+
+    private static Message roomMessage(Message.Type type, String username, String room) {
+        Message message = new Message(type, username, "");
+        message.setRoom(room);
+        return message;
+    }
+
+    // Send to the members of one room only, costs the room's size rather than the server's.
+    // Other nodes pass it on to their own members.
+    static void broadcastToRoom(String room, Message message, ClientConnection exclude) {
+        ByteBuffer frame = encodeShared(message);
+        sendToRoom(room, frame, exclude);
+        publish(frame);
+    }
+
+    private static void sendToRoom(String room, ByteBuffer frame, ClientConnection exclude) {
+        long start = System.nanoTime();
+        ByteBuffer compressed = compressShared(frame);
+        OutboundQueue.Lane lane = OutboundQueue.Lane.of(frame);
+        for (ClientConnection member : rooms.members(room)) {
+            if (member != exclude) {
+                member.sendFrame(frame, compressed, lane);
+            }
+        }
+        Metrics.broadcastNanos.record(System.nanoTime() - start);
+    }
+
+    // Broadcast message to all clients except sender, encoded once for all of them
     public static void broadcast(Message message, String excludeUser) {
-        for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
+        broadcastFrame(encodeShared(message), excludeUser);
+    }
+
+    private static void broadcastFrame(ByteBuffer frame, String excludeUser) {
+        long start = System.nanoTime();
+        ByteBuffer compressed = compressShared(frame);
+        OutboundQueue.Lane lane = OutboundQueue.Lane.of(frame);
+        for (Map.Entry<String, ClientConnection> entry : clients.entrySet()) {
             if (!entry.getKey().equals(excludeUser)) {
-                entry.getValue().sendMessage(message);
+                entry.getValue().sendFrame(frame, compressed, lane);
+            }
+        }
+        Metrics.broadcastNanos.record(System.nanoTime() - start);
+    }
+
+    // Pass a frame on to every other node of the cluster
+    private static void publish(ByteBuffer frame) {
+        ClusterBus bus = cluster;
+        if (bus != null) {
+            bus.publish(frame);
+        }
+    }
+
+    // A frame another node published: chat goes to the clients here it is for as it came,
+    // presence changes update the cluster-wide view. Nothing is published on again.
+    static void fromPeer(String node, ByteBuffer frame, Message message) {
+        Message.Type type = message.getType();
+        TypingRelay relay = typing;
+        if (type == Message.Type.TEXT && relay != null) {
+            relay.stopped(message.getSender(), message.getRoom());
+        }
+        if (type == Message.Type.USER_LIST) {
+            peerSnapshot(node, message.getContent());
+        } else if (type == Message.Type.USER_JOINED) {
+            remoteJoined(node, message.getContent());
+        } else if (type == Message.Type.USER_LEFT) {
+            remoteLeft(node, message.getContent());
+        } else if (type == Message.Type.PRIVATE) {
+            deliverPrivate(message, false);
+        } else if (type == Message.Type.TYPING) {
+            if (relay != null) {
+                relay.typing(message.getSender(), message.getRoom());
+            }
+        } else if (type == Message.Type.TEXT && message.getRoom() == null) {
+            broadcastFrame(frame, null);
+            if (history != null) {
+                history.append(frame);
+            }
+        } else if (type == Message.Type.TEXT || type == Message.Type.JOIN_ROOM || type == Message.Type.LEAVE_ROOM) {
+            sendToRoom(message.getRoom(), frame, null);
+        }
+    }
+
+    // MessageCodec.encode / encodeShared, timed
+    static byte[] encode(Message message) {
+        long start = System.nanoTime();
+        byte[] frame = MessageCodec.encode(message);
+        Metrics.encodeNanos.record(System.nanoTime() - start);
+        return frame;
+    }
+
+    static ByteBuffer encodeShared(Message message) {
+        long start = System.nanoTime();
+        ByteBuffer frame = MessageCodec.encodeShared(message);
+        Metrics.encodeNanos.record(System.nanoTime() - start);
+        return frame;
+    }
+
+    // Whether a client's hello asks for compression and we give it, as the flags to answer with
+    static int compressFlag(MessageCodec.Hello hello) {
+        return ServerConfig.COMPRESSION ? hello.flags() & MessageCodec.COMPRESS_FLAG : 0;
+    }
+
+    // A frame (or page of frames) for a client that takes compressed ones: compressed if it is
+    // big enough and that makes it smaller, else as it is. Timed. A TYPING is always sent as
+    // it is: it isn't numbered for the session, and a compressed frame is.
+    static ByteBuffer compress(ByteBuffer frames) {
+        if (frames.remaining() < ServerConfig.COMPRESS_MIN_BYTES || Compression.isCompressed(frames)
+                || MessageCodec.typeOf(frames) == Message.Type.TYPING) {
+            return frames;
+        }
+        long start = System.nanoTime();
+        ByteBuffer compressed;
+        try {
+            compressed = Compression.compress(frames, Compression.count(frames));
+        } catch (IOException e) {
+            compressed = null;
+        }
+        Metrics.compressNanos.record(System.nanoTime() - start);
+        if (compressed == null) {
+            compressed = frames;
+        } else {
+            Metrics.compressedIn.add(frames.remaining());
+            Metrics.compressedOut.add(compressed.remaining());
+            compressed = compressed.asReadOnlyBuffer();
+        }
+        return compressed;
+    }
+
+    // A frame about to go to many clients, compressed once for those that take compressed
+    // frames (see ClientConnection.sendFrame)
+    private static ByteBuffer compressShared(ByteBuffer frame) {
+        return ServerConfig.COMPRESSION ? compress(frame) : frame;
+    }
+
+    // Everyone logged in
+    static Collection<ClientConnection> connections() {
+        return clients.values();
+    }
+
+    // Ping the connection when it goes quiet and drop it if it stays that way
+    static void watchIdle(IdleReaper.Watched connection) {
+        if (reaper != null) {
+            reaper.watch(connection);
+        }
+    }
+
+    // Send message to specific user, returns false if they are not online
+    public static boolean sendToUser(String username, Message message) {
+        ClientConnection connection = clients.get(username);
+        if (connection == null) {
+            return false;
+        }
+        connection.sendMessage(message);
+        return true;
+    }
+
+    // Lobby messages older than the request's seq, as many as its content asks for,
+    // then the request echoed back so the client knows the page is complete
+    private static void sendHistoryPage(ClientConnection to, Message request) {
+        if (history != null) {
+            int count;
+            try {
+                count = Math.clamp(Integer.parseInt(request.getContent().trim()), 1, ServerConfig.HISTORY_REPLAY_MAX);
+            } catch (NumberFormatException e) {
+                count = ServerConfig.HISTORY_REPLAY;
+            }
+            history.replay(to, 0, request.getSeq() > 0 ? request.getSeq() : Long.MAX_VALUE, count);
+        }
+        to.sendMessage(new Message(Message.Type.HISTORY, "Server", "", System.currentTimeMillis(), request.getSeq()));
+    }
+
+    // A page of lobby messages matching the request (see Message), newest first, each sent as
+    // a SEARCH of its own, then a SEARCH_END with the time to ask for the next page before,
+    // empty if there are no more. Runs on the search threads.
+    private static void search(ClientConnection to, Message request) {
+        if (to.getVersion() < MessageCodec.since(Message.Type.SEARCH_END)) {
+            // Its requests and replies were laid out differently, end the page it waits for
+            to.sendMessage(new Message(Message.Type.NOTICE, "Server", "Search needs a newer client"));
+            to.sendMessage(new Message(Message.Type.SEARCH, "Server", request.getContent(), 0, 0));
+            return;
+        }
+        String[] bounds = request.getContent().split(" ", 3);
+        long since;
+        long before;
+        try {
+            since = Long.parseLong(bounds[0]);
+            before = Long.parseLong(bounds[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            to.sendMessage(new Message(Message.Type.SEARCH_END, "Server", ""));
+            return;
+        }
+        String query = bounds.length > 2 ? bounds[2] : "";
+        ExecutorService executor = searches;
+        if (executor == null) {
+            to.sendMessage(new Message(Message.Type.SEARCH_END, "Server", ""));
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                List<Message> hits = history.search(SearchIndex.query(query), since, before, ServerConfig.SEARCH_PAGE);
+                for (Message hit : hits) {
+                    to.sendMessage(new Message(Message.Type.SEARCH, hit.getSender(), hit.getContent(),
+                            hit.getTimestamp()));
+                }
+                String next = hits.size() >= ServerConfig.SEARCH_PAGE
+                        ? Long.toString(hits.get(hits.size() - 1).getTimestamp()) : "";
+                to.sendMessage(new Message(Message.Type.SEARCH_END, "Server", next));
+                Metrics.searchNanos.record(System.nanoTime() - start);
+            });
+        } catch (RejectedExecutionException e) {
+            to.sendMessage(new Message(Message.Type.NOTICE, "Server", "Search is busy, try again in a moment"));
+        }
+    }
+
+    // Whether a chat message is within the sender's rate limits. The first one dropped gets
+    // the sender a NOTICE, the rest of the flood is dropped quietly until one goes through.
+    private static boolean withinRate(ClientConnection from, Message message) {
+        Session session = from.getSession();
+        if (RateLimits.allowMessage(session.rate, from.getAddress())) {
+            if (session.throttled) {
+                session.throttled = false;
+            }
+            return true;
+        }
+        if (!session.throttled) {
+            session.throttled = true;
+            Log.info("✗ %s is sending too fast, dropping messages", from.getUsername());
+            Message notice = new Message(Message.Type.NOTICE, "Server",
+                    "You are sending messages too fast, some were not delivered", System.currentTimeMillis(),
+                    RateLimits.waitMillis(session.rate, from.getAddress()));
+            notice.setRoom(message.getRoom());
+            from.sendMessage(notice);
+        }
+        return false;
+    }
+
+    // Point to point through the clients map, or held until the recipient logs in
+    private static void sendPrivate(ClientConnection from, Message message) {
+        String recipient = message.getRecipient();
+        if (recipient == null || recipient.isEmpty()) {
+            return;
+        }
+        // Sent as whoever this connection logged in as, not what the client claims
+        Message direct = new Message(Message.Type.PRIVATE, from.getUsername(), message.getContent(),
+                message.getTimestamp());
+        direct.setRecipient(recipient);
+        deliverPrivate(direct, true);
+    }
+
+    // To the recipient if they are here, else to the node they are on (unless the DM came
+    // from another node already), else into their mailbox
+    private static void deliverPrivate(Message direct, boolean forward) {
+        String recipient = direct.getRecipient();
+        // Login takes the mailbox out of the same map, so a DM can't land in it
+        // after the recipient picked it up
+        offlineMessages.compute(recipient, (name, mailbox) -> {
+            if (sendToUser(name, direct)) {
+                return mailbox;
+            }
+            String node = forward ? remoteUsers.get(name) : null;
+            if (node != null) {
+                cluster.send(node, encodeShared(direct));
+                return mailbox;
             }
+            if (mailbox == null) {
+                if (offlineMessages.size() >= ServerConfig.OFFLINE_MAX_MAILBOXES) {
+                    Log.warn("✗ Offline mailboxes full, dropped DM for %s", name);
+                    return null;
+                }
+                mailbox = new ArrayDeque<>();
+            }
+            if (mailbox.size() >= ServerConfig.OFFLINE_QUEUE_SIZE) {
+                mailbox.poll();
+            }
+            mailbox.add(encode(direct));
+            return mailbox;
+        });
+    }
+
+    // Add client, returns false if the username is already taken. historySince is when the
+    // client wants lobby history from (epoch millis), 0 for the last few messages. resume is
+    // "token frames" from a client coming back, empty for a new session.
+    static boolean addClient(String username, ClientConnection connection, long historySince, String resume) {
+        presenceLock.lock();
+        try {
+            if (remoteUsers.containsKey(username)) {
+                return false; // logged in on another node
+            }
+            ClientConnection previous = clients.putIfAbsent(username, connection);
+            if (previous != null) {
+                return resume(username, previous, connection, historySince, resume);
+            }
+            presenceVersion++;
+            Metrics.logins.increment();
+            Log.info("✓ %s connected. Total users: %d", username, clients.size());
+
+            Session session = new Session(ServerConfig.RESUME_FRAMES);
+            connection.attach(session);
+            connection.sendMessage(sessionMessage(session));
+
+            // The newcomer gets the full list, everyone else only the change
+            sendUserList(connection);
+            ByteBuffer joined = encodeShared(presenceMessage(Message.Type.USER_JOINED, username));
+            broadcastFrame(joined, username);
+            publish(joined);
+
+            // Read after joining, so a message racing the login may show up twice but is never missed
+            replayHistory(connection, historySince);
+
+            // Direct messages sent while they were away
+            ArrayDeque<byte[]> mailbox = offlineMessages.remove(username);
+            if (mailbox != null) {
+                for (byte[] frame : mailbox) {
+                    connection.sendFrame(ByteBuffer.wrap(frame));
+                }
+            }
+            return true;
+        } finally {
+            presenceLock.unlock();
         }
     }
 
-    // Send message to specific user
-    public static void sendToUser(String username, Message message) {
-        ClientHandler handler = clients.get(username);
-        if (handler != null) {
-            handler.sendMessage(message);
+    // The name is held by an earlier connection, which is the same client coming back if the
+    // token matches: dropped and held by park(), or not even noticed gone yet. That connection
+    // hands the session over, so as far as anyone else can tell the user never left, and the
+    // client gets only the frames it missed. If those can't all be had, it gets a fresh user
+    // list and the lobby history since historySince instead. An old connection not yet seen
+    // to be gone may still read a frame or two the client then sends again, so those can
+    // arrive twice, never not at all. Called with presenceLock held.
+    private static boolean resume(String username, ClientConnection previous, ClientConnection connection,
+                                  long historySince, String resume) {
+        Session session = previous.getSession();
+        int space = resume.indexOf(' ');
+        if (session == null || space < 0 || !MessageDigest.isEqual(
+                resume.substring(0, space).getBytes(StandardCharsets.UTF_8),
+                session.token.getBytes(StandardCharsets.UTF_8))) {
+            return false;
         }
+        long received;
+        try {
+            received = Long.parseLong(resume.substring(space + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        connection.attach(session);
+        connection.sendMessage(sessionMessage(session));
+        boolean complete = previous.handOver(connection, received);
+        clients.replace(username, previous, connection);
+        rooms.replace(previous, connection);
+        previous.close();
+        Metrics.resumes.increment();
+        if (complete) {
+            Log.info("↻ %s resumed", username);
+        } else {
+            Log.info("↻ %s resumed, missed messages not all kept, sending history", username);
+            sendUserList(connection);
+            replayHistory(connection, historySince);
+        }
+        return true;
     }
 
-    // Add client
-    public static void addClient(String username, ClientHandler handler) {
-        clients.put(username, handler);
-        System.out.println("✓ " + username + " connected. Total users: " + clients.size());
+    // Goodbye to a client that sent something that can't be read, a frame too big say
+    static Message protocolError(IOException e) {
+        return new Message(Message.Type.DISCONNECT, "Server", "Protocol error: " + e.getMessage());
+    }
 
-        // Send updated user list to all clients
-        broadcastUserList();
+    // A logged-in connection dropped without a DISCONNECT. It stays logged in for
+    // RESUME_SECONDS, holding what is sent to it, in case the client comes back. Returns
+    // false if it should leave now instead.
+    static boolean park(String username, ClientConnection connection) {
+        ScheduledExecutorService timer = sessionTimer;
+        if (timer == null || !running) {
+            return false;
+        }
+        presenceLock.lock();
+        try {
+            if (clients.get(username) != connection) {
+                return false; // already resumed elsewhere
+            }
+            connection.hold();
+            timer.schedule(() -> {
+                // Nobody came back for it, the user leaves after all
+                removeClient(username, connection);
+                connection.close();
+            }, ServerConfig.RESUME_SECONDS, TimeUnit.SECONDS);
+            Log.info("… %s dropped, holding the session for %ds", username, ServerConfig.RESUME_SECONDS);
+            return true;
+        } finally {
+            presenceLock.unlock();
+        }
+    }
 
-        // Notify others that user joined
-        broadcast(new Message(Message.Type.USER_JOINED, "Server", username), username);
+    private static void replayHistory(ClientConnection connection, long since) {
+        if (history != null) {
+            history.replay(connection, since, Long.MAX_VALUE,
+                    since > 0 ? ServerConfig.HISTORY_REPLAY_MAX : ServerConfig.HISTORY_REPLAY);
+        }
     }
 
-    // Remove client
-    public static void removeClient(String username) {
-        clients.remove(username);
-        System.out.println("✗ " + username + " disconnected. Total users: " + clients.size());
+    // Remove client, unless the name has since been taken by another connection
+    static void removeClient(String username, ClientConnection connection) {
+        presenceLock.lock();
+        try {
+            if (!clients.remove(username, connection)) {
+                return;
+            }
+            // The global USER_LEFT below tells room members too
+            Set<String> joined = rooms.leaveAll(connection);
+            TypingRelay relay = typing;
+            if (relay != null) {
+                relay.stopped(username, null);
+                for (String room : joined) {
+                    relay.stopped(username, room);
+                }
+            }
+            presenceVersion++;
+            Log.info("✗ %s disconnected. Total users: %d", username, clients.size());
+            if (!running) {
+                return;
+            }
 
-        // Send updated user list to all clients
-        broadcastUserList();
+            // Notify others that user left
+            ByteBuffer left = encodeShared(presenceMessage(Message.Type.USER_LEFT, username));
+            broadcastFrame(left, null);
+            publish(left);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
 
-        // Notify others that user left
-        broadcast(new Message(Message.Type.USER_LEFT, "Server", username), null);
+    // Send the full list of online users, on every node, to one client
+    private static void sendUserList(ClientConnection connection) {
+        presenceLock.lock();
+        try {
+            List<String> users = new ArrayList<>(clients.keySet());
+            users.addAll(remoteUsers.keySet());
+            connection.sendMessage(presenceMessage(Message.Type.USER_LIST, String.join(",", users)));
+        } finally {
+            presenceLock.unlock();
+        }
     }
 
-    // Send list of online users to all clients
-    private static void broadcastUserList() {
-        String userList = String.join(",", clients.keySet());
-        Message listMessage = new Message(Message.Type.USER_LIST, "Server", userList);
+    // A link to a peer is up. start gets this node's users for the peer and begins passing
+    // frames to it, with presenceLock held so no login or logout falls in between.
+    static void linkUp(Consumer<ByteBuffer> start) {
+        presenceLock.lock();
+        try {
+            start.accept(encodeShared(new Message(Message.Type.USER_LIST, cluster.node(),
+                    String.join(",", clients.keySet()))));
+        } finally {
+            presenceLock.unlock();
+        }
+    }
 
-        for (ClientHandler handler : clients.values()) {
-            handler.sendMessage(listMessage);
+    // A node's full user list, sent as its link comes up
+    private static void peerSnapshot(String node, String list) {
+        Set<String> users = new HashSet<>(Arrays.asList(list.split(",")));
+        users.remove("");
+        presenceLock.lock();
+        try {
+            for (Map.Entry<String, String> entry : remoteUsers.entrySet()) {
+                if (entry.getValue().equals(node) && !users.contains(entry.getKey())) {
+                    remoteLeft(node, entry.getKey());
+                }
+            }
+            for (String username : users) {
+                remoteJoined(node, username);
+            }
+        } finally {
+            presenceLock.unlock();
         }
     }
 
+    // Its link dropped, as far as we can tell its users are gone
+    static void peerGone(String node) {
+        peerSnapshot(node, "");
+    }
+
+    // A user logged in on another node. Two nodes can let the same name in before either
+    // hears of the other: the user on the node whose name sorts first keeps it, everywhere.
+    private static void remoteJoined(String node, String username) {
+        presenceLock.lock();
+        try {
+            String current = remoteUsers.get(username);
+            if (node.equals(current) || (current != null && current.compareTo(node) < 0)) {
+                return;
+            }
+            ClientConnection local = clients.get(username);
+            if (local != null) {
+                if (cluster.node().compareTo(node) < 0) {
+                    return; // ours stays, theirs is dropped over there
+                }
+                Log.info("✗ %s also logged in on %s, which keeps the name", username, node);
+                removeClient(username, local);
+                local.sendMessage(new Message(Message.Type.DISCONNECT, "Server", "Username already taken"));
+                local.close();
+            }
+            remoteUsers.put(username, node);
+            if (current == null) {
+                presenceVersion++;
+                broadcast(presenceMessage(Message.Type.USER_JOINED, username), null);
+            }
 
-    static class ClientHandler implements Runnable {
-        private Socket socket;
-        private ObjectOutputStream out;
-        private ObjectInputStream in;
+            // Direct messages held here while they were away
+            ArrayDeque<byte[]> mailbox = offlineMessages.remove(username);
+            if (mailbox != null) {
+                for (byte[] frame : mailbox) {
+                    cluster.send(node, ByteBuffer.wrap(frame));
+                }
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    private static void remoteLeft(String node, String username) {
+        presenceLock.lock();
+        try {
+            if (remoteUsers.remove(username, node)) {
+                presenceVersion++;
+                broadcast(presenceMessage(Message.Type.USER_LEFT, username), null);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // Peers this node is linked to, for the metrics
+    static int clusterPeersLinked() {
+        ClusterBus bus = cluster;
+        return bus == null ? 0 : bus.linked();
+    }
+
+    // The token to resume with, and how much the client sent that got here
+    private static Message sessionMessage(Session session) {
+        return new Message(Message.Type.SESSION, "Server", session.token, System.currentTimeMillis(),
+                session.read.get());
+    }
+
+    private static Message presenceMessage(Message.Type type, String content) {
+        return new Message(type, "Server", content, System.currentTimeMillis(), presenceVersion);
+    }
+
+
+    static class ClientHandler implements Runnable, ClientConnection, IdleReaper.Watched {
+        private volatile Socket socket;
+        private WritableByteChannel out;
+        // Under out over TLS, flushed once per batch so each becomes as few records as it can
+        private OutputStream buffered;
+        private DataInputStream in;
+        private final FrameReader reader = new FrameReader();
+        private volatile boolean compress;
+        // The protocol version agreed on in the hello
+        private volatile int version;
         private String username;
+        private final OutboundQueue outbound =
+                new OutboundQueue(ServerConfig.OUTBOUND_QUEUE_SIZE, ServerConfig.OUTBOUND_OVERFLOW, ServerConfig.OUTBOUND_LANES);
+        private volatile boolean writerStarted;
+        private volatile long lastRead = System.nanoTime();
+        // The server closed the socket itself (too slow, idle), so the read failing after
+        // isn't a lost connection
+        private volatile boolean dropped;
+        // Set if the hello asked for a file transfer, which then runs on this thread
+        private volatile TransferHandler transfer;
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -101,67 +956,264 @@ public class ChatServer {
 
         @Override
         public void run() {
+            handlers.add(this);
+            watchIdle(this);
+            boolean lost = false;
             try {
-                // Initialize streams
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                // Initialize streams. Over TLS they go through an SSLSocket layered on the plain
+                // one, and the handshake runs on this thread when the hello is read.
+                if (tls != null) {
+                    SSLSocket secure = (SSLSocket) tls.getSocketFactory().createSocket(socket, null, true);
+                    secure.setSSLParameters(Tls.parameters(tls, ServerConfig.TLS_CIPHERS, false));
+                    socket = secure;
+                    buffered = new BufferedOutputStream(socket.getOutputStream(), ServerConfig.FLUSH_MAX_BYTES);
+                    out = Channels.newChannel(buffered);
+                } else {
+                    out = socket.getChannel();
+                }
+                // The hello is read unbuffered, so a transfer connection can go on reading the channel
+                InputStream raw = Metrics.counting(socket.getInputStream());
+                MessageCodec.Hello hello = MessageCodec.readHello(new DataInputStream(raw));
+                version = MessageCodec.negotiate(hello.version());
+                if ((hello.flags() & MessageCodec.TRANSFER_FLAG) != 0) {
+                    // Over TLS the bytes have to go through the SSLSocket's streams
+                    transfer = new TransferHandler(files,
+                            tls != null ? Channels.newChannel(raw) : socket.getChannel(),
+                            tls != null ? Channels.newChannel(socket.getOutputStream()) : socket.getChannel(),
+                            ByteBuffer.allocate(0), version, socket);
+                    transfer.run();
+                    return;
+                }
+                in = new DataInputStream(new BufferedInputStream(raw));
+
+                // Agree on a protocol version before any frame, written directly as the writer isn't running yet
+                int flags = compressFlag(hello);
+                compress = flags != 0;
+                write(ByteBuffer.wrap(MessageCodec.hello(version, flags)));
+                flush();
+                if (version == 0) {
+                    return;
+                }
 
                 // Wait for CONNECT message with username
-                Message connectMsg = (Message) in.readObject();
+                Message connectMsg = reader.read(in);
+                lastRead = System.nanoTime();
                 if (connectMsg.getType() == Message.Type.CONNECT) {
-                    username = connectMsg.getSender();
+                    // Logging in queues the user list for us, so the writer has to be running
+                    writerStarted = true;
+                    handlerExecutor.execute(this::writeLoop);
 
                     // Check if username already exists
-                    if (clients.containsKey(username)) {
+                    if (!addClient(connectMsg.getSender(), this, connectMsg.getSeq(), connectMsg.getContent())) {
                         sendMessage(new Message(Message.Type.DISCONNECT, "Server",
                                 "Username already taken"));
-                        socket.close();
                         return;
                     }
-
-                    addClient(username, this);
+                    username = connectMsg.getSender();
 
                     // Main message loop
-                    while (true) {
-                        Message message = (Message) in.readObject();
-
-                        if (message.getType() == Message.Type.DISCONNECT) {
-                            break;
-                        } else if (message.getType() == Message.Type.TEXT) {
-                            System.out.println(username + ": " + message.getContent());
-                            // Broadcast to all other clients
-                            broadcast(message, username);
-                        }
-                    }
+                    Message message;
+                    do {
+                        message = reader.read(in);
+                        lastRead = System.nanoTime();
+                    } while (handleMessage(this, message));
                 }
 
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Connection lost: " + username);
+            } catch (StreamCorruptedException e) {
+                // Not the network's doing, the client broke the protocol. Told why once logged
+                // in (the writer sends it on the way out), so it doesn't come back with the same.
+                Log.warn("✗ %s sent a bad frame, dropping: %s",
+                        username != null ? username : socket.getInetAddress().getHostAddress(), e.getMessage());
+                if (writerStarted) {
+                    sendMessage(protocolError(e));
+                }
+            } catch (IOException e) {
+                lost = !dropped;
+                if (running && lost) {
+                    Log.info("Connection lost: %s", username);
+                }
             } finally {
-                cleanup();
+                cleanup(lost);
             }
         }
 
-        public void sendMessage(Message message) {
+        // Dedicated writer: drains the outbound queue until it is closed, then closes the socket.
+        // Whatever piled up since the last write goes out in a single gathering write.
+        private void writeLoop() {
+            ByteBuffer[] batch = new ByteBuffer[ServerConfig.MAX_BATCH_FRAMES];
             try {
-                out.writeObject(message);
-                out.flush();
+                int count;
+                while ((count = outbound.takeBatch(batch, ServerConfig.FLUSH_MAX_BYTES,
+                        ServerConfig.FLUSH_MAX_LATENCY_NANOS)) > 0) {
+                    Metrics.bytesOut.add(write(batch, count));
+                    Metrics.messagesOut.add(count);
+                    Arrays.fill(batch, 0, count, null);
+                }
             } catch (IOException e) {
-                System.err.println("Error sending to " + username);
+                Log.warn("Error sending to %s", username);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeSocket();
             }
         }
 
-        private void cleanup() {
-            if (username != null) {
-                removeClient(username);
+        private long write(ByteBuffer frame) throws IOException {
+            long written = 0;
+            while (frame.hasRemaining()) {
+                written += out.write(frame);
+            }
+            return written;
+        }
+
+        // Returns the bytes written
+        private long write(ByteBuffer[] batch, int count) throws IOException {
+            long written = 0;
+            if (out instanceof GatheringByteChannel gathering) {
+                while (batch[count - 1].hasRemaining()) {
+                    written += gathering.write(batch, 0, count);
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    written += write(batch[i]);
+                }
+                flush();
+            }
+            return written;
+        }
+
+        private void flush() throws IOException {
+            if (buffered != null) {
+                buffered.flush();
+            }
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public InetAddress getAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            sendFrame(ByteBuffer.wrap(encode(message)));
+        }
+
+        // Never blocks the caller, the writer thread does the socket write
+        @Override
+        public void sendFrame(ByteBuffer frame, ByteBuffer compressed, OutboundQueue.Lane lane) {
+            Message.Type type = MessageCodec.typeOf(frame);
+            if (type != null && MessageCodec.since(type) > version) {
+                return;
+            }
+            if (compress) {
+                frame = compressed != null ? compressed : compress(frame);
+            }
+            if (!outbound.offer(frame.duplicate(), type, lane)) {
+                Log.warn("✗ %s is too slow, disconnecting", username);
+                dropped = true;
+                closeSocket();
+            }
+        }
+
+        @Override
+        public int queueDepth() {
+            return outbound.size();
+        }
+
+        @Override
+        public long lastReadNanos() {
+            TransferHandler handler = transfer;
+            return handler != null ? handler.lastReadNanos() : lastRead;
+        }
+
+        @Override
+        public boolean canPing() {
+            return username != null;
+        }
+
+        @Override
+        public void ping() {
+            sendFrame(PING_FRAME);
+        }
+
+        // The blocked read fails and the handler cleans up, the user leaving at once
+        @Override
+        public void reap() {
+            Log.info("✗ %s idle too long, dropping", username != null ? username : "Connection before login");
+            dropped = true;
+            closeSocket();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public Session getSession() {
+            return outbound.session();
+        }
+
+        @Override
+        public void attach(Session session) {
+            outbound.attach(session);
+        }
+
+        // The writer stops and closes the socket
+        @Override
+        public void hold() {
+            outbound.hold();
+        }
+
+        @Override
+        public boolean handOver(ClientConnection successor, long received) {
+            return outbound.handOver(successor, received);
+        }
+
+        // The writer closes the socket once everything queued is written
+        @Override
+        public void close() {
+            if (writerStarted) {
+                outbound.close();
+            } else {
+                closeSocket();
             }
+        }
+
+        private void closeSocket() {
             try {
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (socket != null) socket.close();
+                socket.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+
+        // lost: the connection failed under us, not closed by either side on purpose, so the
+        // client may resume the session on a new connection
+        private void cleanup(boolean lost) {
+            handlers.remove(this);
+            if (lost && username != null && park(username, this)) {
+                closeSocket();
+                return;
+            }
+            if (username != null) {
+                removeClient(username, this);
+            }
+            // Let the writer flush a goodbye, unless the connection is already gone
+            close();
+            if (lost) {
+                closeSocket();
+            }
+        }
     }
 }
@@ -0,0 +1,49 @@
+package com.ilyun.jchat.server;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import com.ilyun.jchat.Message;
+
+// A connected client, independent of how its socket is served
+interface ClientConnection {
+    String getUsername();
+
+    // Where it connected from, what per address limits count against
+    InetAddress getAddress();
+
+    void sendMessage(Message message);
+
+    // Send an already encoded frame, shared with other recipients and never modified
+    default void sendFrame(ByteBuffer frame) {
+        sendFrame(frame, null, OutboundQueue.Lane.of(frame));
+    }
+
+    // Same, on the given lane rather than the one its type goes in
+    default void sendFrame(ByteBuffer frame, OutboundQueue.Lane lane) {
+        sendFrame(frame, null, lane);
+    }
+
+    // Same, with the frame as ChatServer.compress gives it when it goes to many clients and
+    // was compressed once for all of them, null to compress it here if the client takes that
+    void sendFrame(ByteBuffer frame, ByteBuffer compressed, OutboundQueue.Lane lane);
+
+    // Frames waiting to be written
+    int queueDepth();
+
+    // Close once already queued messages have been written
+    void close();
+
+    // The protocol version agreed on in the hello
+    int getVersion();
+
+    // Session its frames are numbered for, null until logged in
+    Session getSession();
+
+    void attach(Session session);
+
+    // The socket is gone but the session is kept for a while: hold what is sent for a resume
+    void hold();
+
+    // The client resumed on successor, which gets what it missed (see OutboundQueue.handOver)
+    boolean handOver(ClientConnection successor, long received);
+}
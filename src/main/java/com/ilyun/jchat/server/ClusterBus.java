@@ -0,0 +1,283 @@
+package com.ilyun.jchat.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// Links this node to the other server nodes so they serve one chat between them. Every node
+// dials every peer and pushes what happens on it down that link: lobby and room messages and
+// room joins and leaves as the very frames its own clients get, direct messages for users
+// who are on that peer, and logins and logouts. It hears the peers the same way, on the links
+// they dial in. A link starts with the dialling node's full user list, so a peer coming back
+// catches up on who is online; chat sent while a link was down is not repeated.
+//
+// Links speak the client protocol: the hello with NODE_FLAG set, a CONNECT from each side
+// naming its node, then frames one way only. The dialling side sends a PING every few
+// seconds, a link silent for three of those is taken for dead and its node's users leave.
+// Nodes don't authenticate each other, the bus belongs on a private network.
+final class ClusterBus {
+    private static final long HEARTBEAT_MILLIS = 5_000;
+    private static final int SILENCE_MILLIS = (int) (3 * HEARTBEAT_MILLIS);
+    private static final long RETRY_MIN_MILLIS = 500;
+    private static final long RETRY_MAX_MILLIS = 30_000;
+
+    static final LongAdder framesSent = new LongAdder();
+    static final LongAdder framesReceived = new LongAdder();
+
+    private final String node;
+    private final List<Peer> peers = new ArrayList<>();
+    // The live link each peer dialled in on, by node name
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ServerSocket listener;
+    private volatile boolean running = true;
+
+    ClusterBus(String node, List<InetSocketAddress> peerAddresses) {
+        this.node = node;
+        for (InetSocketAddress address : peerAddresses) {
+            peers.add(new Peer(address));
+        }
+    }
+
+    String node() {
+        return node;
+    }
+
+    // Listen for peers on address and start dialling them
+    void start(InetSocketAddress address) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(address);
+        listener = socket;
+        start(new Thread(this::acceptLoop, "cluster-accept"));
+        for (Peer peer : peers) {
+            start(new Thread(peer, "cluster-peer-" + peer));
+        }
+        heartbeat.scheduleAtFixedRate(() -> publish(ChatServer.PING_FRAME),
+                HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        Log.info("Cluster node %s listening on %s:%d, peers %s", node, address.getHostString(), address.getPort(), peers);
+    }
+
+    private static void start(Thread thread) {
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // To every linked peer, never blocks
+    void publish(ByteBuffer frame) {
+        for (Peer peer : peers) {
+            peer.send(frame);
+        }
+    }
+
+    // To one node only, dropped if it isn't linked
+    void send(String node, ByteBuffer frame) {
+        for (Peer peer : peers) {
+            if (node.equals(peer.node)) {
+                peer.send(frame);
+            }
+        }
+    }
+
+    // Peers this node is currently pushing to
+    int linked() {
+        int linked = 0;
+        for (Peer peer : peers) {
+            if (peer.queue != null) {
+                linked++;
+            }
+        }
+        return linked;
+    }
+
+    void stop() {
+        running = false;
+        heartbeat.shutdownNow();
+        closeQuietly(listener);
+        for (Peer peer : peers) {
+            peer.stop();
+        }
+        for (Socket socket : inbound.values()) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                start(new Thread(() -> serveLink(socket), "cluster-link-" + socket.getRemoteSocketAddress()));
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("Cluster accept failed: %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // A peer's link in: everything it sends goes to ChatServer.fromPeer until it drops,
+    // then its users are gone
+    private void serveLink(Socket socket) {
+        String peer = null;
+        try (socket) {
+            socket.setSoTimeout(SILENCE_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            MessageCodec.Hello hello = MessageCodec.readHello(in);
+            int version = (hello.flags() & MessageCodec.NODE_FLAG) != 0 && hello.version() == MessageCodec.PROTOCOL_VERSION
+                    ? MessageCodec.PROTOCOL_VERSION : 0;
+            out.write(MessageCodec.hello(version, MessageCodec.NODE_FLAG));
+            if (version == 0) {
+                return;
+            }
+            Message connect = MessageCodec.readFrame(in);
+            MessageCodec.writeFrame(out, new Message(Message.Type.CONNECT, node, ""));
+            if (connect.getType() != Message.Type.CONNECT || connect.getSender().equals(node)) {
+                return; // a node dialling itself, which peer lists shared by all nodes make happen
+            }
+            peer = connect.getSender();
+            closeQuietly(inbound.put(peer, socket));
+            Log.info("⇄ %s linked in from %s", peer, socket.getRemoteSocketAddress());
+
+            while (running) {
+                ByteBuffer frame = MessageCodec.readRawFrame(in);
+                framesReceived.increment();
+                ChatServer.fromPeer(peer, frame.asReadOnlyBuffer(), MessageCodec.poll(frame.duplicate()));
+            }
+        } catch (IOException e) {
+            if (peer != null && running) {
+                Log.warn("✗ Lost cluster link from %s", peer);
+            }
+        } finally {
+            // Unless a newer link from the same node took over
+            if (peer != null && inbound.remove(peer, socket)) {
+                ChatServer.peerGone(peer);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // Going away either way
+        }
+    }
+
+    // The link out to one peer, dialled again with backoff whenever it drops
+    private final class Peer implements Runnable {
+        final InetSocketAddress address;
+        // Null while the link is down, frames for the peer are then dropped
+        volatile OutboundQueue queue;
+        // Learnt from the peer's CONNECT
+        volatile String node;
+        private volatile SocketChannel channel;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void send(ByteBuffer frame) {
+            OutboundQueue queue = this.queue;
+            if (queue != null && !queue.offer(frame.duplicate(), MessageCodec.typeOf(frame))) {
+                Log.warn("✗ Cluster peer %s is too slow, linking again", node);
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            long delay = RETRY_MIN_MILLIS;
+            while (running) {
+                try (SocketChannel channel = SocketChannel.open()) {
+                    this.channel = channel;
+                    channel.connect(new InetSocketAddress(address.getHostString(), address.getPort()));
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().setSoTimeout(SILENCE_MILLIS);
+                    OutputStream out = channel.socket().getOutputStream();
+                    out.write(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, MessageCodec.NODE_FLAG));
+                    MessageCodec.writeFrame(out, new Message(Message.Type.CONNECT, ClusterBus.this.node, ""));
+                    DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    if (MessageCodec.readHello(in).version() != MessageCodec.PROTOCOL_VERSION) {
+                        throw new IOException("not at protocol version " + MessageCodec.PROTOCOL_VERSION);
+                    }
+                    node = MessageCodec.readFrame(in).getSender();
+                    if (node.equals(ClusterBus.this.node)) {
+                        Log.debug("%s is this node, not linking to it", this);
+                        return;
+                    }
+
+                    // The user list goes first, and whatever changes after it follows
+                    OutboundQueue linked = new OutboundQueue(ServerConfig.CLUSTER_QUEUE_SIZE,
+                            OutboundQueue.OverflowPolicy.DISCONNECT);
+                    ChatServer.linkUp(users -> {
+                        linked.offer(users, Message.Type.USER_LIST);
+                        queue = linked;
+                    });
+                    Log.info("⇄ Linked to %s at %s", node, this);
+                    delay = RETRY_MIN_MILLIS;
+                    writeLoop(channel, linked);
+                } catch (IOException | UnresolvedAddressException e) {
+                    if (queue != null && running) {
+                        Log.warn("✗ Lost cluster link to %s", node);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    OutboundQueue linked = queue;
+                    queue = null;
+                    if (linked != null) {
+                        linked.close();
+                    }
+                }
+
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delay = Math.min(delay * 2, RETRY_MAX_MILLIS);
+            }
+        }
+
+        // Until the queue is closed or a write fails
+        private void writeLoop(SocketChannel channel, OutboundQueue linked) throws IOException, InterruptedException {
+            ByteBuffer[] batch = new ByteBuffer[ServerConfig.MAX_BATCH_FRAMES];
+            int count;
+            while ((count = linked.takeBatch(batch, ServerConfig.FLUSH_MAX_BYTES, 0)) > 0) {
+                while (batch[count - 1].hasRemaining()) {
+                    channel.write(batch, 0, count);
+                }
+                framesSent.add(count);
+                Arrays.fill(batch, 0, count, null);
+            }
+        }
+
+        void stop() {
+            OutboundQueue linked = queue;
+            if (linked != null) {
+                linked.close();
+            }
+            closeQuietly(channel);
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Files shared into the chat, one file each in the directory, named by a random id so
+// nobody can fetch one without having been shown its reference. An upload is spooled to
+// <id>.part and renamed to <id> once all of it is in. What an upload is and who it is for
+// is only kept in memory: one cut off can be resumed until the server restarts, after which
+// its part file is deleted. Old files are swept out as transfers start, at most once a minute.
+final class FileStore {
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder shared = new LongAdder();
+
+    private static final String PART = ".part";
+    private static final int ID_LENGTH = 32;
+    private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+    // An upload nobody has resumed for this long is given up
+    private static final long ABANDONED_MILLIS = 3_600_000;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Path dir;
+    private final long maxFileBytes;
+    private final long maxBytes;
+    private final long retentionMillis;
+    private final int maxTransfers;
+    private final AtomicInteger active = new AtomicInteger();
+    // On disk, plus the rest of every upload in progress
+    private final AtomicLong used = new AtomicLong();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    static final class Upload {
+        final String id;
+        final String owner;
+        final String name;
+        final long size;
+        // Where it is shared to, as for a chat message: a room, a user, or both null for the lobby
+        final String room;
+        final String recipient;
+        final Path part;
+        volatile long received;
+        volatile long touched = System.currentTimeMillis();
+        // A connection is receiving it, so a resume can't write into it at the same time
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        Upload(String id, String owner, String name, long size, String room, String recipient, Path part) {
+            this.id = id;
+            this.owner = owner;
+            this.name = name;
+            this.size = size;
+            this.room = room;
+            this.recipient = recipient;
+            this.part = part;
+        }
+
+        boolean claim() {
+            return busy.compareAndSet(false, true);
+        }
+
+        void release() {
+            touched = System.currentTimeMillis();
+            busy.set(false);
+        }
+    }
+
+    FileStore(Path dir, long maxFileBytes, long maxBytes, long retentionMillis, int maxTransfers) throws IOException {
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.maxBytes = maxBytes;
+        this.retentionMillis = retentionMillis;
+        this.maxTransfers = maxTransfers;
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                if (file.getFileName().toString().endsWith(PART)) {
+                    Files.deleteIfExists(file); // nothing left to resume it with
+                } else if (isId(file.getFileName().toString())) {
+                    used.addAndGet(Files.size(file));
+                }
+            }
+        }
+        sweep();
+    }
+
+    long maxFileBytes() {
+        return maxFileBytes;
+    }
+
+    // A transfer may start, false if too many are going already
+    boolean begin() {
+        if (active.incrementAndGet() > maxTransfers) {
+            active.decrementAndGet();
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL_MILLIS && lastSweep.compareAndSet(last, now)) {
+            sweep();
+        }
+        return true;
+    }
+
+    void end() {
+        active.decrementAndGet();
+    }
+
+    int active() {
+        return active.get();
+    }
+
+    // A new upload, claimed by the caller, with room kept for all of it. Null if the store is full.
+    Upload create(String owner, String name, long size, String room, String recipient) {
+        if (used.addAndGet(size) > maxBytes) {
+            used.addAndGet(-size);
+            return null;
+        }
+        String id = newId();
+        Upload upload = new Upload(id, owner, name, size, room, recipient, dir.resolve(id + PART));
+        upload.claim();
+        uploads.put(id, upload);
+        return upload;
+    }
+
+    // An upload in progress, null if there is none by that id
+    Upload upload(String id) {
+        return uploads.get(id);
+    }
+
+    // Where the upload's bytes go, the part file so far kept as it is
+    FileChannel open(Upload upload) throws IOException {
+        return FileChannel.open(upload.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    // All of it is in: on disk for good, then ready to be fetched
+    void complete(Upload upload, FileChannel channel) throws IOException {
+        channel.force(false);
+        Files.move(upload.part, dir.resolve(upload.id), StandardCopyOption.ATOMIC_MOVE);
+        uploads.remove(upload.id);
+        shared.increment();
+    }
+
+    // A complete file, null if there is none by that id
+    Path file(String id) {
+        if (!isId(id)) {
+            return null;
+        }
+        Path file = dir.resolve(id);
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    // Files past the retention time and uploads given up on, and the room they took
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Upload upload : uploads.values()) {
+            if (now - upload.touched >= ABANDONED_MILLIS && upload.claim()) {
+                uploads.remove(upload.id);
+                delete(upload.part);
+                used.addAndGet(-upload.size);
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                if (isId(file.getFileName().toString())
+                        && now - Files.getLastModifiedTime(file).toMillis() >= retentionMillis) {
+                    long size = Files.size(file);
+                    if (delete(file)) {
+                        used.addAndGet(-size);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Sweeping %s failed: %s", dir, e.getMessage());
+        }
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Log.warn("Could not delete %s: %s", file, e.getMessage());
+            return false;
+        }
+    }
+
+    private static String newId() {
+        byte[] bytes = new byte[ID_LENGTH / 2];
+        random.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    // Also what keeps a requested id from naming anything outside the directory
+    private static boolean isId(String id) {
+        if (id.length() != ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.digit(id.charAt(i), 16) < 0 || Character.isUpperCase(id.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
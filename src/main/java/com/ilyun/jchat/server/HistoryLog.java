@@ -0,0 +1,470 @@
+package com.ilyun.jchat.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// Append-only message history. Frames are stored exactly as they go on the wire, in
+// segment files written through a MappedByteBuffer, so replaying history to a client
+// is a slice of the mapping handed to its outbound queue; nothing gets decoded.
+//
+// Segments are named after the number of their first record and rolled once full.
+// Each has a sparse index (one entry per INDEX_INTERVAL bytes) of record number,
+// timestamp and position, rebuilt by scanning the segment when the log is opened.
+// Searchable logs also keep a SearchIndex per segment, built the same way and dropped
+// with the segment.
+//
+// Handlers only enqueue. One writer thread appends whatever piled up and forces the
+// batch to disk with a single msync (group commit), then makes it visible to readers.
+class HistoryLog {
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int MAX_BATCH = 4096;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final ByteBuffer END_OF_LOG = ByteBuffer.allocate(0);
+
+    // Totals, for monitoring
+    static final LongAdder appended = new LongAdder();
+    static final LongAdder dropped = new LongAdder();
+    static final LongAdder commits = new LongAdder();
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long retentionMillis;
+    private final boolean searchable;
+    private final BlockingQueue<ByteBuffer> pending;
+    // Oldest first, the last one is being written to. Readers iterate a snapshot.
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Thread writer;
+    private long lastRetentionCheck;
+
+    HistoryLog(Path dir, int segmentBytes, long maxBytes, long retentionMillis, int queueSize, boolean searchable)
+            throws IOException {
+        if (segmentBytes < 2 * MessageCodec.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Segment size must be at least " + 2 * MessageCodec.MAX_FRAME_SIZE);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.retentionMillis = retentionMillis;
+        this.searchable = searchable;
+        this.pending = new ArrayBlockingQueue<>(queueSize);
+
+        Files.createDirectories(dir);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(dir)) {
+            files = listing.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+        for (int i = 0; i < files.size(); i++) {
+            segments.add(Segment.open(files.get(i), i == files.size() - 1 ? segmentBytes : 0, searchable));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(dir, 0, segmentBytes, searchable));
+        }
+        enforceRetention();
+
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Never blocks; if the writer has fallen that far behind the message isn't logged
+    void append(ByteBuffer frame) {
+        if (!pending.offer(frame)) {
+            dropped.increment();
+        }
+    }
+
+    // Queue history for a client: the newest messages after since and before before
+    // (epoch millis, 0 and Long.MAX_VALUE for no limit), at most max of them.
+    // One slice per segment, no copying, on the bulk lane.
+    void replay(ClientConnection to, long since, long before, int max) {
+        List<Segment> snapshot = List.copyOf(segments);
+
+        // Where the range ends: the first record at or after before
+        int endSegment = snapshot.size() - 1;
+        long endCommitted = snapshot.get(endSegment).commit;
+        for (int i = 0; i < snapshot.size(); i++) {
+            Segment segment = snapshot.get(i);
+            if (segment.lastTimestamp >= before) {
+                endSegment = i;
+                long committed = segment.commit;
+                endCommitted = segment.seek(before - 1, committed);
+                break;
+            }
+        }
+        long startRecord = snapshot.get(endSegment).baseRecord + Segment.records(endCommitted) - max;
+
+        boolean started = false;
+        for (int i = 0; i <= endSegment; i++) {
+            Segment segment = snapshot.get(i);
+            long committed = i == endSegment ? endCommitted : segment.commit;
+            int end = Segment.end(committed);
+            if (!started) {
+                if (segment.baseRecord + Segment.records(committed) <= startRecord || segment.lastTimestamp <= since) {
+                    continue;
+                }
+                started = true;
+                int from = Math.max(segment.positionOf(startRecord, committed),
+                        Segment.end(segment.seek(since, committed)));
+                sendRange(to, segment, from, end);
+            } else {
+                sendRange(to, segment, 0, end);
+            }
+        }
+    }
+
+    // Messages holding every term (see SearchIndex.query), newest first: max of them after
+    // since and before before (epoch millis, 0 and Long.MAX_VALUE for no limit). A page
+    // doesn't stop partway through a millisecond, it runs over max to finish it instead,
+    // so the next page is simply the one before the oldest timestamp in this one.
+    List<Message> search(List<String> terms, long since, long before, int max) {
+        List<Message> hits = new ArrayList<>();
+        List<Segment> snapshot = List.copyOf(segments);
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            Segment segment = snapshot.get(i);
+            SearchIndex index = segment.search;
+            if (index == null || segment.lastTimestamp <= since
+                    || hits.size() >= max && segment.lastTimestamp < hits.get(hits.size() - 1).getTimestamp()) {
+                break;
+            }
+            long committed = segment.commit;
+            int records = (int) Segment.records(committed);
+            IntPredicate hit = doc -> {
+                if (hits.size() >= max && index.timestamp(doc) != hits.get(hits.size() - 1).getTimestamp()) {
+                    return false;
+                }
+                Message message = segment.read(doc, committed);
+                if (message != null) {
+                    hits.add(message);
+                }
+                return true;
+            };
+            if (!index.search(terms, index.countUpTo(since, records), index.countUpTo(before - 1, records), hit)) {
+                break;
+            }
+        }
+        return hits;
+    }
+
+    private static void sendRange(ClientConnection to, Segment segment, int from, int end) {
+        if (end > from) {
+            to.sendFrame(segment.map.slice(from, end - from).asReadOnlyBuffer(), OutboundQueue.Lane.BULK);
+        }
+    }
+
+    // Write out everything still queued and stop
+    void close(long timeoutMillis) throws InterruptedException, IOException {
+        if (pending.offer(END_OF_LOG, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            writer.join(timeoutMillis);
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>(MAX_BATCH);
+        boolean closing = false;
+        try {
+            while (!closing) {
+                ByteBuffer first = pending.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                    for (ByteBuffer frame : batch) {
+                        if (frame == END_OF_LOG) {
+                            closing = true;
+                        } else {
+                            write(frame);
+                        }
+                    }
+                    batch.clear();
+                    commit();
+                }
+                if (System.currentTimeMillis() - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                    enforceRetention();
+                }
+            }
+        } catch (IOException e) {
+            Log.error("History log stopped: %s", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        Segment active = segments.get(segments.size() - 1);
+        if (active.written + frame.remaining() > active.map.capacity()) {
+            commit();
+            active.seal();
+            active = Segment.create(dir, active.baseRecord + active.writtenRecords, segmentBytes,
+                    searchable);
+            segments.add(active);
+            enforceRetention();
+        }
+        active.append(frame, MessageCodec.timestampOf(frame));
+        appended.increment();
+    }
+
+    // Force the batch to disk, then let readers see it
+    private void commit() {
+        Segment active = segments.get(segments.size() - 1);
+        if (active.written > Segment.end(active.commit)) {
+            active.map.force(active.forced, active.written - active.forced);
+            active.forced = active.written;
+            active.publish();
+            commits.increment();
+        }
+    }
+
+    // Drop the oldest sealed segments while they are past the age limit or the log is too big
+    private void enforceRetention() {
+        lastRetentionCheck = System.currentTimeMillis();
+        long cutoff = lastRetentionCheck - retentionMillis;
+        long total = 0;
+        for (Segment segment : segments) {
+            total += Segment.end(segment.commit);
+        }
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (oldest.lastTimestamp >= cutoff && total <= maxBytes) {
+                break;
+            }
+            segments.remove(0);
+            total -= Segment.end(oldest.commit);
+            try {
+                oldest.close();
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                Log.warn("Could not delete %s: %s", oldest.path, e.getMessage());
+            }
+        }
+    }
+
+
+    private static final class Segment {
+        final long baseRecord;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        // Null if the log isn't searchable
+        final SearchIndex search;
+        // Published by the writer after each commit: records << 32 | end position.
+        // Readers never look past it.
+        volatile long commit;
+        volatile long lastTimestamp;
+
+        // Writer side, ahead of commit until the next force
+        int written;
+        long writtenRecords;
+        int forced;
+
+        // Sparse index, stride 3: record, timestamp, position. Entries past
+        // indexEntries may not be committed yet.
+        long[] index = new long[3 * 64];
+        int writtenEntries;
+        volatile int indexEntries;
+
+        private Segment(long baseRecord, Path path, FileChannel channel, MappedByteBuffer map, boolean searchable) {
+            this.baseRecord = baseRecord;
+            this.path = path;
+            this.channel = channel;
+            this.map = map;
+            this.search = searchable ? new SearchIndex() : null;
+        }
+
+        static Segment create(Path dir, long baseRecord, int size, boolean searchable) throws IOException {
+            Path path = dir.resolve(String.format("%020d.log", baseRecord));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(baseRecord, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size),
+                    searchable);
+        }
+
+        // Scan an existing segment to find where its records end and rebuild the index.
+        // writableSize > 0 reopens it for appending.
+        static Segment open(Path path, int writableSize, boolean searchable) throws IOException {
+            String name = path.getFileName().toString();
+            long baseRecord = Long.parseLong(name.substring(0, name.indexOf('.')));
+            FileChannel channel;
+            MappedByteBuffer map;
+            if (writableSize > 0) {
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(writableSize, channel.size()));
+            } else {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            Segment segment = new Segment(baseRecord, path, channel, map, searchable);
+            ByteBuffer view = map.duplicate();
+            while (view.hasRemaining()) {
+                try {
+                    int size = MessageCodec.frameSize(view);
+                    // Unwritten space is zeros, so a record cut short runs on into them. A
+                    // whole one never ends in a zero: lobby messages end in their timestamp,
+                    // or the size of a file, neither of which is 0.
+                    if (size < 3 || size > view.remaining() || view.get(view.position() + size - 1) == 0) {
+                        break;
+                    }
+                    long timestamp = MessageCodec.timestampOf(view);
+                    segment.index(view, timestamp);
+                    segment.record(size, timestamp);
+                    view.position(view.position() + size);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+            if (writableSize > 0) {
+                // Clear whatever a crash left behind so it can't be mistaken for records later
+                byte[] zeros = new byte[64 * 1024];
+                for (int i = segment.written; i < map.capacity(); i += zeros.length) {
+                    map.put(i, zeros, 0, Math.min(zeros.length, map.capacity() - i));
+                }
+            }
+            segment.forced = segment.written;
+            segment.publish();
+            if (writableSize == 0 && segment.search != null) {
+                segment.search.trim((int) segment.writtenRecords);
+            }
+            return segment;
+        }
+
+        // Writer only
+        void append(ByteBuffer frame, long timestamp) {
+            map.put(written, frame, frame.position(), frame.remaining());
+            index(frame, timestamp);
+            record(frame.remaining(), timestamp);
+        }
+
+        // Add the record about to be accounted for to the search index
+        void index(ByteBuffer frame, long timestamp) {
+            if (search != null) {
+                search.add((int) writtenRecords, timestamp, frame);
+            }
+        }
+
+        // Account for a record of size bytes just written at the end, or found there when scanning
+        void record(int size, long timestamp) {
+            if (writtenEntries == 0 || written - index[3 * writtenEntries - 1] >= INDEX_INTERVAL) {
+                if (3 * writtenEntries == index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[3 * writtenEntries] = baseRecord + writtenRecords;
+                index[3 * writtenEntries + 1] = timestamp;
+                index[3 * writtenEntries + 2] = written;
+                writtenEntries++;
+            }
+            written += size;
+            writtenRecords++;
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+        }
+
+        void publish() {
+            indexEntries = writtenEntries;
+            commit = writtenRecords << 32 | written;
+        }
+
+        // Stop writing: trim the preallocated tail off the file
+        void seal() throws IOException {
+            channel.truncate(written);
+            if (search != null) {
+                search.trim((int) writtenRecords);
+            }
+        }
+
+        static int end(long commit) {
+            return (int) commit;
+        }
+
+        static long records(long commit) {
+            return commit >>> 32;
+        }
+
+        // Position of a record, walking frame lengths from the nearest index entry.
+        // Only looks at what committed says is there.
+        int positionOf(long record, long committed) {
+            if (record <= baseRecord) {
+                return 0;
+            }
+            int entries = indexEntries;
+            long[] index = this.index;
+            int entry = search(index, entries, 0, record);
+            int position = (int) index[3 * entry + 2];
+            ByteBuffer view = map.duplicate().limit(end(committed));
+            for (long r = index[3 * entry]; r < record && position < view.limit(); r++) {
+                position += frameSize(view, position);
+            }
+            return position;
+        }
+
+        // The first record newer than timestamp, packed like commit: records before it << 32 | position
+        long seek(long timestamp, long committed) {
+            if (timestamp <= 0) {
+                return 0;
+            }
+            int entries = indexEntries;
+            long[] index = this.index;
+            int entry = search(index, entries, 1, timestamp);
+            long records = entries == 0 ? 0 : index[3 * entry] - baseRecord;
+            int position = (int) index[3 * entry + 2];
+            ByteBuffer view = map.duplicate().limit(end(committed));
+            try {
+                while (position < view.limit() && MessageCodec.timestampOf(view.position(position)) <= timestamp) {
+                    position += frameSize(view, position);
+                    records++;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return records << 32 | position;
+        }
+
+        // Last index entry whose field (0 record, 1 timestamp) is at most value, or the first
+        private static int search(long[] index, int entries, int field, long value) {
+            int low = 0;
+            int high = entries - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (index[3 * mid + field] <= value) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        // Decode a record (numbered within the segment), null if it can't be
+        Message read(int doc, long committed) {
+            ByteBuffer view = map.duplicate().limit(end(committed));
+            try {
+                return MessageCodec.poll(view.position(positionOf(baseRecord + doc, committed)));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private static int frameSize(ByteBuffer view, int position) {
+            try {
+                return MessageCodec.frameSize(view.position(position));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.ilyun.jchat.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Idle timeouts for every connection on one thread: a hashed wheel of one-tick slots.
+// Reads only stamp the connection's last-read time, nothing touches the wheel per message.
+// When a connection's slot comes round the wheel looks at that stamp and either pings it
+// (quiet for pingNanos), reaps it (quiet for timeoutNanos, e.g. gone without a FIN) or
+// files it again under its new deadline. Deadlines further out than the wheel is long
+// are simply looked at again one turn later.
+final class IdleReaper implements Runnable {
+    interface Watched {
+        // System.nanoTime() of the last bytes read from the peer
+        long lastReadNanos();
+
+        // Logged in, so it understands a PING
+        boolean canPing();
+
+        void ping();
+
+        // Close now, without waiting for queued writes
+        void reap();
+
+        boolean isClosed();
+    }
+
+    static final LongAdder pings = new LongAdder();
+    static final LongAdder reaped = new LongAdder();
+
+    private static final int SLOTS = 128;
+
+    private final long tickNanos;
+    private final long pingNanos;
+    private final long timeoutNanos;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Queue<Entry>[] wheel = new Queue[SLOTS];
+    private final Thread thread;
+    private volatile long tick;
+    private volatile boolean running = true;
+
+    private static final class Entry {
+        final Watched connection;
+        long pingedAt = -1; // lastReadNanos the ping was sent for
+
+        Entry(Watched connection) {
+            this.connection = connection;
+        }
+    }
+
+    IdleReaper(long tickNanos, long pingNanos, long timeoutNanos) {
+        this.tickNanos = tickNanos;
+        this.pingNanos = pingNanos;
+        this.timeoutNanos = timeoutNanos;
+        for (int i = 0; i < SLOTS; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        thread = new Thread(this, "idle-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void watch(Watched connection) {
+        schedule(new Entry(connection), Math.min(pingNanos, timeoutNanos));
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void schedule(Entry entry, long delayNanos) {
+        long ticks = Math.clamp((delayNanos + tickNanos - 1) / tickNanos, 1, SLOTS - 1);
+        wheel[(int) ((tick + ticks) % SLOTS)].add(entry);
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime() + tickNanos;
+        while (running) {
+            try {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            next += tickNanos;
+            tick++;
+            expire(wheel[(int) (tick % SLOTS)], System.nanoTime());
+        }
+    }
+
+    private void expire(Queue<Entry> slot, long now) {
+        // Only what was there when the tick started, rescheduling never lands in this slot
+        for (int n = slot.size(); n > 0; n--) {
+            Entry entry = slot.poll();
+            if (entry == null) {
+                return;
+            }
+            Watched connection = entry.connection;
+            if (connection.isClosed()) {
+                continue;
+            }
+            long lastRead = connection.lastReadNanos();
+            long idle = now - lastRead;
+            if (idle >= timeoutNanos) {
+                reaped.increment();
+                connection.reap();
+            } else {
+                // One ping per quiet spell, then wait out the rest of the timeout
+                boolean quiet = idle >= pingNanos;
+                if (quiet && entry.pingedAt != lastRead && connection.canPing()) {
+                    entry.pingedAt = lastRead;
+                    pings.increment();
+                    connection.ping();
+                }
+                schedule(entry, (quiet ? timeoutNanos : pingNanos) - idle);
+            }
+        }
+    }
+}
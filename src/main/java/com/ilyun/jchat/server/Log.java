@@ -0,0 +1,123 @@
+package com.ilyun.jchat.server;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server log. A caller only queues the format and its arguments, a background thread
+// formats and prints them in batches, so console I/O never holds up a handler. Lines
+// below _LOG_LEVEL aren't queued at all, and if the writer falls behind new lines are
+// dropped (and counted) instead of blocking.
+final class Log {
+    enum Level { ERROR, WARN, INFO, DEBUG }
+
+    static final LongAdder dropped = new LongAdder();
+
+    private static final int MAX_BATCH = 1024;
+    private static final Level level = ServerConfig.LOG_LEVEL;
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(ServerConfig.LOG_QUEUE_SIZE);
+    // Queued or being printed
+    private static final AtomicLong pending = new AtomicLong();
+    private static final Thread writer = new Thread(Log::writeLoop, "log-writer");
+
+    private record Entry(Level level, String format, Object[] args) {
+    }
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+    }
+
+    static boolean isEnabled(Level at) {
+        return at.compareTo(level) <= 0;
+    }
+
+    static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    private static void log(Level at, String format, Object[] args) {
+        if (!isEnabled(at)) {
+            return;
+        }
+        pending.incrementAndGet();
+        if (!queue.offer(new Entry(at, format, args))) {
+            pending.decrementAndGet();
+            dropped.increment();
+        }
+    }
+
+    // Wait for what is queued to be printed, for shutdown
+    static void flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Errors and warnings go to stderr, the rest to stdout, one print per stream per batch
+    private static void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        while (true) {
+            try {
+                Entry first = queue.poll(1, TimeUnit.DAYS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Entry entry : batch) {
+                    StringBuilder to = entry.level.compareTo(Level.WARN) <= 0 ? err : out;
+                    to.append(entry.args.length == 0 ? entry.format : String.format(entry.format, entry.args))
+                            .append(System.lineSeparator());
+                }
+                print(System.out, out);
+                print(System.err, err);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // A bad format string loses its own batch, not the writer
+                out.setLength(0);
+                err.setLength(0);
+            } finally {
+                pending.addAndGet(-batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    private static void print(PrintStream stream, StringBuilder text) {
+        if (!text.isEmpty()) {
+            stream.print(text);
+            stream.flush();
+            text.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.ilyun.jchat.server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+// Server counters and timings. The hot path only bumps LongAdders, anything that needs
+// walking the clients (users online, queue depths) is read when someone asks. Published
+// over JMX and as Prometheus text on a small HTTP endpoint bound to localhost.
+final class Metrics {
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder messagesOut = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder logins = new LongAdder();
+    static final LongAdder resumes = new LongAdder();
+    // Handing one frame to every recipient (lobby or room), and encoding a message
+    static final Histogram broadcastNanos = new Histogram();
+    static final Histogram encodeNanos = new Histogram();
+    // Compressing a frame for the clients that take compressed ones, and the bytes before and
+    // after for the frames it paid off for
+    static final Histogram compressNanos = new Histogram();
+    static final LongAdder compressedIn = new LongAdder();
+    static final LongAdder compressedOut = new LongAdder();
+    // Answering a search, from the index lookup to the page of hits being queued
+    static final Histogram searchNanos = new Histogram();
+
+    private static final ObjectName NAME;
+    private static ScheduledExecutorService sampler;
+    private static HttpServer http;
+
+    // Per second, from the sampler
+    private static volatile double messagesInRate, messagesOutRate, bytesInRate, bytesOutRate;
+    private static long lastMessagesIn, lastMessagesOut, lastBytesIn, lastBytesOut;
+
+    static {
+        try {
+            NAME = new ObjectName("com.ilyun.jchat:type=Server");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // Register the MBean, start the rate sampler and, unless port is 0, the HTTP endpoint
+    static synchronized void start(String address, int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(NAME)) {
+                server.registerMBean(new Bean(), NAME);
+            }
+        } catch (JMException e) {
+            Log.warn("JMX registration failed: %s", e.getMessage());
+        }
+
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(Metrics::sample, 1, 1, TimeUnit.SECONDS);
+
+        if (port > 0) {
+            try {
+                http = HttpServer.create(new InetSocketAddress(address, port), 0);
+                http.createContext("/metrics", exchange -> {
+                    byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                http.start();
+                Log.info("Metrics on http://%s:%d/metrics", address, port);
+            } catch (IOException e) {
+                Log.warn("Metrics endpoint not started on %s:%d: %s", address, port, e.getMessage());
+            }
+        }
+    }
+
+    static synchronized void stop() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+    }
+
+    private static void sample() {
+        long in = messagesIn.sum(), out = messagesOut.sum(), read = bytesIn.sum(), written = bytesOut.sum();
+        messagesInRate = in - lastMessagesIn;
+        messagesOutRate = out - lastMessagesOut;
+        bytesInRate = read - lastBytesIn;
+        bytesOutRate = written - lastBytesOut;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        lastBytesIn = read;
+        lastBytesOut = written;
+    }
+
+    // Counts what is read through it, for the blocking handlers' socket streams
+    static InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    // Deepest outbound queue, and frames queued across all clients
+    private static int queueDepthMax() {
+        int max = 0;
+        for (ClientConnection connection : ChatServer.connections()) {
+            max = Math.max(max, connection.queueDepth());
+        }
+        return max;
+    }
+
+    private static long queuedFrames() {
+        long total = 0;
+        for (ClientConnection connection : ChatServer.connections()) {
+            total += connection.queueDepth();
+        }
+        return total;
+    }
+
+    // Prometheus text exposition format
+    static String prometheus() {
+        StringBuilder text = new StringBuilder(4096);
+        metric(text, "jchat_connected_users", "gauge", "Users logged in", ChatServer.connections().size());
+        metric(text, "jchat_logins_total", "counter", "Successful logins", logins.sum());
+        metric(text, "jchat_sessions_resumed_total", "counter", "Sessions resumed on a new connection", resumes.sum());
+        metric(text, "jchat_messages_received_total", "counter", "Messages read from clients", messagesIn.sum());
+        metric(text, "jchat_messages_sent_total", "counter", "Frames written to clients", messagesOut.sum());
+        metric(text, "jchat_bytes_received_total", "counter", "Bytes read from client sockets", bytesIn.sum());
+        metric(text, "jchat_bytes_sent_total", "counter", "Bytes written to client sockets", bytesOut.sum());
+        metric(text, "jchat_outbound_queue_depth_max", "gauge", "Frames queued for the most backed-up client", queueDepthMax());
+        metric(text, "jchat_outbound_queued_frames", "gauge", "Frames queued across all clients", queuedFrames());
+        metric(text, "jchat_outbound_dropped_total", "counter", "Frames dropped from full outbound queues", OutboundQueue.dropped.sum());
+        metric(text, "jchat_outbound_coalesced_total", "counter", "Queued user lists replaced by a newer one", OutboundQueue.coalesced.sum());
+        metric(text, "jchat_outbound_ephemeral_dropped_total", "counter", "Typing updates not sent to clients that were behind", OutboundQueue.ephemeralDropped.sum());
+        metric(text, "jchat_slow_disconnects_total", "counter", "Clients dropped for not keeping up", OutboundQueue.slowDisconnects.sum());
+        metric(text, "jchat_idle_pings_total", "counter", "Pings sent to quiet connections", IdleReaper.pings.sum());
+        metric(text, "jchat_idle_reaped_total", "counter", "Connections dropped for staying silent", IdleReaper.reaped.sum());
+        metric(text, "jchat_history_appended_total", "counter", "Messages written to the history log", HistoryLog.appended.sum());
+        metric(text, "jchat_history_dropped_total", "counter", "Messages the history writer could not keep up with", HistoryLog.dropped.sum());
+        metric(text, "jchat_history_commits_total", "counter", "History log fsyncs", HistoryLog.commits.sum());
+        metric(text, "jchat_compressed_bytes_in_total", "counter", "Bytes of frames sent compressed, before compression", compressedIn.sum());
+        metric(text, "jchat_compressed_bytes_out_total", "counter", "Bytes of frames sent compressed, after compression", compressedOut.sum());
+        metric(text, "jchat_throttled_total", "counter", "Chat messages dropped for going over a rate limit", RateLimits.throttled.sum());
+        metric(text, "jchat_connections_refused_total", "counter", "Connections closed for coming too fast from one address", RateLimits.refusedConnections.sum());
+        metric(text, "jchat_typing_events_total", "counter", "Typing events from users, here and on other nodes", TypingRelay.events.sum());
+        metric(text, "jchat_typing_updates_total", "counter", "Who-is-typing updates sent to a room", TypingRelay.updates.sum());
+        metric(text, "jchat_file_transfers_active", "gauge", "File uploads and downloads going on", ChatServer.activeTransfers());
+        metric(text, "jchat_files_shared_total", "counter", "Uploads completed and shared", FileStore.shared.sum());
+        metric(text, "jchat_file_bytes_received_total", "counter", "Bytes of files uploaded", FileStore.bytesIn.sum());
+        metric(text, "jchat_file_bytes_sent_total", "counter", "Bytes of files downloaded", FileStore.bytesOut.sum());
+        metric(text, "jchat_cluster_peers_linked", "gauge", "Cluster peers this node is passing frames to", ChatServer.clusterPeersLinked());
+        metric(text, "jchat_cluster_frames_sent_total", "counter", "Frames written to cluster peers", ClusterBus.framesSent.sum());
+        metric(text, "jchat_cluster_frames_received_total", "counter", "Frames read from cluster peers", ClusterBus.framesReceived.sum());
+        metric(text, "jchat_log_dropped_total", "counter", "Log lines dropped because the writer fell behind", Log.dropped.sum());
+        broadcastNanos.write(text, "jchat_broadcast_seconds", "Time to hand one message to every recipient");
+        encodeNanos.write(text, "jchat_encode_seconds", "Time to encode one message");
+        compressNanos.write(text, "jchat_compress_seconds", "Time to compress one frame or page of history");
+        searchNanos.write(text, "jchat_search_seconds", "Time to answer one search of the history");
+        Histogram.header(text, "jchat_outbound_wait_seconds", "Time a frame waits in a client's outbound queue, by lane");
+        for (OutboundQueue.Lane lane : OutboundQueue.Lane.values()) {
+            lane.waitNanos.series(text, "jchat_outbound_wait_seconds", "lane=\"" + lane.name().toLowerCase() + "\",");
+        }
+        return text.toString();
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    // Fixed buckets from 1us to ~1s in steps of 4, recorded in nanoseconds
+    static final class Histogram {
+        private static final long[] BOUNDS = new long[11];
+
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUNDS[i] = 1000L << (2 * i);
+            }
+        }
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        double meanMicros() {
+            long count = count();
+            return count == 0 ? 0 : sum.sum() / 1e3 / count;
+        }
+
+        // Upper bound of the bucket the percentile falls in
+        double percentileMicros(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return BOUNDS[i] / 1e3;
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        void write(StringBuilder text, String name, String help) {
+            header(text, name, help);
+            series(text, name, "");
+        }
+
+        static void header(StringBuilder text, String name, String help) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                    .append("# TYPE ").append(name).append(" histogram\n");
+        }
+
+        // The samples only, labels (each followed by a comma) going before le
+        void series(StringBuilder text, String name, String labels) {
+            String braced = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                text.append(name).append("_bucket{").append(labels).append("le=\"")
+                        .append(i < BOUNDS.length ? Double.toString(BOUNDS[i] / 1e9) : "+Inf")
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum").append(braced).append(' ').append(sum.sum() / 1e9).append('\n')
+                    .append(name).append("_count").append(braced).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    private static final class Bean implements ServerMXBean {
+        @Override
+        public int getConnectedUsers() {
+            return ChatServer.connections().size();
+        }
+
+        @Override
+        public long getMessagesReceived() {
+            return messagesIn.sum();
+        }
+
+        @Override
+        public long getMessagesSent() {
+            return messagesOut.sum();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return bytesIn.sum();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return bytesOut.sum();
+        }
+
+        @Override
+        public double getMessagesReceivedPerSecond() {
+            return messagesInRate;
+        }
+
+        @Override
+        public double getMessagesSentPerSecond() {
+            return messagesOutRate;
+        }
+
+        @Override
+        public double getBytesReceivedPerSecond() {
+            return bytesInRate;
+        }
+
+        @Override
+        public double getBytesSentPerSecond() {
+            return bytesOutRate;
+        }
+
+        @Override
+        public int getOutboundQueueDepthMax() {
+            return queueDepthMax();
+        }
+
+        @Override
+        public long getOutboundQueuedFrames() {
+            return queuedFrames();
+        }
+
+        @Override
+        public long getOutboundDropped() {
+            return OutboundQueue.dropped.sum();
+        }
+
+        @Override
+        public long getSlowDisconnects() {
+            return OutboundQueue.slowDisconnects.sum();
+        }
+
+        @Override
+        public double getBroadcastMicrosMean() {
+            return broadcastNanos.meanMicros();
+        }
+
+        @Override
+        public double getBroadcastMicrosP99() {
+            return broadcastNanos.percentileMicros(99);
+        }
+
+        @Override
+        public double getEncodeMicrosMean() {
+            return encodeNanos.meanMicros();
+        }
+
+        @Override
+        public double getEncodeMicrosP99() {
+            return encodeNanos.percentileMicros(99);
+        }
+
+        @Override
+        public double getCompressionRatio() {
+            long in = compressedIn.sum();
+            return in == 0 ? 1 : (double) compressedOut.sum() / in;
+        }
+
+        @Override
+        public double getCompressMicrosMean() {
+            return compressNanos.meanMicros();
+        }
+
+        @Override
+        public double getCompressMicrosP99() {
+            return compressNanos.percentileMicros(99);
+        }
+
+        @Override
+        public double getControlWaitMicrosP99() {
+            return OutboundQueue.Lane.CONTROL.waitNanos.percentileMicros(99);
+        }
+
+        @Override
+        public double getInteractiveWaitMicrosP99() {
+            return OutboundQueue.Lane.INTERACTIVE.waitNanos.percentileMicros(99);
+        }
+
+        @Override
+        public double getPresenceWaitMicrosP99() {
+            return OutboundQueue.Lane.PRESENCE.waitNanos.percentileMicros(99);
+        }
+
+        @Override
+        public double getBulkWaitMicrosP99() {
+            return OutboundQueue.Lane.BULK.waitNanos.percentileMicros(99);
+        }
+
+        @Override
+        public double getSearchMicrosMean() {
+            return searchNanos.meanMicros();
+        }
+
+        @Override
+        public double getSearchMicrosP99() {
+            return searchNanos.percentileMicros(99);
+        }
+
+        @Override
+        public long getSessionsResumed() {
+            return resumes.sum();
+        }
+
+        @Override
+        public long getThrottled() {
+            return RateLimits.throttled.sum();
+        }
+
+        @Override
+        public long getConnectionsRefused() {
+            return RateLimits.refusedConnections.sum();
+        }
+
+        @Override
+        public long getTypingEvents() {
+            return TypingRelay.events.sum();
+        }
+
+        @Override
+        public long getTypingUpdates() {
+            return TypingRelay.updates.sum();
+        }
+
+        @Override
+        public long getEphemeralDropped() {
+            return OutboundQueue.ephemeralDropped.sum();
+        }
+
+        @Override
+        public int getFileTransfersActive() {
+            return ChatServer.activeTransfers();
+        }
+
+        @Override
+        public long getFileBytesReceived() {
+            return FileStore.bytesIn.sum();
+        }
+
+        @Override
+        public long getFileBytesSent() {
+            return FileStore.bytesOut.sum();
+        }
+
+        @Override
+        public int getClusterPeersLinked() {
+            return ChatServer.clusterPeersLinked();
+        }
+
+        @Override
+        public long getIdleReaped() {
+            return IdleReaper.reaped.sum();
+        }
+
+        @Override
+        public long getLogDropped() {
+            return Log.dropped.sum();
+        }
+    }
+}
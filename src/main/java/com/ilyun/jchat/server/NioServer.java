@@ -0,0 +1,592 @@
+package com.ilyun.jchat.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import com.ilyun.jchat.FrameReader;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import com.ilyun.jchat.Tls;
+
+// Non-blocking server mode: the accept loop hands each socket to one of a few
+// selector loops, so idle clients cost a buffer-less key instead of a thread.
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final IoLoop[] loops;
+    private int nextLoop;
+    private volatile ServerSocketChannel serverChannel;
+
+    // tls null for plain connections
+    NioServer(int ioThreads, SSLContext tls) throws IOException {
+        loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop("nio-loop-" + i, tls);
+        }
+    }
+
+    void serve(InetSocketAddress address, int backlog) throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(address, backlog);
+            for (IoLoop loop : loops) {
+                loop.thread.start();
+            }
+
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                if (!RateLimits.acceptConnection(channel.socket().getInetAddress())) {
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, ServerConfig.TCP_NODELAY);
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+    }
+
+    void stopAccepting() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+
+    // Each loop writes out what is still queued, closes its connections and exits
+    void stop(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (IoLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        for (IoLoop loop : loops) {
+            loop.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+    }
+
+
+    static class IoLoop implements Runnable {
+        private final Thread thread;
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        // Transfer connections to take off the selector once this pass is over
+        private final List<NioConnection> handoffs = new ArrayList<>();
+        private final SSLContext tls;
+        // Connections holding their writes back for up to FLUSH_MAX_LATENCY, oldest first
+        private final ArrayDeque<NioConnection> lingering = new ArrayDeque<>();
+        // Shared by every connection of this loop, only partial frames get their own buffer
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] batch = new ByteBuffer[ServerConfig.MAX_BATCH_FRAMES];
+        private volatile boolean running = true;
+
+        IoLoop(String name, SSLContext tls) throws IOException {
+            this.tls = tls;
+            selector = Selector.open();
+            thread = new Thread(this, name);
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(NioConnection connection) {
+            pendingWrites.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    select();
+                    registerPending();
+                    flushPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            fail(connection, e);
+                        }
+                    }
+
+                    // Replies queued while handling reads on this thread
+                    flushPending();
+                    handOff();
+                } catch (IOException | RuntimeException e) {
+                    Log.error("I/O loop error: %s", e);
+                }
+            }
+
+            flushPending();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection connection) {
+                    connection.closeNow(false);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                try {
+                    NioConnection connection = new NioConnection(channel, this, tls != null ? engine(channel) : null);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    ChatServer.watchIdle(connection);
+                } catch (IOException e) {
+                    Log.warn("Register failed: %s", e.getMessage());
+                }
+            }
+        }
+
+        // A channel can only be made blocking once its key is gone from the selector, which
+        // takes a select after the cancel
+        private void handOff() throws IOException {
+            if (handoffs.isEmpty()) {
+                return;
+            }
+            for (NioConnection connection : handoffs) {
+                connection.key.cancel();
+            }
+            selector.selectNow();
+            for (NioConnection connection : handoffs) {
+                try {
+                    connection.channel.configureBlocking(true);
+                    ByteChannel channel = connection.tls != null ? connection.tls : connection.channel;
+                    ChatServer.transfer(channel, channel, connection.handedOver, connection.version,
+                            connection.channel);
+                } catch (IOException e) {
+                    connection.channel.close();
+                }
+            }
+            handoffs.clear();
+        }
+
+        private TlsChannel engine(SocketChannel channel) {
+            SSLEngine engine = tls.createSSLEngine();
+            engine.setUseClientMode(false);
+            engine.setSSLParameters(Tls.parameters(tls, ServerConfig.TLS_CIPHERS, false));
+            return new TlsChannel(channel, engine);
+        }
+
+        private void select() throws IOException {
+            NioConnection oldest = lingering.peek();
+            if (oldest == null) {
+                selector.select();
+                return;
+            }
+            long waitNanos = oldest.lingerSince + ServerConfig.FLUSH_MAX_LATENCY_NANOS - System.nanoTime();
+            if (waitNanos <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            }
+        }
+
+        // Everything queued during one pass of the loop goes out in one write per connection
+        private void flushPending() {
+            long now = System.nanoTime();
+            NioConnection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                if (ServerConfig.FLUSH_MAX_LATENCY_NANOS == 0 || connection.closing
+                        || connection.outbound.bytes() >= ServerConfig.FLUSH_MAX_BYTES) {
+                    flush(connection);
+                } else {
+                    connection.lingerSince = now;
+                    lingering.add(connection);
+                }
+            }
+            while ((connection = lingering.peek()) != null
+                    && (now - connection.lingerSince >= ServerConfig.FLUSH_MAX_LATENCY_NANOS
+                    || connection.outbound.bytes() >= ServerConfig.FLUSH_MAX_BYTES)) {
+                lingering.poll();
+                flush(connection);
+            }
+        }
+
+        private void flush(NioConnection connection) {
+            try {
+                connection.flush();
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+
+        // A bug serving one connection closes that one, the others on the loop carry on
+        private void fail(NioConnection connection, RuntimeException e) {
+            Log.error("Error serving %s, closing the connection: %s",
+                    connection.username != null ? connection.username : connection.address.getHostAddress(), e);
+            e.printStackTrace();
+            connection.closeNow(false);
+        }
+    }
+
+
+    static class NioConnection implements ClientConnection, IdleReaper.Watched {
+        private final SocketChannel channel;
+        // Null unless TLS, which then reads and writes the channel
+        private final TlsChannel tls;
+        private final InetAddress address;
+        private final IoLoop loop;
+        private SelectionKey key;
+        private ByteBuffer partial; // unread tail of an incomplete frame
+        private final FrameReader reader = new FrameReader();
+        private volatile boolean compress;
+        private final OutboundQueue outbound =
+                new OutboundQueue(ServerConfig.OUTBOUND_QUEUE_SIZE, ServerConfig.OUTBOUND_OVERFLOW, ServerConfig.OUTBOUND_LANES);
+        private ArrayDeque<ByteBuffer> unwritten; // taken from the queue but not fully written yet
+        private long lingerSince;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean closing;
+        private volatile boolean aborted;
+        private boolean handshaken;
+        // A transfer connection: what came after the hello, for the thread that takes it over
+        private ByteBuffer handedOver;
+        // The protocol version agreed on in the hello
+        private volatile int version;
+        private volatile String username;
+        private volatile long lastRead = System.nanoTime();
+
+        NioConnection(SocketChannel channel, IoLoop loop, TlsChannel tls) {
+            this.channel = channel;
+            this.tls = tls;
+            this.address = channel.socket().getInetAddress();
+            this.loop = loop;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        // Safe from any thread, the write itself happens on the loop
+        @Override
+        public void sendMessage(Message message) {
+            sendFrame(ByteBuffer.wrap(ChatServer.encode(message)));
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame, ByteBuffer compressed, OutboundQueue.Lane lane) {
+            Message.Type type = MessageCodec.typeOf(frame);
+            if (type != null && MessageCodec.since(type) > version) {
+                return;
+            }
+            if (compress) {
+                frame = compressed != null ? compressed : ChatServer.compress(frame);
+            }
+            enqueue(frame.duplicate(), type, lane);
+        }
+
+        @Override
+        public int queueDepth() {
+            return outbound.size();
+        }
+
+        // Still queued once closed: held for a resume, or passed on to where it resumed
+        private void enqueue(ByteBuffer bytes, Message.Type type, OutboundQueue.Lane lane) {
+            if (!outbound.offer(bytes, type, lane)) {
+                Log.warn("✗ %s is too slow, disconnecting", username);
+                aborted = true;
+            }
+            if (!closed.get()) {
+                scheduleFlush();
+            }
+        }
+
+        @Override
+        public long lastReadNanos() {
+            return lastRead;
+        }
+
+        @Override
+        public boolean canPing() {
+            return username != null;
+        }
+
+        @Override
+        public void ping() {
+            sendFrame(ChatServer.PING_FRAME);
+        }
+
+        // Closed on the loop, like a client too slow to keep up
+        @Override
+        public void reap() {
+            Log.info("✗ %s idle too long, dropping", username != null ? username : "Connection before login");
+            aborted = true;
+            scheduleFlush();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public Session getSession() {
+            return outbound.session();
+        }
+
+        @Override
+        public void attach(Session session) {
+            outbound.attach(session);
+        }
+
+        @Override
+        public void hold() {
+            outbound.hold();
+        }
+
+        @Override
+        public boolean handOver(ClientConnection successor, long received) {
+            return outbound.handOver(successor, received);
+        }
+
+        private void scheduleFlush() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        void onReadable(ByteBuffer scratch) {
+            try {
+                // TLS may have decrypted more than fits, which the socket won't signal again
+                do {
+                    ByteBuffer buffer = partial != null ? partial : scratch;
+                    int read = tls != null ? tls.read(buffer) : channel.read(buffer);
+                    if (read < 0) {
+                        closeNow(true);
+                        return;
+                    }
+                    Metrics.bytesIn.add(read);
+                    lastRead = System.nanoTime();
+                    buffer.flip();
+                    if (handshaken || handshake(buffer)) {
+                        if (handedOver != null) {
+                            handedOver = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                            return;
+                        }
+                        Message message;
+                        while (!closing && (message = reader.poll(buffer)) != null) {
+                            if (!dispatch(message)) {
+                                close();
+                            }
+                        }
+                    }
+                    keepPartial(buffer, scratch);
+                    scratch.clear();
+                } while (tls != null && !closing && tls.hasBuffered());
+                // Handshake records the socket didn't take
+                if (tls != null && !tls.flush()) {
+                    scheduleFlush();
+                }
+            } catch (StreamCorruptedException e) {
+                // Not the network's doing, the client broke the protocol. Told why, so it
+                // doesn't come back and send the same again; nothing more of it is read.
+                Log.warn("✗ %s sent a bad frame, dropping: %s",
+                        username != null ? username : address.getHostAddress(), e.getMessage());
+                if (handshaken) {
+                    sendMessage(ChatServer.protocolError(e));
+                }
+                partial = null;
+                close();
+            } catch (IOException e) {
+                Log.info("Connection lost: %s", username);
+                closeNow(true);
+            } finally {
+                scratch.clear();
+            }
+        }
+
+        // Copy leftover bytes out of the shared buffer, sized for the whole frame
+        private void keepPartial(ByteBuffer buffer, ByteBuffer scratch) throws IOException {
+            if (closing || !buffer.hasRemaining()) {
+                partial = null;
+                return;
+            }
+            int needed = handshaken ? Math.max(MessageCodec.frameSize(buffer), buffer.remaining()) : buffer.remaining();
+            if (buffer == scratch || needed > buffer.capacity()) {
+                partial = ByteBuffer.allocate(Math.max(needed, 256)).put(buffer);
+            } else {
+                buffer.compact();
+            }
+        }
+
+        // Agree on a protocol version before any frame, returns false until the hello has arrived
+        private boolean handshake(ByteBuffer buffer) throws IOException {
+            MessageCodec.Hello hello = MessageCodec.pollHello(buffer);
+            if (hello == null) {
+                return false;
+            }
+            version = MessageCodec.negotiate(hello.version());
+            if ((hello.flags() & MessageCodec.TRANSFER_FLAG) != 0) {
+                // Off the selector and onto a thread of its own, which answers the hello.
+                // Closed as far as this loop and the idle reaper are concerned.
+                handshaken = true;
+                handedOver = buffer;
+                closed.set(true);
+                loop.handoffs.add(this);
+                return true;
+            }
+            int flags = ChatServer.compressFlag(hello);
+            compress = flags != 0;
+            enqueue(ByteBuffer.wrap(MessageCodec.hello(version, flags)), null, OutboundQueue.Lane.CONTROL);
+            handshaken = true;
+            if (version == 0) {
+                close();
+            }
+            return true;
+        }
+
+        private boolean dispatch(Message message) {
+            if (username != null) {
+                return ChatServer.handleMessage(this, message);
+            }
+
+            // Wait for CONNECT message with username
+            if (message.getType() != Message.Type.CONNECT) {
+                return false;
+            }
+            if (!ChatServer.addClient(message.getSender(), this, message.getSeq(), message.getContent())) {
+                sendMessage(new Message(Message.Type.DISCONNECT, "Server", "Username already taken"));
+                return false;
+            }
+            username = message.getSender();
+            return true;
+        }
+
+        // Loop thread only
+        void flush() {
+            writeScheduled.set(false);
+            if (aborted) {
+                closeNow(false);
+                return;
+            }
+            ByteBuffer[] batch = loop.batch;
+            try {
+                if (tls != null && !tls.flush()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                while (true) {
+                    int count = 0;
+                    long bytes = 0;
+                    while (unwritten != null && !unwritten.isEmpty() && count < batch.length) {
+                        batch[count] = unwritten.poll();
+                        bytes += batch[count++].remaining();
+                    }
+                    count += outbound.drainTo(batch, count, ServerConfig.FLUSH_MAX_BYTES - bytes);
+                    if (count == 0) {
+                        break;
+                    }
+
+                    // One gathering write for the whole batch
+                    Metrics.bytesOut.add(tls != null ? tls.write(batch, 0, count) : channel.write(batch, 0, count));
+                    int written = 0;
+                    while (written < count && !batch[written].hasRemaining()) {
+                        written++;
+                    }
+                    Metrics.messagesOut.add(written);
+                    if (written < count) {
+                        // Socket is full, keep the rest in order and wait for OP_WRITE
+                        if (unwritten == null) {
+                            unwritten = new ArrayDeque<>();
+                        }
+                        for (int i = count - 1; i >= written; i--) {
+                            unwritten.addFirst(batch[i]);
+                        }
+                        Arrays.fill(batch, 0, count, null);
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                }
+                unwritten = null;
+                if (tls != null && !tls.flush()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (closing) {
+                    closeNow(false);
+                } else if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                Arrays.fill(batch, null);
+                closeNow(true);
+            }
+        }
+
+        // Safe from any thread, the loop closes the socket once the queue is written
+        @Override
+        public void close() {
+            closing = true;
+            scheduleFlush();
+        }
+
+        // Loop thread only. lost: the connection failed under us (end of stream, an I/O error),
+        // the one case the client may come back and resume. Dropped by the server, as too
+        // slow, idle or breaking the protocol, the user leaves at once.
+        void closeNow(boolean lost) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (tls != null) {
+                    tls.close();
+                } else {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            unwritten = null;
+            if (lost && username != null && !closing && ChatServer.park(username, this)) {
+                return;
+            }
+            outbound.close();
+            outbound.clear();
+            if (username != null) {
+                ChatServer.removeClient(username, this);
+            }
+        }
+    }
+}
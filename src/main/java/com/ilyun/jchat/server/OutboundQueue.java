@@ -0,0 +1,454 @@
+package com.ilyun.jchat.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import com.ilyun.jchat.Compression;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// Bounded queue of frames waiting to be written to one client. Senders only ever
+// enqueue, a single writer (thread or I/O loop) drains it, so a slow client fills its
+// own queue instead of blocking whoever is broadcasting. Once the client is logged in,
+// frames are numbered for its Session as the writer takes them.
+//
+// A client's frames are split into lanes so a long history replay or a burst of presence
+// changes doesn't hold up a live chat message queued behind it. Control frames go first,
+// the other lanes take turns by deficit round robin, each getting its weight's share of the
+// bytes while it has frames waiting and nothing while it has none, so bulk still fills the
+// link when nobody is talking. Each lane keeps its own frames in order, which is all the
+// client relies on: a page of history and the HISTORY that ends it are both bulk, a user
+// list and the changes after it both presence. Without weights (cluster links, or lanes
+// turned off) it is one queue in arrival order.
+//
+// TYPING frames are ephemeral: the next one a second later says all the last one did, so
+// they are never numbered or held for a resume, a queue already backed up doesn't take
+// them, and a full one throws them out before anything else.
+class OutboundQueue {
+    enum OverflowPolicy {
+        DROP_OLDEST,    // make room by discarding the oldest queued frame
+        DISCONNECT,     // the client can't keep up, drop the connection
+        COALESCE        // a newer USER_LIST replaces a queued one, then drop oldest
+    }
+
+    enum Lane {
+        CONTROL,        // pings, session and notices from the server, always first
+        INTERACTIVE,    // chat messages, room changes, file references
+        PRESENCE,       // user lists, who joined or left, who is typing
+        BULK;           // history replay and search results
+
+        // Time from being queued to being taken by the writer, across all clients
+        final Metrics.Histogram waitNanos = new Metrics.Histogram();
+
+        // Where a single frame goes by its type. History replay is sent as BULK by the caller.
+        static Lane of(ByteBuffer frame) {
+            Message.Type type = MessageCodec.typeOf(frame);
+            if (type == null) {
+                // The hello, or a frame already compressed when it was passed on for a resume
+                return isCompressed(frame) ? INTERACTIVE : CONTROL;
+            }
+            return switch (type) {
+                case PING, PONG, SESSION, NOTICE, DISCONNECT, CONNECT -> CONTROL;
+                case USER_LIST, USER_JOINED, USER_LEFT, TYPING -> PRESENCE;
+                case HISTORY, SEARCH, SEARCH_END -> BULK;
+                default -> INTERACTIVE;
+            };
+        }
+    }
+
+    // Bytes a lane may send per round for each unit of its weight
+    private static final int QUANTUM_BYTES = 4096;
+    // Frames queued before a client counts as behind and ephemeral ones are dropped
+    private static final int EPHEMERAL_MAX_QUEUED = 32;
+
+    // Totals across all clients
+    static final LongAdder dropped = new LongAdder();
+    static final LongAdder coalesced = new LongAdder();
+    static final LongAdder slowDisconnects = new LongAdder();
+    static final LongAdder ephemeralDropped = new LongAdder();
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // One queue per lane, or just the first one without weights
+    private final ArrayDeque<Entry>[] lanes;
+    // Per lane bytes per round, null for arrival order
+    private final int[] quantum;
+    private final int[] deficit;
+    // The lane whose turn it is, and whether it got this turn's quantum yet
+    private int turn = Lane.INTERACTIVE.ordinal();
+    private boolean credited;
+    // A DISCONNECT goes once everything queued before it is out, the client stops reading there
+    private Entry goodbye;
+    private int size;
+    private int ephemeral;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private Entry queuedUserList;
+    private long queuedBytes;
+    private boolean closed;
+    private volatile Session session;
+    // Connection lost, frames are kept for a resume but no longer taken
+    private boolean held;
+    // Frames were thrown away while held, so a resume can't fill in everything the client missed
+    private boolean gap;
+    // Where the session went on resume, everything offered here is passed on
+    private ClientConnection successor;
+
+    // In arrival order
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, null);
+    }
+
+    // weights for the interactive, presence and bulk lanes, null for arrival order
+    OutboundQueue(int capacity, OverflowPolicy policy, int[] weights) {
+        this.capacity = capacity;
+        this.policy = policy;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<Entry>[] lanes = new ArrayDeque[weights != null ? Lane.values().length : 1];
+        this.lanes = lanes;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        if (weights != null) {
+            quantum = new int[lanes.length];
+            for (int i = 0; i < weights.length; i++) {
+                quantum[Lane.INTERACTIVE.ordinal() + i] = weights[i] * QUANTUM_BYTES;
+            }
+            deficit = new int[lanes.length];
+        } else {
+            quantum = null;
+            deficit = null;
+        }
+    }
+
+    static OverflowPolicy parsePolicy(String name) {
+        return OverflowPolicy.valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+
+    // "interactive,presence,bulk" weights, or "off" for arrival order (null)
+    static int[] parseWeights(String weights) {
+        if (weights.trim().equalsIgnoreCase("off")) {
+            return null;
+        }
+        int[] parsed = Arrays.stream(weights.split(",")).mapToInt(weight -> Integer.parseInt(weight.trim())).toArray();
+        if (parsed.length != 3 || Arrays.stream(parsed).anyMatch(weight -> weight < 1)) {
+            throw new IllegalArgumentException("Lane weights are three numbers of at least 1: " + weights);
+        }
+        return parsed;
+    }
+
+    // A cluster link's frame, always in arrival order
+    boolean offer(ByteBuffer frame, Message.Type type) {
+        return offer(frame, type, null);
+    }
+
+    // Returns false if the queue is full and the policy says to disconnect. type is the frame's,
+    // or null for bytes that are not a frame (the hello) or a compressed frame. lane is where
+    // it is scheduled and timed, null for neither.
+    boolean offer(ByteBuffer frame, Message.Type type, Lane lane) {
+        lock.lock();
+        try {
+            if (successor != null) {
+                successor.sendFrame(frame, lane != null ? lane : Lane.of(frame));
+                return true;
+            }
+            if (closed) {
+                return true;
+            }
+            boolean isEphemeral = type == Message.Type.TYPING;
+            if (isEphemeral && (held || size >= EPHEMERAL_MAX_QUEUED)) {
+                ephemeralDropped.increment();
+                return true;
+            }
+            if (type == Message.Type.USER_LIST && policy == OverflowPolicy.COALESCE && queuedUserList != null) {
+                // Still unsent, the newer list supersedes it
+                queuedBytes += frame.remaining() - queuedUserList.frame.remaining();
+                queuedUserList.frame = frame;
+                coalesced.increment();
+                return true;
+            }
+            if (size >= capacity && ephemeral > 0) {
+                dropEphemeral();
+            } else if (size >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    // Nothing queued matters any more, the connection is going away
+                    slowDisconnects.increment();
+                    closed = true;
+                    clear();
+                    notEmpty.signalAll();
+                    return false;
+                }
+                drop();
+                dropped.increment();
+                gap |= held;
+            }
+
+            boolean numbered = type != null ? type != Message.Type.SESSION && !isEphemeral : isCompressed(frame);
+            Entry entry = new Entry(frame, numbered, isEphemeral, lane);
+            if (type == Message.Type.DISCONNECT && quantum != null && goodbye == null) {
+                goodbye = entry;
+            } else {
+                lanes[quantum != null && lane != null ? lane.ordinal() : 0].add(entry);
+            }
+            size++;
+            if (isEphemeral) {
+                ephemeral++;
+            }
+            queuedBytes += frame.remaining();
+            if (type == Message.Type.USER_LIST) {
+                queuedUserList = entry;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Move queued frames into batch from offset on, stopping at the end of the array or once
+    // maxBytes are taken (always at least one frame). Never blocks, returns the number moved.
+    int drainTo(ByteBuffer[] batch, int offset, long maxBytes) {
+        lock.lock();
+        try {
+            int count = 0;
+            long bytes = 0;
+            long now = System.nanoTime();
+            while (!held && offset + count < batch.length && bytes < maxBytes && size > 0) {
+                Entry entry = next();
+                if (session != null && entry.numbered) {
+                    session.sent(entry.frame);
+                }
+                if (entry.lane != null) {
+                    entry.lane.waitNanos.record(now - entry.queuedAt);
+                }
+                batch[offset + count++] = entry.frame;
+                bytes += entry.frame.remaining();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocking drainTo for writer threads: waits for the first frame, then up to lingerNanos
+    // for maxBytes to pile up. Returns 0 once the queue is closed and empty, or held.
+    int takeBatch(ByteBuffer[] batch, long maxBytes, long lingerNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && !closed && !held) {
+                notEmpty.await();
+            }
+            long remaining = lingerNanos;
+            while (remaining > 0 && queuedBytes < maxBytes && !closed && !held) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return drainTo(batch, 0, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isCompressed(ByteBuffer frame) {
+        return frame.remaining() > 1 && Compression.isCompressed(frame);
+    }
+
+    // The frame to write next, there must be one
+    private Entry next() {
+        ArrayDeque<Entry> control = lanes[0];
+        if (!control.isEmpty()) {
+            return remove(control);
+        }
+        if (size == 1 && goodbye != null) {
+            Entry entry = goodbye;
+            goodbye = null;
+            size--;
+            queuedBytes -= entry.frame.remaining();
+            return entry;
+        }
+        // Deficit round robin: a lane gets its quantum once per turn and sends while its next
+        // frame fits in what it has saved up, an empty lane saves nothing
+        while (true) {
+            ArrayDeque<Entry> lane = lanes[turn];
+            if (lane.isEmpty()) {
+                deficit[turn] = 0;
+            } else {
+                if (!credited) {
+                    deficit[turn] += quantum[turn];
+                    credited = true;
+                }
+                int length = lane.peek().frame.remaining();
+                if (length <= deficit[turn]) {
+                    deficit[turn] -= length;
+                    return remove(lane);
+                }
+            }
+            turn = turn == lanes.length - 1 ? Lane.INTERACTIVE.ordinal() : turn + 1;
+            credited = false;
+        }
+    }
+
+    // Make room in a full queue that has an ephemeral frame, the first one found
+    private void dropEphemeral() {
+        for (ArrayDeque<Entry> lane : lanes) {
+            for (Iterator<Entry> entries = lane.iterator(); entries.hasNext(); ) {
+                Entry entry = entries.next();
+                if (entry.ephemeral) {
+                    entries.remove();
+                    forget(entry);
+                    ephemeralDropped.increment();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Make room in a full queue: the oldest frame of the least urgent lane that has any
+    private void drop() {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            if (!lanes[i].isEmpty()) {
+                remove(lanes[i]);
+                return;
+            }
+        }
+    }
+
+    private Entry remove(ArrayDeque<Entry> lane) {
+        Entry entry = lane.poll();
+        forget(entry);
+        return entry;
+    }
+
+    // The entry is out of its lane
+    private void forget(Entry entry) {
+        if (entry == queuedUserList) {
+            queuedUserList = null;
+        }
+        if (entry.ephemeral) {
+            ephemeral--;
+        }
+        size--;
+        queuedBytes -= entry.frame.remaining();
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stop accepting frames, the writer still drains what is queued
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number the frames taken from now on for this session
+    void attach(Session session) {
+        lock.lock();
+        try {
+            this.session = session;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Session session() {
+        return session;
+    }
+
+    // The socket is gone: keep accepting frames for a resume, the writer stops taking them
+    void hold() {
+        lock.lock();
+        try {
+            held = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The client is back on another connection and got the first received frames. What it
+    // missed moves there: the frames sent after those, then everything still queued, and
+    // whatever is offered here from now on is passed straight on. Returns false if that
+    // isn't everything (frames were dropped, or aren't kept that far back), in which case
+    // nothing is moved and the numbering carries on from received.
+    boolean handOver(ClientConnection successor, long received) {
+        lock.lock();
+        try {
+            ByteBuffer[] missed = session != null ? session.rewind(received) : null;
+            boolean complete = missed != null && !gap && !closed;
+            if (complete) {
+                for (ByteBuffer frame : missed) {
+                    successor.sendFrame(frame);
+                }
+                for (ArrayDeque<Entry> lane : lanes) {
+                    for (Entry entry : lane) {
+                        successor.sendFrame(entry.frame, entry.lane != null ? entry.lane : Lane.of(entry.frame));
+                    }
+                }
+                if (goodbye != null) {
+                    successor.sendFrame(goodbye.frame, Lane.CONTROL);
+                }
+            }
+            clear();
+            closed = true;
+            this.successor = successor;
+            notEmpty.signalAll();
+            return complete;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Entry> lane : lanes) {
+                lane.clear();
+            }
+            goodbye = null;
+            queuedUserList = null;
+            size = 0;
+            ephemeral = 0;
+            queuedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        ByteBuffer frame;
+        final boolean numbered;
+        final boolean ephemeral;
+        final Lane lane;
+        final long queuedAt = System.nanoTime();
+
+        Entry(ByteBuffer frame, boolean numbered, boolean ephemeral, Lane lane) {
+            this.frame = frame;
+            this.numbered = numbered;
+            this.ephemeral = ephemeral;
+            this.lane = lane;
+        }
+    }
+}
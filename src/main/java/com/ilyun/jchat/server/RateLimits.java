@@ -0,0 +1,96 @@
+package com.ilyun.jchat.server;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Flood protection: chat messages are limited per user and per address, new connections per
+// address. All token buckets, so checking a limit never takes a lock. The per user bucket
+// lives in the Session, the per address ones here, and addresses whose buckets have filled
+// up again are forgotten now and then so the table only holds recent senders.
+final class RateLimits {
+    private static final int SWEEP_EVERY = 1024;
+
+    static final LongAdder throttled = new LongAdder();
+    static final LongAdder refusedConnections = new LongAdder();
+
+    private static final Map<InetAddress, Address> addresses = new ConcurrentHashMap<>();
+    private static final AtomicLong lookups = new AtomicLong();
+
+    private RateLimits() {
+    }
+
+    private static final class Address {
+        final TokenBucket messages = TokenBucket.of(ServerConfig.RATE_ADDRESS_MESSAGES_PER_SECOND,
+                ServerConfig.RATE_ADDRESS_BURST);
+        final TokenBucket connections = TokenBucket.of(ServerConfig.RATE_CONNECTIONS_PER_SECOND,
+                ServerConfig.RATE_CONNECTION_BURST);
+
+        boolean idle() {
+            return (messages == null || messages.isFull()) && (connections == null || connections.isFull());
+        }
+    }
+
+    // A user's own bucket, null if users are not limited
+    static TokenBucket userBucket() {
+        return TokenBucket.of(ServerConfig.RATE_MESSAGES_PER_SECOND, ServerConfig.RATE_MESSAGE_BURST);
+    }
+
+    // Whether to take a new connection from address, called by the accepting thread
+    static boolean acceptConnection(InetAddress address) {
+        if (ServerConfig.RATE_CONNECTIONS_PER_SECOND <= 0 || address == null) {
+            return true;
+        }
+        if (address(address).connections.tryTake()) {
+            return true;
+        }
+        refusedConnections.increment();
+        return false;
+    }
+
+    // Whether a chat message from a user (bucket from userBucket) at address may go out
+    static boolean allowMessage(TokenBucket user, InetAddress address) {
+        boolean limited = ServerConfig.RATE_ADDRESS_MESSAGES_PER_SECOND > 0 && address != null;
+        return allowMessage(user, limited ? address(address).messages : null);
+    }
+
+    // The same with the address's bucket at hand, null if addresses are not limited. A
+    // message refused by either bucket takes nothing from the other, so one user flooding
+    // doesn't throttle everyone else behind the same address.
+    static boolean allowMessage(TokenBucket user, TokenBucket address) {
+        boolean allowed = user == null || user.tryTake();
+        if (allowed && address != null && !address.tryTake()) {
+            if (user != null) {
+                user.giveBack();
+            }
+            allowed = false;
+        }
+        if (!allowed) {
+            throttled.increment();
+        }
+        return allowed;
+    }
+
+    // Millis until the given user at address can send again, for the notice
+    static long waitMillis(TokenBucket user, InetAddress address) {
+        Address limits = address != null ? addresses.get(address) : null;
+        return waitMillis(user, limits != null ? limits.messages : null);
+    }
+
+    static long waitMillis(TokenBucket user, TokenBucket address) {
+        long wait = user != null ? user.waitNanos() : 0;
+        if (address != null) {
+            wait = Math.max(wait, address.waitNanos());
+        }
+        return (wait + 999_999) / 1_000_000;
+    }
+
+    private static Address address(InetAddress address) {
+        if (lookups.incrementAndGet() % SWEEP_EVERY == 0) {
+            addresses.values().removeIf(Address::idle);
+        }
+        return addresses.computeIfAbsent(address, key -> new Address());
+    }
+}
@@ -0,0 +1,93 @@
+package com.ilyun.jchat.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Subscription index kept in both directions: room -> members to route a message
+// to just the room, member -> rooms to clean up when a client goes away.
+// Rooms exist while they have members. Calls for one client come from its own
+// reader (or the one it resumes on), so the two maps never race for the same connection.
+class RoomRegistry {
+    static final int MAX_ROOM_NAME = 64;
+
+    private final Map<String, Set<ClientConnection>> members = new ConcurrentHashMap<>();
+    private final Map<ClientConnection, Set<String>> rooms = new ConcurrentHashMap<>();
+
+    static boolean isValidName(String room) {
+        return room != null && !room.isBlank() && room.length() <= MAX_ROOM_NAME && room.equals(room.trim());
+    }
+
+    // Returns false if the client was already in the room
+    boolean join(String room, ClientConnection connection) {
+        boolean[] added = new boolean[1];
+        members.compute(room, (name, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = set.add(connection);
+            return set;
+        });
+        if (added[0]) {
+            rooms.computeIfAbsent(connection, c -> ConcurrentHashMap.newKeySet()).add(room);
+        }
+        return added[0];
+    }
+
+    // Returns false if the client wasn't in the room
+    boolean leave(String room, ClientConnection connection) {
+        boolean[] removed = new boolean[1];
+        members.computeIfPresent(room, (name, set) -> {
+            removed[0] = set.remove(connection);
+            return set.isEmpty() ? null : set;
+        });
+        if (removed[0]) {
+            rooms.computeIfPresent(connection, (c, set) -> {
+                set.remove(room);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        return removed[0];
+    }
+
+    // Drop a client from every room it is in, returns those rooms
+    Set<String> leaveAll(ClientConnection connection) {
+        Set<String> joined = rooms.remove(connection);
+        if (joined == null) {
+            return Set.of();
+        }
+        for (String room : joined) {
+            members.computeIfPresent(room, (name, set) -> {
+                set.remove(connection);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        return joined;
+    }
+
+    // Move a client's rooms over to the connection it resumed its session on
+    void replace(ClientConnection previous, ClientConnection successor) {
+        Set<String> joined = rooms.remove(previous);
+        if (joined == null) {
+            return;
+        }
+        rooms.put(successor, joined);
+        for (String room : joined) {
+            members.computeIfPresent(room, (name, set) -> {
+                if (set.remove(previous)) {
+                    set.add(successor);
+                }
+                return set;
+            });
+        }
+    }
+
+    boolean isMember(String room, ClientConnection connection) {
+        Set<ClientConnection> set = members.get(room);
+        return set != null && set.contains(connection);
+    }
+
+    Collection<ClientConnection> members(String room) {
+        Set<ClientConnection> set = members.get(room);
+        return set != null ? set : List.of();
+    }
+}
@@ -0,0 +1,193 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// Inverted index over one history segment. Records are numbered from 0 within the segment;
+// each term maps to the ascending int array of the records that hold it, and a parallel
+// array keeps every record's timestamp for range filtering. Terms are the lowercased words
+// of the content plus "from:" and the sender's name, of chat messages only.
+//
+// Only the history writer adds to it, readers go by the segment's commit and never look at
+// a record past it, so neither side locks or waits on the other.
+final class SearchIndex {
+    static final String FROM = "from:";
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private final Map<String, Postings> terms = new ConcurrentHashMap<>();
+    private volatile long[] timestamps = new long[1024];
+
+    // Records holding one term. size is written after the array, so a reader that reads
+    // size first then docs sees at least size of them.
+    private static final class Postings {
+        volatile int[] docs = new int[4];
+        volatile int size;
+
+        void add(int doc) {
+            int n = size;
+            if (n > 0 && docs[n - 1] == doc) {
+                return; // word repeated in the same message
+            }
+            if (n == docs.length) {
+                docs = Arrays.copyOf(docs, n * 2);
+            }
+            docs[n] = doc;
+            size = n + 1;
+        }
+
+        void trim() {
+            if (docs.length > size) {
+                docs = Arrays.copyOf(docs, size);
+            }
+        }
+    }
+
+    // Writer only: index the record doc, whose frame starts at the buffer's position
+    void add(int doc, long timestamp, ByteBuffer frame) {
+        long[] times = timestamps;
+        if (doc == times.length) {
+            times = Arrays.copyOf(times, times.length * 2);
+        }
+        times[doc] = timestamp;
+        timestamps = times;
+
+        Message message;
+        try {
+            message = MessageCodec.poll(frame.duplicate());
+        } catch (IOException e) {
+            return; // kept for its timestamp, but nothing in it can be found
+        }
+        if (message == null || message.getType() != Message.Type.TEXT) {
+            return; // a file reference, say
+        }
+        add(doc, FROM + message.getSender().toLowerCase(Locale.ROOT));
+        tokenize(message.getContent(), term -> add(doc, term));
+    }
+
+    private void add(int doc, String term) {
+        terms.computeIfAbsent(term, t -> new Postings()).add(doc);
+    }
+
+    // Writer only, once nothing more will be added: drop the room left to grow into.
+    // A reader still holding a longer array sees the same records in it.
+    void trim(int records) {
+        for (Postings postings : terms.values()) {
+            postings.trim();
+        }
+        timestamps = Arrays.copyOf(timestamps, records);
+    }
+
+    long timestamp(int doc) {
+        return timestamps[doc];
+    }
+
+    // How many of the first records records are at or before timestamp
+    int countUpTo(long timestamp, int records) {
+        long[] times = timestamps;
+        int low = 0;
+        int high = records;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Records from (inclusive) to to (exclusive) holding every term, newest first, handed to
+    // hit until it returns false. Returns false if it was stopped, true if the range ran out.
+    boolean search(List<String> query, int from, int to, IntPredicate hit) {
+        if (query.isEmpty() || from >= to) {
+            return true;
+        }
+        int[][] lists = new int[query.size()][];
+        int[] ends = new int[query.size()];
+        for (int i = 0; i < query.size(); i++) {
+            Postings postings = terms.get(query.get(i));
+            if (postings == null) {
+                return true;
+            }
+            int size = postings.size;
+            lists[i] = postings.docs;
+            // Past to is either out of the range or not committed yet
+            ends[i] = lowerBound(lists[i], 0, size, to);
+        }
+        // Walk the shortest list down, looking each of its records up in the others. Records
+        // only get older, so each lookup can leave out what the previous one passed.
+        int shortest = 0;
+        for (int i = 1; i < lists.length; i++) {
+            if (ends[i] < ends[shortest]) {
+                shortest = i;
+            }
+        }
+        int[] driver = lists[shortest];
+        next:
+        for (int k = ends[shortest] - 1; k >= 0 && driver[k] >= from; k--) {
+            int doc = driver[k];
+            for (int i = 0; i < lists.length; i++) {
+                if (i != shortest) {
+                    int end = ends[i];
+                    int at = lowerBound(lists[i], 0, end, doc);
+                    ends[i] = at;
+                    if (at == end || lists[i][at] != doc) {
+                        continue next;
+                    }
+                }
+            }
+            if (!hit.test(doc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // First index in [from, to) whose doc is at least doc, or to
+    private static int lowerBound(int[] docs, int from, int to, int doc) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (docs[mid] < doc) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    // The terms a query asks for, each of which a message must hold: its words, and
+    // from:name for messages by that user
+    static List<String> query(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.regionMatches(true, 0, FROM, 0, FROM.length()) && word.length() > FROM.length()) {
+                terms.add(FROM + word.substring(FROM.length()).toLowerCase(Locale.ROOT));
+            } else {
+                tokenize(word, terms::add);
+            }
+        }
+        return List.copyOf(terms);
+    }
+
+    // Lowercased runs of letters and digits
+    private static void tokenize(String text, Consumer<String> term) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                term.accept(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.ilyun.jchat.server;
+
+import io.github.cdimascio.dotenv.Dotenv;
+import java.net.*;
+import java.util.*;
+import com.ilyun.jchat.Tls;
+
+// Server settings, read once from .env (a -D system property with the same key wins)
+final class ServerConfig {
+    private static final Dotenv dotenv = Dotenv.configure().ignoreIfMissing().load();
+
+    static final int PORT = Integer.parseInt(get("_PORT", null));
+    static final int BACKLOG = 50;
+    static final String INET_ADDRESS = get("_SERVER_IP", null);
+    static final InetAddress ADDRESS;
+
+    // "blocking" = platform thread per client, "virtual" = virtual thread per client,
+    // "nio" = selector event loops
+    static final String MODE = get("_SERVER_MODE", "blocking");
+    static final int IO_THREADS = getInt("_IO_THREADS", Runtime.getRuntime().availableProcessors());
+    static final int SHUTDOWN_TIMEOUT_SECONDS = getInt("_SHUTDOWN_TIMEOUT", 10);
+
+    // Frames queued per client before the overflow policy kicks in
+    static final int OUTBOUND_QUEUE_SIZE = getInt("_OUTBOUND_QUEUE_SIZE", 1024);
+    static final OutboundQueue.OverflowPolicy OUTBOUND_OVERFLOW =
+            OutboundQueue.parsePolicy(get("_OUTBOUND_OVERFLOW", "coalesce"));
+    // Weights of the interactive, presence and bulk lanes of each client's queue (see
+    // OutboundQueue), null ("off") to send in arrival order
+    static final int[] OUTBOUND_LANES = OutboundQueue.parseWeights(get("_OUTBOUND_LANES", "8,2,1"));
+
+    // Each wake-up of a writer gathers queued frames into one write of at most this many bytes.
+    // A non-zero latency lets a writer wait that long for a fuller batch, 0 writes right away.
+    static final int FLUSH_MAX_BYTES = getInt("_FLUSH_MAX_BYTES", 64 * 1024);
+    static final long FLUSH_MAX_LATENCY_NANOS = getInt("_FLUSH_MAX_LATENCY_MICROS", 0) * 1000L;
+    static final int MAX_BATCH_FRAMES = 64;
+    // Direct messages held for offline users: per user, and how many users may have some
+    static final int OFFLINE_QUEUE_SIZE = getInt("_OFFLINE_QUEUE_SIZE", 100);
+    static final int OFFLINE_MAX_MAILBOXES = getInt("_OFFLINE_MAX_MAILBOXES", 10_000);
+    // Lobby history on disk, replayed to users as they connect
+    static final boolean HISTORY_ENABLED = Boolean.parseBoolean(get("_HISTORY_ENABLED", "true"));
+    static final String HISTORY_DIR = get("_HISTORY_DIR", "history");
+    // Each segment is mapped whole, so it must fit in an int of bytes
+    static final int HISTORY_SEGMENT_BYTES = getInt("_HISTORY_SEGMENT_MB", 64, 1, 2047) << 20;
+    static final long HISTORY_MAX_BYTES = getInt("_HISTORY_MAX_MB", 1024) * (1L << 20);
+    static final long HISTORY_RETENTION_MILLIS = getInt("_HISTORY_RETENTION_HOURS", 24 * 7) * 3_600_000L;
+    static final int HISTORY_QUEUE_SIZE = getInt("_HISTORY_QUEUE_SIZE", 64 * 1024);
+    static final int HISTORY_REPLAY = getInt("_HISTORY_REPLAY", 50);
+    static final int HISTORY_REPLAY_MAX = getInt("_HISTORY_REPLAY_MAX", 1000);
+    // Full-text search of the history, indexed in memory as it is written. Searches run on
+    // their own threads, ones that find them all busy and the queue full are turned away.
+    // A page of results is SEARCH_PAGE messages.
+    static final boolean SEARCH_ENABLED = Boolean.parseBoolean(get("_SEARCH_ENABLED", "true"));
+    static final int SEARCH_THREADS = getInt("_SEARCH_THREADS", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+    static final int SEARCH_QUEUE_SIZE = getInt("_SEARCH_QUEUE_SIZE", 256);
+    static final int SEARCH_PAGE = getInt("_SEARCH_PAGE", 50);
+    // Typing indicators: who is typing where goes out every TYPING_INTERVAL, and someone who
+    // hasn't said they are still typing for TYPING_TIMEOUT is taken to have stopped
+    static final boolean TYPING_ENABLED = Boolean.parseBoolean(get("_TYPING_ENABLED", "true"));
+    static final int TYPING_INTERVAL_MILLIS = getInt("_TYPING_INTERVAL_MILLIS", 1000);
+    static final int TYPING_TIMEOUT_MILLIS = getInt("_TYPING_TIMEOUT_MILLIS", 5000);
+    // Files shared into the chat, kept in FILE_DIR for the retention time, up to FILE_MAX_MB
+    // each and FILE_STORE_MAX_MB in all. Each upload or download is a connection of its own
+    // with a thread of its own, at most FILE_MAX_TRANSFERS at a time.
+    static final boolean FILE_ENABLED = Boolean.parseBoolean(get("_FILE_ENABLED", "true"));
+    static final String FILE_DIR = get("_FILE_DIR", "files");
+    static final long FILE_MAX_BYTES = getInt("_FILE_MAX_MB", 1024) * (1L << 20);
+    static final long FILE_STORE_MAX_BYTES = getInt("_FILE_STORE_MAX_MB", 10 * 1024) * (1L << 20);
+    static final long FILE_RETENTION_MILLIS = getInt("_FILE_RETENTION_HOURS", 24 * 7) * 3_600_000L;
+    static final int FILE_MAX_TRANSFERS = getInt("_FILE_MAX_TRANSFERS", 32);
+    // A connection that has sent nothing for the ping interval gets a PING, one still silent
+    // at the idle timeout is dropped (0 = never). Checked on a one-second wheel.
+    static final long PING_INTERVAL_NANOS = seconds(getInt("_PING_INTERVAL_SECONDS", 30));
+    static final long IDLE_TIMEOUT_NANOS = seconds(getInt("_IDLE_TIMEOUT_SECONDS", 90));
+    // A connection dropped without a DISCONNECT keeps its session (name, rooms, what is sent
+    // to it) this long for the client to resume, 0 = the user leaves at once. The last
+    // RESUME_FRAMES writes to the client are kept to resend the frames that never arrived;
+    // a write is one frame, or a whole page of history.
+    static final int RESUME_SECONDS = getInt("_RESUME_SECONDS", 60);
+    static final int RESUME_FRAMES = getInt("_RESUME_FRAMES", 256);
+    // Cluster bus: nodes listening on CLUSTER_PORT (0 = run alone) link up with the bus
+    // addresses in CLUSTER_PEERS ("host:port,host:port", may include this node) to share one
+    // chat. Node names must differ across the cluster. Frames queued per peer link before
+    // it is dropped and made again.
+    static final int CLUSTER_PORT = getInt("_CLUSTER_PORT", 0);
+    static final List<InetSocketAddress> CLUSTER_PEERS = addresses(get("_CLUSTER_PEERS", ""));
+    static final String CLUSTER_NODE = get("_CLUSTER_NODE", "node-" + PORT);
+    static final int CLUSTER_QUEUE_SIZE = getInt("_CLUSTER_QUEUE_SIZE", 64 * 1024);
+    // Clients that ask for it get frames (or pages of history) of COMPRESS_MIN_BYTES or more
+    // deflated, see Compression
+    static final boolean COMPRESSION = Boolean.parseBoolean(get("_COMPRESSION", "true"));
+    static final int COMPRESS_MIN_BYTES = getInt("_COMPRESS_MIN_BYTES", 512);
+    // TLS on the client port, with this side's certificate and key from TLS_KEYSTORE (PKCS12
+    // or JKS). TLS_TRUSTSTORE is only needed to check client certificates. A client may resume
+    // its session for the timeout, up to the cache size are kept. Cipher suites are in order of
+    // preference, see Tls.
+    static final boolean TLS = Boolean.parseBoolean(get("_TLS", "false"));
+    static final String TLS_KEYSTORE = get("_TLS_KEYSTORE", null);
+    static final String TLS_KEYSTORE_PASSWORD = get("_TLS_KEYSTORE_PASSWORD", null);
+    static final String TLS_TRUSTSTORE = get("_TLS_TRUSTSTORE", null);
+    static final String TLS_TRUSTSTORE_PASSWORD = get("_TLS_TRUSTSTORE_PASSWORD", null);
+    static final int TLS_SESSION_TIMEOUT_SECONDS = getInt("_TLS_SESSION_TIMEOUT_SECONDS", 24 * 3600);
+    static final int TLS_SESSION_CACHE_SIZE = getInt("_TLS_SESSION_CACHE_SIZE", 20_000);
+    static final List<String> TLS_CIPHERS = list(get("_TLS_CIPHERS", String.join(",", Tls.CIPHER_SUITES)));
+    // Flood protection, per second on average with bursts of up to the burst size (0 per
+    // second = no limit): chat messages per user and per address, connections per address.
+    // Messages over the limit are dropped and the sender told, connections over it are closed.
+    static final int RATE_MESSAGES_PER_SECOND = getInt("_RATE_MESSAGES_PER_SECOND", 5);
+    static final int RATE_MESSAGE_BURST = getInt("_RATE_MESSAGE_BURST", 20);
+    static final int RATE_ADDRESS_MESSAGES_PER_SECOND = getInt("_RATE_ADDRESS_MESSAGES_PER_SECOND", 50);
+    static final int RATE_ADDRESS_BURST = getInt("_RATE_ADDRESS_BURST", 200);
+    static final int RATE_CONNECTIONS_PER_SECOND = getInt("_RATE_CONNECTIONS_PER_SECOND", 20);
+    static final int RATE_CONNECTION_BURST = getInt("_RATE_CONNECTION_BURST", 100);
+    // Frames are already batched, so Nagle would only add delay
+    static final boolean TCP_NODELAY = Boolean.parseBoolean(get("_TCP_NODELAY", "true"));
+    // error, warn, info or debug (every chat message). Lines the log writer can't keep up with are dropped.
+    static final Log.Level LOG_LEVEL = Log.Level.valueOf(get("_LOG_LEVEL", "info").toUpperCase());
+    static final int LOG_QUEUE_SIZE = getInt("_LOG_QUEUE_SIZE", 16 * 1024);
+    // Prometheus text endpoint at http://METRICS_ADDRESS:METRICS_PORT/metrics, 0 turns it off.
+    // The same numbers are always registered over JMX as com.ilyun.jchat:type=Server.
+    static final int METRICS_PORT = getInt("_METRICS_PORT", 9464);
+    static final String METRICS_ADDRESS = get("_METRICS_ADDRESS", "127.0.0.1");
+
+    static {
+        try {
+            ADDRESS = InetAddress.getByName(INET_ADDRESS);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ServerConfig() {
+    }
+
+    static String get(String key, String defaultValue) {
+        String value = System.getProperty(key, dotenv.get(key));
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    // As getInt, refusing anything outside min..max
+    static int getInt(String key, int defaultValue, int min, int max) {
+        int value = getInt(key, defaultValue);
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(key + " must be from " + min + " to " + max + ", not " + value);
+        }
+        return value;
+    }
+
+    private static List<String> list(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).filter(item -> !item.isEmpty()).toList();
+    }
+
+    // Left unresolved, looked up again on every connect
+    private static List<InetSocketAddress> addresses(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String address : list.split(",")) {
+            int colon = address.lastIndexOf(':');
+            if (colon > 0) {
+                addresses.add(InetSocketAddress.createUnresolved(address.substring(0, colon).trim(),
+                        Integer.parseInt(address.substring(colon + 1).trim())));
+            }
+        }
+        return List.copyOf(addresses);
+    }
+
+    // 0 means never
+    private static long seconds(int seconds) {
+        return seconds > 0 ? seconds * 1_000_000_000L : Long.MAX_VALUE;
+    }
+}
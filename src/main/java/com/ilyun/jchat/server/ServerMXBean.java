@@ -0,0 +1,87 @@
+package com.ilyun.jchat.server;
+
+// What the server publishes over JMX as com.ilyun.jchat:type=Server. Rates are over the
+// last second, times in microseconds.
+public interface ServerMXBean {
+    int getConnectedUsers();
+
+    long getMessagesReceived();
+
+    long getMessagesSent();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    double getMessagesReceivedPerSecond();
+
+    double getMessagesSentPerSecond();
+
+    double getBytesReceivedPerSecond();
+
+    double getBytesSentPerSecond();
+
+    int getOutboundQueueDepthMax();
+
+    long getOutboundQueuedFrames();
+
+    long getOutboundDropped();
+
+    long getSlowDisconnects();
+
+    double getBroadcastMicrosMean();
+
+    double getBroadcastMicrosP99();
+
+    double getEncodeMicrosMean();
+
+    double getEncodeMicrosP99();
+
+    // Compressed size over original size, of the frames that were sent compressed
+    double getCompressionRatio();
+
+    double getCompressMicrosMean();
+
+    double getCompressMicrosP99();
+
+    // How long frames wait in the outbound queues, per lane
+    double getControlWaitMicrosP99();
+
+    double getInteractiveWaitMicrosP99();
+
+    double getPresenceWaitMicrosP99();
+
+    double getBulkWaitMicrosP99();
+
+    double getSearchMicrosMean();
+
+    double getSearchMicrosP99();
+
+    long getSessionsResumed();
+
+    // Chat messages dropped by the rate limits, and connections refused by them
+    long getThrottled();
+
+    long getConnectionsRefused();
+
+    // Typing events in, who-is-typing updates out (one per room each time), and those dropped
+    // for clients that were behind
+    long getTypingEvents();
+
+    long getTypingUpdates();
+
+    long getEphemeralDropped();
+
+    // Uploads and downloads going on, and the bytes of files moved each way
+    int getFileTransfersActive();
+
+    long getFileBytesReceived();
+
+    long getFileBytesSent();
+
+    int getClusterPeersLinked();
+
+    long getIdleReaped();
+
+    long getLogDropped();
+}
@@ -0,0 +1,111 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ilyun.jchat.Compression;
+import com.ilyun.jchat.MessageCodec;
+
+// What outlives a dropped connection: the token the client resumes with, and how far each
+// side got. Frames to the client are numbered in the order they are handed to the socket
+// (all but SESSION itself and TYPING), and the last few writes are kept, shared rather
+// than copied, so a client that comes back saying how many frames it got is sent just the
+// rest. A write can hold several frames (a page of history, or a compressed frame), each
+// is numbered. The client numbers what it sends the same way and learns from SESSION how
+// much of it was read.
+final class Session {
+    private static final SecureRandom random = new SecureRandom();
+
+    final String token;
+    // Frames read from the client
+    final AtomicLong read = new AtomicLong();
+    // The user's chat message allowance, null if unlimited. Kept here so dropping and
+    // resuming the connection doesn't refill it.
+    final TokenBucket rate;
+    // Messages are being dropped for going over it, and the user has been told
+    volatile boolean throttled;
+    // The most recent writes, the position each started at and the number of its first frame
+    private final ByteBuffer[] sent;
+    private final int[] starts;
+    private final long[] firsts;
+    private long writes;
+    private long count;
+
+    // keep: how many writes to hold on to for a rewind
+    Session(int keep) {
+        this(keep, RateLimits.userBucket());
+    }
+
+    Session(int keep, TokenBucket rate) {
+        this.rate = rate;
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        token = HexFormat.of().formatHex(bytes);
+        sent = new ByteBuffer[Math.max(1, keep)];
+        starts = new int[sent.length];
+        firsts = new long[sent.length];
+    }
+
+    // The writer took these frames for the socket
+    synchronized void sent(ByteBuffer frames) {
+        int slot = (int) (writes++ % sent.length);
+        sent[slot] = frames;
+        starts[slot] = frames.position();
+        firsts[slot] = count;
+        try {
+            count += Compression.count(frames);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt frame in a session", e);
+        }
+    }
+
+    // The frames after the first received, to be sent again, numbering on from there.
+    // Null if they are no longer all kept.
+    synchronized ByteBuffer[] rewind(long received) {
+        ByteBuffer[] missed = null;
+        // The last write starting at or before frame received, it may have been taken part way
+        long from = writes - 1;
+        long oldest = Math.max(0, writes - sent.length);
+        while (from >= oldest && firsts[slot(from)] > received) {
+            from--;
+        }
+        if (received == count) {
+            missed = new ByteBuffer[0];
+        } else if (received >= 0 && received < count && from >= oldest) {
+            missed = new ByteBuffer[(int) (writes - from)];
+            for (int i = 0; i < missed.length; i++) {
+                int slot = slot(from + i);
+                missed[i] = sent[slot].duplicate().position(starts[slot]);
+            }
+            skipFrames(missed[0], received - firsts[slot(from)]);
+        }
+        Arrays.fill(sent, null);
+        writes = 0;
+        count = Math.max(0, received);
+        return missed;
+    }
+
+    private int slot(long write) {
+        return (int) (write % sent.length);
+    }
+
+    // Past skip frames, a compressed frame being as many as it holds. The client takes all of
+    // those in one go, so skip never ends inside one.
+    private static void skipFrames(ByteBuffer frames, long skip) {
+        try {
+            long skipped = 0;
+            while (frames.hasRemaining()) {
+                skipped += Compression.framesIn(frames);
+                if (skipped > skip) {
+                    break;
+                }
+                frames.position(frames.position() + MessageCodec.frameSize(frames));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt frame in a session", e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import javax.net.ssl.*;
+
+// A non-blocking socket channel with TLS over it, for the NIO loops: reads hand out
+// decrypted bytes and writes take plain ones, like the channel itself. The handshake happens
+// along the way, as bytes for it come in. Bytes the socket would not take are kept and go
+// out on the next write or flush, so a write can take everything and still leave some of it
+// unsent: check flush() before taking the socket for drained.
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // Read from the socket but not unwrapped yet, filled from position 0
+    private ByteBuffer netIn;
+    // Wrapped but not written yet, ready to read out
+    private ByteBuffer netOut;
+    // Unwrapped but not read yet, ready to read out
+    private ByteBuffer appIn;
+    private boolean inputClosed;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+    }
+
+    // Decrypted bytes, 0 if a whole record hasn't arrived yet, -1 once the peer has closed.
+    // Once the channel is made blocking (a transfer connection) it waits for a whole record.
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!appIn.hasRemaining()) {
+            do {
+                fill();
+            } while (!appIn.hasRemaining() && !inputClosed && channel.isBlocking());
+        }
+        if (!appIn.hasRemaining()) {
+            return inputClosed ? -1 : 0;
+        }
+        int count = Math.min(dst.remaining(), appIn.remaining());
+        dst.put(dst.position(), appIn, appIn.position(), count);
+        dst.position(dst.position() + count);
+        appIn.position(appIn.position() + count);
+        return count;
+    }
+
+    // Decrypted bytes are waiting that the socket being readable won't signal
+    boolean hasBuffered() {
+        return appIn.hasRemaining();
+    }
+
+    // One read from the socket, then every whole record in what has come so far
+    private void fill() throws IOException {
+        if (!netIn.hasRemaining()) {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+        }
+        if (channel.read(netIn) < 0) {
+            inputClosed = true;
+        }
+        netIn.flip();
+        appIn.clear();
+        try {
+            while (true) {
+                handshake();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    inputClosed = true;
+                    break;
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        || result.bytesConsumed() == 0 && !handshaking()) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        handshake();
+        flush();
+    }
+
+    // Runs the handshake as far as it goes without more from the peer
+    private void handshake() throws IOException {
+        while (true) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(new ByteBuffer[]{EMPTY}, 0, 1);
+                if (engine.isOutboundDone()) {
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private boolean handshaking() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+    }
+
+    // Plain bytes taken from srcs, as far as the socket takes them once wrapped
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long taken = 0;
+        while (flush()) {
+            SSLEngineResult result = wrap(srcs, offset, length);
+            taken += result.bytesConsumed();
+            if (result.bytesConsumed() == 0) {
+                flush();
+                break;
+            }
+        }
+        return taken;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    // Appends to netOut, growing it if a record doesn't fit
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut.compact(), engine.getSession().getPacketBufferSize()).flip();
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+                throw new ClosedChannelException();
+            } else {
+                return result;
+            }
+        }
+    }
+
+    // Writes what is wrapped, true once all of it is out
+    boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // Says goodbye with a close_notify if the socket takes it, then closes
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            handshake();
+            flush();
+        } catch (IOException e) {
+            // Going away either way
+        } finally {
+            channel.close();
+        }
+    }
+
+    // The same bytes, in write mode, with extra more room
+    private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+        return ByteBuffer.allocate(buffer.capacity() + extra).put(buffer.flip());
+    }
+}
@@ -0,0 +1,61 @@
+package com.ilyun.jchat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// Lets through perSecond takes a second on average, and bursts of up to burst at once.
+// Kept as a single time (when the bucket will be full again) moved forward by one interval
+// per take, so taking is one compare-and-set and the bucket needs no refill timer.
+final class TokenBucket {
+    private final long interval;
+    private final long capacity;
+    private final AtomicLong full;
+    private final LongSupplier clock;
+
+    TokenBucket(double perSecond, int burst) {
+        this(perSecond, burst, System::nanoTime);
+    }
+
+    // clock gives nanos like System.nanoTime, tests pass one they move by hand
+    TokenBucket(double perSecond, int burst, LongSupplier clock) {
+        interval = Math.max(1, (long) (1e9 / perSecond));
+        capacity = Math.max(1, burst) * interval;
+        this.clock = clock;
+        full = new AtomicLong(clock.getAsLong());
+    }
+
+    // Null if perSecond is 0, i.e. no limit
+    static TokenBucket of(double perSecond, int burst) {
+        return perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+    }
+
+    boolean tryTake() {
+        long now = clock.getAsLong();
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current, now) + interval;
+            if (next - now > capacity) {
+                return false;
+            }
+            if (full.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Undo a take that went through, for one that turned out not to be needed after all
+    void giveBack() {
+        full.addAndGet(-interval);
+    }
+
+    // Nanos until the next take would go through, 0 if now
+    long waitNanos() {
+        long now = clock.getAsLong();
+        return Math.max(0, full.get() + interval - capacity - now);
+    }
+
+    // Back to a full bucket, nothing is lost by forgetting it
+    boolean isFull() {
+        return full.get() - clock.getAsLong() <= 0;
+    }
+}
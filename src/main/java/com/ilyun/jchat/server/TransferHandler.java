@@ -0,0 +1,283 @@
+package com.ilyun.jchat.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// One file transfer connection (see MessageCodec), on a thread of its own with blocking
+// channels, handed over by the chat side once the hello asked for it. Chunks of an upload
+// go from the socket to the part file with transferFrom, downloads from the file to the
+// socket with transferTo, which over a plain socket is sendfile and never copies the bytes
+// through the heap. The client only sends so far ahead of the acknowledgements, so a slow
+// disk holds the client back rather than filling memory here.
+final class TransferHandler implements Runnable, IdleReaper.Watched {
+    // Each transferTo call of a download, so the idle reaper sees it move
+    private static final long SEND_STEP = 1 << 20;
+
+    private final FileStore store;
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    // Read before the handover, taken before anything more from in
+    private final ByteBuffer pending;
+    private final DataInputStream frames = new DataInputStream(new Input());
+    private final int version;
+    private final Closeable socket;
+    private String username;
+    private volatile long lastProgress = System.nanoTime();
+    private volatile boolean closed;
+
+    // store null if file sharing is off. socket is closed when done, which closes the channels.
+    TransferHandler(FileStore store, ReadableByteChannel in, WritableByteChannel out, ByteBuffer pending,
+                    int version, Closeable socket) {
+        this.store = store;
+        this.in = in;
+        this.out = out;
+        this.pending = pending;
+        this.version = version;
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        boolean started = false;
+        try {
+            write(ByteBuffer.wrap(MessageCodec.hello(version, 0)));
+            if (version == 0) {
+                return;
+            }
+            if (store == null) {
+                refuse("File sharing is off on this server");
+                return;
+            }
+            Message login = MessageCodec.readFrame(frames);
+            if (login.getType() != Message.Type.CONNECT || !ChatServer.hasSession(login.getSender(), login.getContent())) {
+                refuse("Log in before sharing files");
+                return;
+            }
+            username = login.getSender();
+            if (!(started = store.begin())) {
+                refuse("Too many file transfers, try again in a moment");
+                return;
+            }
+            while (true) {
+                Message request = MessageCodec.readFrame(frames);
+                lastProgress = System.nanoTime();
+                if (request.getType() != Message.Type.FILE || !handle(request)) {
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            // Client is done
+        } catch (IOException e) {
+            if (!closed) {
+                Log.info("Transfer for %s lost: %s", username, e.getMessage());
+            }
+        } finally {
+            if (started) {
+                store.end();
+            }
+            close();
+        }
+    }
+
+    // One command, returns false if it was refused
+    private boolean handle(Message request) throws IOException {
+        String[] command = request.getContent().split(" ", 3);
+        try {
+            if (command[0].equals("put") && command.length == 3) {
+                return put(Long.parseLong(command[1]), command[2], request.getRoom(), request.getRecipient());
+            } else if (command[0].equals("resume") && command.length == 2) {
+                return resume(command[1]);
+            } else if (command[0].equals("get") && command.length == 3) {
+                return get(command[1], Long.parseLong(command[2]));
+            }
+        } catch (NumberFormatException e) {
+            // Refused below
+        }
+        return refuse("Unknown file request");
+    }
+
+    private boolean put(long size, String name, String room, String recipient) throws IOException {
+        if (size < 0 || size > store.maxFileBytes()) {
+            return refuse("Files can be at most " + (store.maxFileBytes() >> 20) + " MB");
+        }
+        if (name.isBlank() || name.length() > 255) {
+            return refuse("Not a file name");
+        }
+        if (room != null && !ChatServer.isMember(username, room)) {
+            return refuse("You are not in #" + room);
+        }
+        if (recipient != null && ChatServer.isRemote(recipient)) {
+            return refuse(recipient + " is on another server, files can't reach them from here");
+        }
+        FileStore.Upload upload = store.create(username, name.strip(), size, room, recipient);
+        if (upload == null) {
+            return refuse("The server has no room for more files right now");
+        }
+        Log.info("↑ %s is uploading %s (%,d bytes)", username, upload.name, size);
+        return receive(upload);
+    }
+
+    private boolean resume(String id) throws IOException {
+        FileStore.Upload upload = store.upload(id);
+        if (upload == null || !upload.owner.equals(username)) {
+            return refuse("No such upload");
+        }
+        if (!upload.claim()) {
+            return refuse("That upload is still going on another connection");
+        }
+        Log.info("↑ %s is resuming %s at %,d bytes", username, upload.name, upload.received);
+        return receive(upload);
+    }
+
+    // Chunks into the part file until all of it is in, then it is shared like a chat
+    // message. Cut off partway, what came so far stays for a resume.
+    private boolean receive(FileStore.Upload upload) throws IOException {
+        try (FileChannel file = store.open(upload)) {
+            // The last acknowledgement goes once the file can be fetched, so the client may
+            // announce or fetch it as soon as it has that. An empty file has none to wait for.
+            if (upload.received == upload.size) {
+                store.complete(upload, file);
+            }
+            send(new Message(Message.Type.FILE, "Server", upload.id, System.currentTimeMillis(), upload.received));
+            while (upload.received < upload.size) {
+                int length = frames.readInt();
+                if (length <= 0 || length > MessageCodec.MAX_CHUNK_SIZE || length > upload.size - upload.received) {
+                    throw new StreamCorruptedException("Invalid chunk length: " + length);
+                }
+                long position = upload.received;
+                long end = position + length;
+                while (pending.hasRemaining() && position < end) {
+                    ByteBuffer bytes = pending.slice(pending.position(), (int) Math.min(pending.remaining(), end - position));
+                    pending.position(pending.position() + bytes.remaining());
+                    while (bytes.hasRemaining()) {
+                        position += file.write(bytes, position);
+                    }
+                }
+                while (position < end) {
+                    long read = file.transferFrom(in, position, end - position);
+                    if (read == 0) {
+                        throw new EOFException("Upload cut off");
+                    }
+                    position += read;
+                    lastProgress = System.nanoTime();
+                }
+                FileStore.bytesIn.add(length);
+                upload.received = end;
+                if (end == upload.size) {
+                    store.complete(upload, file);
+                }
+                send(new Message(Message.Type.FILE, "Server", upload.id, System.currentTimeMillis(), end));
+            }
+        } finally {
+            upload.release();
+        }
+        Log.info("↑ %s shared %s", username, upload.name);
+        ChatServer.shareFile(username, upload);
+        return true;
+    }
+
+    private boolean get(String id, long offset) throws IOException {
+        Path path = store.file(id);
+        if (path == null) {
+            return refuse("No such file, it may have expired");
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            send(new Message(Message.Type.FILE, "Server", id, System.currentTimeMillis(), size));
+            long position = Math.clamp(offset, 0, size);
+            while (position < size) {
+                long sent = file.transferTo(position, Math.min(SEND_STEP, size - position), out);
+                if (sent == 0 && !out.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                position += sent;
+                FileStore.bytesOut.add(sent);
+                lastProgress = System.nanoTime();
+            }
+        }
+        return true;
+    }
+
+    // Always false, for returning from a command
+    private boolean refuse(String reason) throws IOException {
+        send(new Message(Message.Type.NOTICE, "Server", reason));
+        return false;
+    }
+
+    private void send(Message message) throws IOException {
+        write(ByteBuffer.wrap(MessageCodec.encode(message)));
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    private void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Going away either way
+        }
+    }
+
+    @Override
+    public long lastReadNanos() {
+        return lastProgress;
+    }
+
+    @Override
+    public boolean canPing() {
+        return false;
+    }
+
+    @Override
+    public void ping() {
+    }
+
+    // The blocked read or write fails and the transfer ends
+    @Override
+    public void reap() {
+        Log.info("✗ Transfer for %s stalled, dropping", username);
+        close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Frames and chunk lengths: the bytes read before the handover first, then the channel
+    private final class Input extends InputStream {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (pending.hasRemaining()) {
+                int count = Math.min(length, pending.remaining());
+                pending.get(bytes, offset, count);
+                return count;
+            }
+            int read = in.read(ByteBuffer.wrap(bytes, offset, length));
+            if (read > 0) {
+                lastProgress = System.nanoTime();
+            }
+            return read == 0 ? -1 : read;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ilyun.jchat.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import com.ilyun.jchat.Message;
+
+// Who is typing, in the lobby and in each room. Clients say so at most every few seconds
+// while the user types (see ChatClient.typing), which only stamps the user in their room.
+// Once per interval one thread sends every room that has typists, or has just lost its
+// last one, a single TYPING naming a few of them and counting all, encoded once for all of
+// its members. What a member gets is one frame per room per interval however many are
+// typing, and nothing at all while nobody is. None of it is kept: not in the history, not
+// numbered for a resume, and it is the first thing a backed-up outbound queue throws away.
+final class TypingRelay implements Runnable {
+    static final LongAdder events = new LongAdder();
+    static final LongAdder updates = new LongAdder();
+
+    // Named in an update, the rest are only counted
+    private static final int NAMES = 3;
+    // ConcurrentHashMap keys can't be null
+    private static final String LOBBY = "";
+
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private static final class Room {
+        // Each typist, replaced on every word from them so a timeout can't take a fresh one
+        final Map<String, Typist> typists = new ConcurrentHashMap<>();
+        // Someone started or stopped since the last update
+        volatile boolean changed;
+    }
+
+    // When they last said they are typing, and when other nodes were last told
+    private record Typist(long at, long published) {
+    }
+
+    // A typist is dropped timeoutNanos after they last said they are typing
+    TypingRelay(long intervalNanos, long timeoutNanos) {
+        this.intervalNanos = intervalNanos;
+        this.timeoutNanos = timeoutNanos;
+        thread = new Thread(this, "typing");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    // room null for the lobby. Returns whether other nodes should hear of it: the user just
+    // started, or they were last told an interval ago, so a client saying it on every
+    // keystroke costs the bus no more than the clients here.
+    boolean typing(String username, String room) {
+        events.increment();
+        long now = System.nanoTime();
+        boolean[] publish = new boolean[1];
+        rooms.compute(key(room), (key, state) -> {
+            Room current = state != null ? state : new Room();
+            current.typists.compute(username, (name, typist) -> {
+                if (typist == null) {
+                    current.changed = true;
+                } else if (now - typist.published < intervalNanos) {
+                    return new Typist(now, typist.published);
+                }
+                publish[0] = true;
+                return new Typist(now, now);
+            });
+            return current;
+        });
+        return publish[0];
+    }
+
+    // They sent what they were typing, or left
+    void stopped(String username, String room) {
+        Room state = rooms.get(key(room));
+        if (state != null && state.typists.remove(username) != null) {
+            state.changed = true;
+        }
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime() + intervalNanos;
+        while (running) {
+            try {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            next += intervalNanos;
+            tick(System.nanoTime());
+        }
+    }
+
+    private void tick(long now) {
+        for (Map.Entry<String, Room> entry : rooms.entrySet()) {
+            Room state = entry.getValue();
+            if (state.typists.values().removeIf(typist -> now - typist.at >= timeoutNanos)) {
+                state.changed = true;
+            }
+            if (!state.changed && state.typists.isEmpty()) {
+                // Told already that nobody is typing, forget the room unless someone just started
+                rooms.computeIfPresent(entry.getKey(), (key, current) ->
+                        current.typists.isEmpty() && !current.changed ? null : current);
+                continue;
+            }
+            state.changed = false;
+            List<String> names = new ArrayList<>(NAMES);
+            int count = 0;
+            for (String typist : state.typists.keySet()) {
+                if (names.size() < NAMES) {
+                    names.add(typist);
+                }
+                count++;
+            }
+            Message update = new Message(Message.Type.TYPING, "Server", String.join(",", names),
+                    System.currentTimeMillis(), count);
+            update.setRoom(entry.getKey().equals(LOBBY) ? null : entry.getKey());
+            updates.increment();
+            ChatServer.sendTyping(update);
+        }
+    }
+
+    private static String key(String room) {
+        return room == null ? LOBBY : room;
+    }
+}
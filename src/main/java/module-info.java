@@ -11,7 +11,11 @@ module com.ilyun.jchat {
     requires eu.hansolo.tilesfx;
     requires atlantafx.base;
     requires java.dotenv;
+    requires java.management;
+    requires jdk.httpserver;
 
     opens com.ilyun.jchat to javafx.fxml;
     exports com.ilyun.jchat.client;
+    // ServerMXBean, which JMX reads reflectively
+    exports com.ilyun.jchat.server to java.management;
 }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.ilyun.jchat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionTest {
+    private static final int FRAMES = 50;
+
+    @Test
+    void readerOpensCompressedFramesOneMessageAtATime() throws IOException {
+        ByteBuffer compressed = Compression.compress(frames(FRAMES), FRAMES);
+        assertNotNull(compressed);
+        assertTrue(Compression.isCompressed(compressed));
+        assertEquals(FRAMES, Compression.framesIn(compressed));
+
+        // Then a plain frame after it on the same stream
+        byte[] plain = MessageCodec.encode(new Message(Message.Type.TEXT, "bob", "after", 1));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(compressed.array(), 0, compressed.limit());
+        stream.write(plain);
+
+        FrameReader reader = new FrameReader();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(text(i), reader.read(in).getContent());
+        }
+        assertEquals("after", reader.read(in).getContent());
+
+        // The same through poll, with the bytes arriving one at a time
+        FrameReader poller = new FrameReader();
+        byte[] bytes = stream.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length).flip();
+        List<String> polled = new ArrayList<>();
+        for (byte b : bytes) {
+            buffer.compact().put(b).flip();
+            Message message;
+            while ((message = poller.poll(buffer)) != null) {
+                polled.add(message.getContent());
+            }
+        }
+        assertEquals(FRAMES + 1, polled.size());
+        assertEquals(text(FRAMES - 1), polled.get(FRAMES - 1));
+    }
+
+    @Test
+    void smallFramesAreNotCompressed() {
+        ByteBuffer frame = ByteBuffer.wrap(MessageCodec.encode(new Message(Message.Type.TEXT, "bob", "hi", 1)));
+        assertNull(Compression.compress(frame, 1));
+    }
+
+    @Test
+    void frameCutShortInsideIsCorrupt() throws IOException {
+        ByteBuffer frames = frames(FRAMES);
+        frames.limit(frames.limit() - 1);
+        ByteBuffer compressed = Compression.compress(frames, FRAMES);
+        FrameReader reader = new FrameReader();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(compressed.array(), 0, compressed.limit()));
+        for (int i = 0; i < FRAMES - 1; i++) {
+            assertEquals(text(i), reader.read(in).getContent());
+        }
+        assertThrows(StreamCorruptedException.class, () -> reader.read(in));
+    }
+
+    @Test
+    void deflateStreamCutShortIsCorrupt() throws IOException {
+        ByteBuffer compressed = Compression.compress(frames(FRAMES), FRAMES);
+        MessageCodec.getVarLong(compressed); // length prefix
+        ByteBuffer body = compressed.slice(compressed.position(), compressed.remaining() - 10);
+        ByteBuffer cut = ByteBuffer.allocate(body.remaining() + 5);
+        MessageCodec.putVarLong(cut, body.remaining());
+        cut.put(body).flip();
+        assertThrows(StreamCorruptedException.class, () -> new FrameReader().poll(cut));
+    }
+
+    // count chat messages like those in a burst, as whole frames one after the other
+    private static ByteBuffer frames(int count) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            frames.writeBytes(MessageCodec.encode(new Message(Message.Type.TEXT, "alice", text(i), 1_700_000_000_000L + i)));
+        }
+        return ByteBuffer.wrap(frames.toByteArray());
+    }
+
+    private static String text(int i) {
+        return "the build failed again because of that null check, message " + i;
+    }
+}
@@ -0,0 +1,118 @@
+package com.ilyun.jchat;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageCodecTest {
+
+    @Test
+    void roundTripsEveryField() throws IOException {
+        Message message = new Message(Message.Type.PRIVATE, "alice", "héllo ✓", 1_700_000_000_123L, 42);
+        message.setRoom("dev");
+        message.setRecipient("bob");
+        assertMessageEquals(message, roundTrip(message), message);
+
+        // Without the optional fields
+        Message plain = new Message(Message.Type.TEXT, "alice", "", 1);
+        assertMessageEquals(plain, roundTrip(plain), plain);
+    }
+
+    @Test
+    void sharedFrameIsTheSameBytes() {
+        Message message = new Message(Message.Type.TEXT, "alice", "hi", 5, 7);
+        message.setRoom("dev");
+        ByteBuffer shared = MessageCodec.encodeShared(message);
+        byte[] bytes = new byte[shared.remaining()];
+        shared.duplicate().get(bytes);
+        assertArrayEquals(MessageCodec.encode(message), bytes);
+        assertTrue(shared.isReadOnly());
+        assertEquals(Message.Type.TEXT, MessageCodec.typeOf(shared));
+    }
+
+    @Test
+    void pollWaitsForTheWholeFrame() throws IOException {
+        byte[] first = MessageCodec.encode(new Message(Message.Type.TEXT, "alice", "x".repeat(300), 1));
+        byte[] second = MessageCodec.encode(new Message(Message.Type.TEXT, "bob", "y", 2));
+        ByteBuffer stream = ByteBuffer.allocate(first.length + second.length);
+        stream.put(first).put(second).flip();
+
+        for (int cut : new int[]{0, 1, 2, first.length - 1}) {
+            ByteBuffer partial = stream.duplicate().limit(cut);
+            assertNull(MessageCodec.poll(partial));
+            assertEquals(0, partial.position(), "consumed part of a frame cut at " + cut);
+        }
+        assertEquals("alice", MessageCodec.poll(stream).getSender());
+        assertEquals("bob", MessageCodec.poll(stream).getSender());
+        assertNull(MessageCodec.poll(stream));
+    }
+
+    @Test
+    void truncatedBodyIsRejected() {
+        Message message = new Message(Message.Type.TEXT, "alice", "hello", 1, 2);
+        message.setRoom("dev");
+        byte[] frame = MessageCodec.encode(message);
+        // A one byte length prefix, then the body less its end
+        for (int length = 1; length < frame.length - 1; length++) {
+            ByteBuffer body = ByteBuffer.wrap(frame, 1, length).slice();
+            assertThrows(StreamCorruptedException.class, () -> MessageCodec.decode(body), "body cut to " + length);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 0, frame.length - 1));
+        assertThrows(EOFException.class, () -> MessageCodec.readFrame(in));
+    }
+
+    @Test
+    void badLengthsAreRejected() {
+        // A string length that reads as negative
+        ByteBuffer body = ByteBuffer.allocate(32);
+        body.put((byte) Message.Type.TEXT.ordinal()).put((byte) 0);
+        MessageCodec.putVarLong(body, -1);
+        assertThrows(StreamCorruptedException.class, () -> MessageCodec.decode(body.flip()));
+
+        // A frame longer than any allowed
+        ByteBuffer huge = ByteBuffer.allocate(8);
+        MessageCodec.putVarLong(huge, MessageCodec.MAX_FRAME_SIZE + 1);
+        assertThrows(StreamCorruptedException.class, () -> MessageCodec.frameSize(huge.flip()));
+
+        ByteBuffer unknown = ByteBuffer.wrap(new byte[]{(byte) Message.Type.values().length, 0, 0, 0, 0});
+        assertThrows(StreamCorruptedException.class, () -> MessageCodec.decode(unknown));
+    }
+
+    @Test
+    void helloAndVersions() throws IOException {
+        byte[] hello = MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, MessageCodec.COMPRESS_FLAG);
+        MessageCodec.Hello read = MessageCodec.readHello(new DataInputStream(new ByteArrayInputStream(hello)));
+        assertEquals(new MessageCodec.Hello(MessageCodec.PROTOCOL_VERSION, MessageCodec.COMPRESS_FLAG), read);
+        assertNull(MessageCodec.pollHello(ByteBuffer.wrap(hello, 0, 3)));
+        assertThrows(StreamCorruptedException.class,
+                () -> MessageCodec.pollHello(ByteBuffer.wrap(new byte[]{'H', 'T', 'T', 'P'})));
+
+        assertEquals(MessageCodec.PROTOCOL_VERSION, MessageCodec.negotiate(MessageCodec.PROTOCOL_VERSION + 5));
+        assertEquals(MessageCodec.MIN_PROTOCOL_VERSION, MessageCodec.negotiate(MessageCodec.MIN_PROTOCOL_VERSION));
+        assertEquals(0, MessageCodec.negotiate(MessageCodec.MIN_PROTOCOL_VERSION - 1));
+        // Nothing is newer than the version we speak
+        for (Message.Type type : Message.Type.values()) {
+            int since = MessageCodec.since(type);
+            assertTrue(since >= MessageCodec.MIN_PROTOCOL_VERSION && since <= MessageCodec.PROTOCOL_VERSION, type.name());
+        }
+    }
+
+    private static Message roundTrip(Message message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MessageCodec.writeFrame(out, message);
+        return MessageCodec.readFrame(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    private static void assertMessageEquals(Message expected, Message actual, Message described) {
+        String what = described.getType() + " " + described.getContent();
+        assertEquals(expected.getType(), actual.getType(), what);
+        assertEquals(expected.getSender(), actual.getSender(), what);
+        assertEquals(expected.getContent(), actual.getContent(), what);
+        assertEquals(expected.getTimestamp(), actual.getTimestamp(), what);
+        assertEquals(expected.getSeq(), actual.getSeq(), what);
+        assertEquals(expected.getRoom(), actual.getRoom(), what);
+        assertEquals(expected.getRecipient(), actual.getRecipient(), what);
+    }
+}
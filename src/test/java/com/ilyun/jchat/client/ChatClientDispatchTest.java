@@ -0,0 +1,86 @@
+package com.ilyun.jchat.client;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A burst from the server reaches the handler whole and in order, in batches rather than
+// one call per message
+class ChatClientDispatchTest {
+    private static final int MESSAGES = 100_000;
+
+    @Test
+    void burstIsHandedOverInBatches() throws Exception {
+        ExecutorService dispatch = Executors.newSingleThreadExecutor();
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread fake = new Thread(() -> serve(server), "fake-server");
+            fake.setDaemon(true);
+            fake.start();
+
+            List<String> texts = new ArrayList<>();
+            List<Integer> batches = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(1);
+            ChatClient client = new ChatClient(dispatch);
+            assertTrue(client.connect("127.0.0.1", server.getLocalPort(), "reader", 0, batch -> {
+                batches.add(batch.size());
+                for (Message message : batch) {
+                    if (message.getType() == Message.Type.TEXT) {
+                        texts.add(message.getContent());
+                    }
+                }
+                if (texts.size() == MESSAGES) {
+                    done.countDown();
+                }
+                // A handler that takes a moment, like a UI laying out what it got
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            try {
+                assertTrue(done.await(30, TimeUnit.SECONDS), "got " + texts.size() + " of " + MESSAGES);
+            } finally {
+                client.disconnect();
+            }
+            // Only ever touched on the dispatch thread, the latch makes it visible here
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals("m" + i, texts.get(i));
+            }
+            assertTrue(batches.size() < MESSAGES / 10, batches.size() + " batches");
+            assertTrue(batches.stream().allMatch(size -> size <= 4096), "batch over the limit: " + batches);
+        } finally {
+            dispatch.shutdownNow();
+        }
+    }
+
+    // The handshake, a session, then the whole burst at once
+    private static void serve(ServerSocket server) {
+        try (Socket socket = server.accept()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            MessageCodec.readHello(in);
+            out.write(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, 0));
+            out.flush();
+            MessageCodec.readFrame(in); // CONNECT
+            MessageCodec.writeFrame(out, new Message(Message.Type.SESSION, "Server", "token"));
+            for (int i = 0; i < MESSAGES; i++) {
+                MessageCodec.writeFrame(out, new Message(Message.Type.TEXT, "writer", "m" + i));
+            }
+            out.flush();
+            // Until the client hangs up
+            while (in.read() != -1) {
+            }
+        } catch (IOException e) {
+            // the client went, nothing left to do
+        }
+    }
+}
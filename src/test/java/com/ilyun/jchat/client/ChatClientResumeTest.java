@@ -0,0 +1,123 @@
+package com.ilyun.jchat.client;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import com.ilyun.jchat.FrameReader;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// After a drop the client sends again what the server says it never read, before anything
+// new, against a fake server that reads everything and then claims it got less
+class ChatClientResumeTest {
+    private static final int RESEND_FRAMES = 256;
+
+    @Test
+    void resendsWhatTheServerDidNotRead() throws Exception {
+        // Plain, then long enough that each frame goes compressed
+        for (int flags : new int[] {0, MessageCodec.COMPRESS_FLAG}) {
+            String padding = flags != 0 ? "x".repeat(600) : "";
+            List<String> resent = resume(5, 2, flags, padding, new LinkedBlockingQueue<>());
+            assertEquals(List.of("c2" + padding, "c3" + padding, "c4" + padding, "new"), resent, "flags " + flags);
+        }
+    }
+
+    @Test
+    void gapOlderThanWhatIsKeptIsOwnedUpTo() throws Exception {
+        BlockingQueue<Message> delivered = new LinkedBlockingQueue<>();
+        List<String> resent = resume(RESEND_FRAMES + 10, 0, 0, "", delivered);
+        assertEquals(RESEND_FRAMES + 1, resent.size());
+        assertEquals("c10", resent.get(0));
+        assertEquals("new", resent.get(RESEND_FRAMES));
+
+        Message notice;
+        do {
+            notice = delivered.poll(10, TimeUnit.SECONDS);
+            assertNotNull(notice, "no notice of the gap");
+        } while (notice.getType() != Message.Type.NOTICE);
+        assertTrue(notice.getContent().contains("never reached the server"), notice.getContent());
+    }
+
+    // The client sends count messages, all read by the server, which drops the connection
+    // and then resumes the session saying it read only the first read. Returns what comes
+    // after the resume, up to and including a message sent once it is back.
+    private static List<String> resume(int count, int read, int flags, String padding,
+                                       BlockingQueue<Message> delivered) throws Exception {
+        ExecutorService fake = Executors.newSingleThreadExecutor();
+        ChatClient client = new ChatClient(Runnable::run);
+        try (ServerSocket server = new ServerSocket(0)) {
+            Future<Connection> accepted = fake.submit(() -> new Connection(server.accept(), flags));
+            assertTrue(client.connect("127.0.0.1", server.getLocalPort(), "alice", 0, delivered::addAll));
+            try (Connection first = accepted.get(10, TimeUnit.SECONDS)) {
+                assertEquals("", first.connect.getContent());
+                first.session(0);
+                for (int i = 0; i < count; i++) {
+                    assertTrue(client.sendText("c" + i + padding));
+                }
+                for (int i = 0; i < count; i++) {
+                    assertEquals("c" + i + padding, first.read().getContent());
+                }
+            }
+
+            try (Connection second = fake.submit(() -> new Connection(server.accept(), flags)).get(10, TimeUnit.SECONDS)) {
+                assertEquals("token 0", second.connect.getContent());
+                second.session(read);
+                client.sendText("new");
+                List<String> texts = new ArrayList<>();
+                do {
+                    texts.add(second.read().getContent());
+                } while (!texts.get(texts.size() - 1).equals("new"));
+                return texts;
+            }
+        } finally {
+            client.disconnect();
+            fake.shutdownNow();
+        }
+    }
+
+    // The server end of one connection, past the handshake and the CONNECT
+    private static final class Connection implements Closeable {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final FrameReader reader = new FrameReader();
+        final Message connect;
+
+        Connection(Socket socket, int flags) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(10_000);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            MessageCodec.readHello(in);
+            out.write(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, flags));
+            out.flush();
+            connect = MessageCodec.readFrame(in);
+        }
+
+        // Logged in, with read of the client's frames read
+        void session(long read) throws IOException {
+            MessageCodec.writeFrame(out, new Message(Message.Type.SESSION, "Server", "token", System.currentTimeMillis(), read));
+            out.flush();
+        }
+
+        // The next chat message from the client
+        Message read() throws IOException {
+            Message message;
+            do {
+                message = reader.read(in);
+            } while (message.getType() != Message.Type.TEXT);
+            return message;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.ilyun.jchat.client;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Scrollback kept between runs: what was cached comes back after a restart, a message cut
+// short by a crash is not shown, and a room over its size loses its oldest segments
+class MessageCacheTest {
+    private static final long START = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsBackWhatWasCachedAfterReopening() throws Exception {
+        MessageCache cache = open(64 * 1024, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            cache.append(message(null, i));
+            cache.append(message("dev", i));
+        }
+        cache.close();
+
+        cache = open(64 * 1024, Long.MAX_VALUE);
+        assertEquals(START + 99, cache.lastTimestamp(null));
+        assertEquals(texts(null, 90, 100), contents(cache.before(null, Long.MAX_VALUE, 10)));
+        assertEquals(texts("dev", 40, 50), contents(cache.before("dev", START + 50, 10)));
+        assertEquals("dev", cache.before("dev", Long.MAX_VALUE, 1).get(0).getRoom());
+        assertEquals(0, cache.lastTimestamp("ops"));
+        assertTrue(cache.before("ops", Long.MAX_VALUE, 10).isEmpty());
+
+        // and carries on where it left off
+        cache.append(message(null, 100));
+        cache.close();
+        cache = open(64 * 1024, Long.MAX_VALUE);
+        assertEquals(texts(null, 0, 101), contents(cache.before(null, Long.MAX_VALUE, 1000)));
+        cache.close();
+    }
+
+    @Test
+    void messageCutShortIsDropped() throws Exception {
+        for (String room : new String[] {null, "dev"}) {
+            int last = MessageCodec.encode(message(room, 9)).length;
+            long end = IntStream.range(0, 10).map(i -> MessageCodec.encode(message(room, i)).length).sum();
+            for (int cut = 1; cut < last; cut++) {
+                Path copy = dir.resolve((room == null ? "lobby" : room) + cut);
+                MessageCache cache = new MessageCache(copy, "localhost", 5000, "alice", 64 * 1024, Long.MAX_VALUE);
+                for (int i = 0; i < 10; i++) {
+                    cache.append(message(room, i));
+                }
+                cache.close();
+                try (FileChannel channel = FileChannel.open(segments(copy).get(0), StandardOpenOption.WRITE)) {
+                    channel.truncate(end - last + cut);
+                }
+
+                cache = new MessageCache(copy, "localhost", 5000, "alice", 64 * 1024, Long.MAX_VALUE);
+                assertEquals(texts(room, 0, 9), contents(cache.before(room, Long.MAX_VALUE, 100)), "cut at " + cut);
+                assertEquals(START + 8, cache.lastTimestamp(room));
+                cache.append(message(room, 10));
+                cache.close();
+
+                // Written over, not after it
+                cache = new MessageCache(copy, "localhost", 5000, "alice", 64 * 1024, Long.MAX_VALUE);
+                List<String> cached = contents(cache.before(room, Long.MAX_VALUE, 100));
+                assertEquals(10, cached.size(), "cut at " + cut);
+                assertEquals(text(room, 10), cached.get(9));
+                cache.close();
+            }
+        }
+    }
+
+    @Test
+    void rollsSegmentsAndDropsTheOldestOverTheLimit() throws Exception {
+        MessageCache cache = open(4096, 3 * 4096);
+        for (int i = 0; i < 500; i++) {
+            cache.append(message(null, i));
+        }
+        cache.close();
+
+        cache = open(4096, 3 * 4096);
+        assertTrue(segments(dir).size() <= 3, segments(dir).toString());
+        List<Message> cached = cache.before(null, Long.MAX_VALUE, 1000);
+        // What is left is the newest, with nothing missing in between, read across segments
+        assertTrue(cached.size() > 100 && cached.size() < 500, cached.size() + " kept");
+        int first = 500 - cached.size();
+        assertEquals(texts(null, first, 500), contents(cached));
+        assertEquals(texts(null, first + 10, first + 20), contents(cache.before(null, START + first + 20, 10)));
+        cache.close();
+    }
+
+    @Test
+    void fileNamesAreSafeAndDistinct() {
+        assertEquals("dev_ops-1", MessageCache.fileName("dev_ops-1"));
+        assertEquals("%44ev%20%2f%c3%a9", MessageCache.fileName("Dev /é"));
+        String longName = "x".repeat(300);
+        assertTrue(MessageCache.fileName(longName).length() < 120);
+        assertNotEquals(MessageCache.fileName(longName), MessageCache.fileName(longName + "y"));
+    }
+
+    private MessageCache open(int segmentBytes, long maxBytes) throws IOException {
+        return new MessageCache(dir, "localhost", 5000, "alice", segmentBytes, maxBytes);
+    }
+
+    // The segment files of every room under dir
+    private static List<Path> segments(Path dir) throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private static Message message(String room, int i) {
+        Message message = new Message(Message.Type.TEXT, "bob", text(room, i), START + i);
+        message.setRoom(room);
+        return message;
+    }
+
+    private static List<String> texts(String room, int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> text(room, i)).toList();
+    }
+
+    private static String text(String room, int i) {
+        return (room != null ? "#" + room + " " : "") + "lunch order going in soon, message " + i;
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        return messages.stream().map(Message::getContent).toList();
+    }
+}
@@ -0,0 +1,106 @@
+package com.ilyun.jchat.server;
+
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.client.ChatClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Two nodes on localhost, peers of each other, with a user on each
+class ClusterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void twoNodesActAsOneServer() throws Exception {
+        int bus0 = ServerProcess.freePort();
+        int bus1 = ServerProcess.freePort();
+        String peers = ServerProcess.HOST + ":" + bus0 + "," + ServerProcess.HOST + ":" + bus1;
+        Map<String, String> withFiles = new HashMap<>(node("node0", bus0, peers));
+        withFiles.put("_FILE_ENABLED", "true");
+        withFiles.put("_FILE_DIR", dir.resolve("files").toString());
+        try (ServerProcess node0 = new ServerProcess("nio", withFiles);
+             ServerProcess node1 = new ServerProcess("nio", node("node1", bus1, peers))) {
+            Inbox alice = new Inbox();
+            Inbox bob = new Inbox();
+            ChatClient aliceClient = node0.login("alice", alice);
+            ChatClient bobClient = node1.login("bob", bob);
+            // The nodes may find each other after either login, so each hears of the other
+            // in one way or the other
+            alice.await(message -> lists(message, "bob"));
+            bob.await(message -> lists(message, "alice"));
+
+            // presence: a new login on either node is told about both
+            for (ServerProcess node : List.of(node0, node1)) {
+                Inbox probe = new Inbox();
+                node.login("probe" + node.port, probe);
+                String users = probe.await(message -> message.getType() == Message.Type.USER_LIST).getContent();
+                assertTrue(Arrays.asList(users.split(",")).containsAll(List.of("alice", "bob")), users);
+            }
+
+            // unique names: alice can't log in on the other node as well
+            Inbox duplicate = new Inbox();
+            ChatClient duplicateClient = new ChatClient(Runnable::run);
+            assertTrue(duplicateClient.connect(ServerProcess.HOST, node1.port, "alice", System.currentTimeMillis(), duplicate));
+            try {
+                Message answer = duplicate.await(message -> message.getType() == Message.Type.DISCONNECT
+                        || message.getType() == Message.Type.SESSION && !message.getContent().isEmpty());
+                assertEquals(Message.Type.DISCONNECT, answer.getType());
+                assertEquals("Username already taken", answer.getContent());
+            } finally {
+                duplicateClient.disconnect();
+            }
+
+            // lobby, direct and room messages cross over
+            aliceClient.sendText(null, "hi all");
+            bob.await(message -> message.getType() == Message.Type.TEXT && message.getRoom() == null
+                    && message.getSender().equals("alice") && message.getContent().equals("hi all"));
+
+            bobClient.sendPrivate("alice", "psst");
+            alice.await(message -> message.getType() == Message.Type.PRIVATE
+                    && message.getSender().equals("bob") && message.getContent().equals("psst"));
+
+            aliceClient.joinRoom("dev");
+            alice.await(message -> message.getType() == Message.Type.JOIN_ROOM && message.getSender().equals("alice"));
+            bobClient.joinRoom("dev");
+            alice.await(message -> message.getType() == Message.Type.JOIN_ROOM && message.getSender().equals("bob"));
+            aliceClient.sendText("dev", "in the room");
+            bob.await(message -> message.getType() == Message.Type.TEXT && "dev".equals(message.getRoom())
+                    && message.getContent().equals("in the room"));
+
+            // but not a file sent to bob alone, whose bytes would stay on alice's node
+            Path file = Files.writeString(dir.resolve("notes.txt"), "for bob");
+            ProtocolException refused = assertThrows(ProtocolException.class,
+                    () -> aliceClient.upload(file, null, "bob", done -> { }));
+            assertTrue(refused.getMessage().contains("another server"), refused.getMessage());
+            assertTrue(bob.all(Message.Type.FILE).isEmpty());
+
+            // so does who is typing
+            bobClient.sendMessage(new Message(Message.Type.TYPING, "bob", ""));
+            alice.await(message -> message.getType() == Message.Type.TYPING && message.getContent().equals("bob"));
+
+            // and leaving
+            bobClient.disconnect();
+            alice.await(message -> message.getType() == Message.Type.USER_LEFT && message.getContent().equals("bob"));
+        }
+    }
+
+    private static Map<String, String> node(String name, int busPort, String peers) {
+        return Map.of("_CLUSTER_NODE", name, "_CLUSTER_PORT", Integer.toString(busPort), "_CLUSTER_PEERS", peers);
+    }
+
+    private static boolean lists(Message message, String username) {
+        return message.getType() == Message.Type.USER_JOINED && message.getContent().equals(username)
+                || message.getType() == Message.Type.USER_LIST
+                && Arrays.asList(message.getContent().split(",")).contains(username);
+    }
+}
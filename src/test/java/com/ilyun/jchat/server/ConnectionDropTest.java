@@ -0,0 +1,112 @@
+package com.ilyun.jchat.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Who may come back: a connection that failed under the server keeps its session for a
+// resume, one the server dropped itself (idle, or breaking the protocol) leaves at once.
+// In both server modes, seen by another user.
+class ConnectionDropTest {
+    private static final List<String> MODES = List.of("blocking", "nio");
+    private static final Map<String, String> SETTINGS = Map.of("_PING_INTERVAL_SECONDS", "1", "_IDLE_TIMEOUT_SECONDS", "2");
+
+    @Test
+    void lostConnectionIsHeldForResume() throws Exception {
+        for (String mode : MODES) {
+            try (ServerProcess server = new ServerProcess(mode, SETTINGS)) {
+                Inbox observer = new Inbox();
+                server.login("observer", observer);
+                RawClient dropped = new RawClient(server, "dropped", "");
+                observer.await(message -> message.getType() == Message.Type.USER_JOINED && message.getContent().equals("dropped"));
+                dropped.socket.close();
+
+                Thread.sleep(1000);
+                assertTrue(observer.all(Message.Type.USER_LEFT).isEmpty(), mode + ": left on a lost connection");
+                try (RawClient resumed = new RawClient(server, "dropped", dropped.token + " 0")) {
+                    assertEquals(dropped.token, resumed.token, mode + ": not resumed");
+                }
+            }
+        }
+    }
+
+    @Test
+    void idleConnectionLeavesAtOnce() throws Exception {
+        for (String mode : MODES) {
+            try (ServerProcess server = new ServerProcess(mode, SETTINGS);
+                 RawClient silent = new RawClient(server, "silent", "")) {
+                Inbox observer = new Inbox();
+                server.login("observer", observer);
+                // Never answers the PING, so is reaped, and the session with it
+                observer.await(message -> message.getType() == Message.Type.USER_LEFT && message.getContent().equals("silent"));
+                assertNotNull(silent.token);
+            }
+        }
+    }
+
+    @Test
+    void badFrameLeavesAtOnce() throws Exception {
+        for (String mode : MODES) {
+            try (ServerProcess server = new ServerProcess(mode, Map.of())) {
+                Inbox observer = new Inbox();
+                server.login("observer", observer);
+                try (RawClient rogue = new RawClient(server, "rogue", "")) {
+                    observer.await(message -> message.getType() == Message.Type.USER_JOINED && message.getContent().equals("rogue"));
+                    // A length prefix for a frame bigger than any allowed
+                    long length = MessageCodec.MAX_FRAME_SIZE + 1;
+                    while ((length & ~0x7FL) != 0) {
+                        rogue.out.write((int) ((length & 0x7F) | 0x80));
+                        length >>>= 7;
+                    }
+                    rogue.out.write((int) length);
+                    // and the start of it, which the server never reads
+                    rogue.out.write(new byte[64 * 1024]);
+                    rogue.out.flush();
+                    observer.await(message -> message.getType() == Message.Type.USER_LEFT && message.getContent().equals("rogue"));
+                    // Told why, so it doesn't resume and send the same again
+                    Message goodbye;
+                    do {
+                        goodbye = MessageCodec.readFrame(rogue.in);
+                    } while (goodbye.getType() != Message.Type.DISCONNECT);
+                    assertTrue(goodbye.getContent().startsWith("Protocol error"), mode + ": " + goodbye.getContent());
+                }
+            }
+        }
+    }
+
+    // A client that does no more than log in, so it can go quiet or misbehave
+    private static final class RawClient implements Closeable {
+        final Socket socket;
+        final OutputStream out;
+        final DataInputStream in;
+        final String token;
+
+        // resume: "token frames" to resume a session, or "" for a new one
+        RawClient(ServerProcess server, String username, String resume) throws IOException {
+            socket = new Socket(ServerProcess.HOST, server.port);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(MessageCodec.hello(MessageCodec.PROTOCOL_VERSION, 0));
+            long now = System.currentTimeMillis();
+            MessageCodec.writeFrame(out, new Message(Message.Type.CONNECT, username, resume, now, now));
+            out.flush();
+            MessageCodec.readHello(in);
+            Message message;
+            do {
+                message = MessageCodec.readFrame(in);
+            } while (message.getType() != Message.Type.SESSION);
+            token = message.getContent();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
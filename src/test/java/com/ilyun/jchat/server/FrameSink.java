@@ -0,0 +1,88 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import com.ilyun.jchat.FrameReader;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+
+// A connection with no socket behind it, keeping every frame it is sent
+final class FrameSink implements ClientConnection {
+    final List<ByteBuffer> frames = new ArrayList<>();
+
+    // What a client would read from those frames, in order
+    List<Message> messages() throws IOException {
+        FrameReader reader = new FrameReader();
+        List<Message> messages = new ArrayList<>();
+        for (ByteBuffer frame : frames) {
+            ByteBuffer buffer = frame.duplicate();
+            Message message;
+            while ((message = reader.poll(buffer)) != null) {
+                messages.add(message);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Frame cut short");
+            }
+        }
+        return messages;
+    }
+
+    List<String> texts() throws IOException {
+        return messages().stream().map(Message::getContent).toList();
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame, ByteBuffer compressed, OutboundQueue.Lane lane) {
+        frames.add(frame);
+    }
+
+    @Override
+    public String getUsername() {
+        return "carol";
+    }
+
+    @Override
+    public InetAddress getAddress() {
+        return null;
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        sendFrame(MessageCodec.encodeShared(message));
+    }
+
+    @Override
+    public int queueDepth() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int getVersion() {
+        return MessageCodec.PROTOCOL_VERSION;
+    }
+
+    @Override
+    public Session getSession() {
+        return null;
+    }
+
+    @Override
+    public void attach(Session session) {
+    }
+
+    @Override
+    public void hold() {
+    }
+
+    @Override
+    public boolean handOver(ClientConnection successor, long received) {
+        return false;
+    }
+}
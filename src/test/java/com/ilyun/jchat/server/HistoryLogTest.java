@@ -0,0 +1,155 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The log on disk: what goes in comes back after a restart, a record cut short by a crash
+// is dropped rather than replayed, and old segments go once the log is over its size
+class HistoryLogTest {
+    private static final int SEGMENT_BYTES = 2 * MessageCodec.MAX_FRAME_SIZE;
+    private static final long START = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysWhatWasAppendedAfterReopening() throws Exception {
+        HistoryLog log = open(Long.MAX_VALUE);
+        append(log, 0, 100);
+        log.close(5000);
+
+        log = open(Long.MAX_VALUE);
+        assertEquals(texts(0, 100), replay(log, 0, Long.MAX_VALUE, 1000));
+        assertEquals(texts(90, 100), replay(log, 0, Long.MAX_VALUE, 10));
+        assertEquals(texts(50, 100), replay(log, START + 49, Long.MAX_VALUE, 1000));
+        assertEquals(texts(55, 60), replay(log, 0, START + 60, 5));
+
+        // and it carries on where it left off
+        append(log, 100, 110);
+        log.close(5000);
+        log = open(Long.MAX_VALUE);
+        assertEquals(texts(0, 110), replay(log, 0, Long.MAX_VALUE, 1000));
+        log.close(5000);
+    }
+
+    @Test
+    void recordCutShortIsDropped() throws Exception {
+        HistoryLog log = open(Long.MAX_VALUE);
+        append(log, 0, 10);
+        log.close(5000);
+        long end = IntStream.range(0, 10).mapToLong(i -> frame(i).remaining()).sum();
+
+        // Every way the last record can be cut: the file ends part way into it
+        int last = frame(9).remaining();
+        for (int cut = 1; cut < last; cut++) {
+            Path copy = Files.createDirectories(dir.resolve("cut" + cut));
+            Path segment = copy.resolve(segments(dir).get(0).getFileName());
+            Files.copy(segments(dir).get(0), segment);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(end - last + cut);
+            }
+            log = new HistoryLog(copy, SEGMENT_BYTES, Long.MAX_VALUE, Long.MAX_VALUE, 1024, false);
+            assertEquals(texts(0, 9), replay(log, 0, Long.MAX_VALUE, 1000), "cut at " + cut);
+            append(log, 10, 11);
+            log.close(5000);
+
+            // Written over, not after it
+            log = new HistoryLog(copy, SEGMENT_BYTES, Long.MAX_VALUE, Long.MAX_VALUE, 1024, false);
+            List<String> replayed = replay(log, 0, Long.MAX_VALUE, 1000);
+            assertEquals(10, replayed.size(), "cut at " + cut);
+            assertEquals(text(10), replayed.get(9));
+            log.close(5000);
+        }
+    }
+
+    @Test
+    void rollsSegmentsAndDropsTheOldestOverTheLimit() throws Exception {
+        // About 32 of these fill a segment
+        String padding = "x".repeat(64 * 1024);
+        HistoryLog log = open(3L * SEGMENT_BYTES);
+        for (int i = 0; i < 200; i++) {
+            log.append(MessageCodec.encodeShared(new Message(Message.Type.TEXT, "alice", i + padding, START + i)));
+        }
+        log.close(5000);
+
+        log = open(3L * SEGMENT_BYTES);
+        List<Path> segments = segments(dir);
+        assertTrue(segments.size() >= 2 && segments.size() <= 4, segments.toString());
+        List<String> replayed = replay(log, 0, Long.MAX_VALUE, 1000);
+        // What is left is the newest, with nothing missing in between
+        assertTrue(replayed.size() < 200, replayed.size() + " kept");
+        int first = 200 - replayed.size();
+        for (int i = 0; i < replayed.size(); i++) {
+            assertEquals((first + i) + padding, replayed.get(i));
+        }
+        // Named after their first record
+        assertEquals(String.format("%020d.log", first), segments.get(0).getFileName().toString());
+        log.close(5000);
+    }
+
+    @Test
+    void dropsSegmentsPastTheirAge() throws Exception {
+        String padding = "x".repeat(64 * 1024);
+        long now = System.currentTimeMillis();
+        HistoryLog log = new HistoryLog(dir, SEGMENT_BYTES, Long.MAX_VALUE, 60_000, 1024, false);
+        // A segment's worth from long ago, then recent ones
+        for (int i = 0; i < 100; i++) {
+            long timestamp = i < 50 ? now - 3_600_000 : now;
+            log.append(MessageCodec.encodeShared(new Message(Message.Type.TEXT, "alice", i + padding, timestamp)));
+        }
+        log.close(5000);
+
+        log = new HistoryLog(dir, SEGMENT_BYTES, Long.MAX_VALUE, 60_000, 1024, false);
+        List<String> replayed = replay(log, 0, Long.MAX_VALUE, 1000);
+        assertTrue(replayed.size() <= 80 && replayed.size() >= 50, replayed.size() + " kept");
+        assertEquals(99 + padding, replayed.get(replayed.size() - 1));
+        log.close(5000);
+    }
+
+    private HistoryLog open(long maxBytes) throws IOException {
+        return new HistoryLog(dir, SEGMENT_BYTES, maxBytes, Long.MAX_VALUE, 1024, false);
+    }
+
+    private static void append(HistoryLog log, int from, int to) {
+        for (int i = from; i < to; i++) {
+            log.append(frame(i));
+        }
+    }
+
+    private static List<String> replay(HistoryLog log, long since, long before, int max) throws IOException {
+        FrameSink sink = new FrameSink();
+        log.replay(sink, since, before, max);
+        return sink.texts();
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private static ByteBuffer frame(int i) {
+        return MessageCodec.encodeShared(new Message(Message.Type.TEXT, "alice", text(i), START + i));
+    }
+
+    private static List<String> texts(int from, int to) {
+        return IntStream.range(from, to).mapToObj(HistoryLogTest::text).toList();
+    }
+
+    private static String text(int i) {
+        return "standup moved to half past, message " + i;
+    }
+}
@@ -0,0 +1,51 @@
+package com.ilyun.jchat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import com.ilyun.jchat.Message;
+
+// Everything one test client was handed, for the test to wait on
+final class Inbox implements Consumer<List<Message>> {
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final List<Message> messages = new ArrayList<>();
+
+    @Override
+    public synchronized void accept(List<Message> batch) {
+        messages.addAll(batch);
+        notifyAll();
+    }
+
+    // The first message received that matches, waiting for it if need be
+    synchronized Message await(Predicate<Message> match) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (true) {
+            for (Message message : messages) {
+                if (match.test(message)) {
+                    return message;
+                }
+            }
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                throw new AssertionError("Nothing matching came in " + TimeUnit.NANOSECONDS.toSeconds(TIMEOUT_NANOS)
+                        + "s, got " + describe(messages));
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+    }
+
+    synchronized List<Message> all(Message.Type type) {
+        return messages.stream().filter(message -> message.getType() == type).toList();
+    }
+
+    private static String describe(List<Message> messages) {
+        List<String> lines = new ArrayList<>();
+        for (Message message : messages) {
+            lines.add(message.getType() + " " + message.getSender() + ": " + message.getContent());
+        }
+        return lines.toString();
+    }
+}
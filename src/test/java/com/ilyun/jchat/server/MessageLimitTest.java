@@ -0,0 +1,38 @@
+package com.ilyun.jchat.server;
+
+import java.util.Map;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import com.ilyun.jchat.client.ChatClient;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A message too big for a frame stays with the client, which says so, rather than costing
+// it the connection
+class MessageLimitTest {
+
+    @Test
+    void tooLongIsRefusedBeforeSending() throws Exception {
+        try (ServerProcess server = new ServerProcess("nio", Map.of())) {
+            Inbox alice = new Inbox();
+            Inbox bob = new Inbox();
+            ChatClient aliceClient = server.login("alice", alice);
+            server.login("bob", bob);
+
+            String paste = "x".repeat(MessageCodec.MAX_FRAME_SIZE);
+            assertFalse(aliceClient.sendText(null, paste));
+            assertFalse(aliceClient.sendPrivate("bob", paste));
+            Message notice = alice.await(message -> message.getType() == Message.Type.NOTICE);
+            assertTrue(notice.getContent().startsWith("Message too long"), notice.getContent());
+
+            // Still connected, and nothing of it got through
+            assertTrue(aliceClient.sendText(null, "short"));
+            bob.await(message -> message.getType() == Message.Type.TEXT && message.getContent().equals("short"));
+            assertEquals(1, bob.all(Message.Type.TEXT).size());
+            assertTrue(bob.all(Message.Type.PRIVATE).isEmpty());
+            assertTrue(alice.all(Message.Type.DISCONNECT).isEmpty());
+            assertEquals(1, alice.all(Message.Type.SESSION).size());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.ilyun.jchat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// TYPING frames are the first thing a backed-up queue does without, and a resumed client
+// gets what it missed from the queue it left, or nothing if that isn't all there
+class OutboundQueueTest {
+    private static final int[] WEIGHTS = {4, 2, 1};
+
+    @Test
+    void typingIsTakenUntilTheClientFallsBehind() throws IOException {
+        OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.OverflowPolicy.DROP_OLDEST, WEIGHTS);
+        for (int i = 0; i < 31; i++) {
+            offer(queue, text("m" + i));
+        }
+        offer(queue, typing("alice"));
+        assertEquals(32, queue.size());
+        // 32 queued: behind
+        offer(queue, typing("bob"));
+        assertEquals(32, queue.size());
+
+        List<Message> sent = drain(queue);
+        assertEquals(List.of("alice"), sent.stream()
+                .filter(message -> message.getType() == Message.Type.TYPING).map(Message::getContent).toList());
+    }
+
+    @Test
+    void fullQueueDropsTypingBeforeChat() throws IOException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST, WEIGHTS);
+        offer(queue, typing("alice"));
+        for (int i = 0; i < 4; i++) {
+            offer(queue, text("m" + i));
+        }
+        assertEquals(4, queue.size());
+        assertEquals(List.of("m0", "m1", "m2", "m3"), drain(queue).stream().map(Message::getContent).toList());
+    }
+
+    @Test
+    void fullQueueWithoutTypingDropsTheOldest() throws IOException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST, WEIGHTS);
+        for (int i = 0; i < 5; i++) {
+            offer(queue, text("m" + i));
+        }
+        assertEquals(List.of("m1", "m2", "m3", "m4"), drain(queue).stream().map(Message::getContent).toList());
+    }
+
+    @Test
+    void handOverSendsWhatWasMissedThenPassesOn() throws IOException {
+        OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.OverflowPolicy.DROP_OLDEST, WEIGHTS);
+        queue.attach(new Session(8, null));
+        for (int i = 0; i < 3; i++) {
+            offer(queue, text("m" + i));
+        }
+        // Two went to the socket, the client only got the first
+        ByteBuffer[] batch = new ByteBuffer[2];
+        assertEquals(2, queue.drainTo(batch, 0, Long.MAX_VALUE));
+        queue.hold();
+        offer(queue, text("m3"));
+
+        FrameSink successor = new FrameSink();
+        assertTrue(queue.handOver(successor, 1));
+        offer(queue, text("m4"));
+        assertEquals(List.of("m1", "m2", "m3", "m4"), successor.texts());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    void handOverOfACompressedWriteResumesAfterIt() throws IOException {
+        OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.OverflowPolicy.DROP_OLDEST, WEIGHTS);
+        queue.attach(new Session(8, null));
+        ByteBuffer burst = SessionTest.compressed(0, 20);
+        assertTrue(queue.offer(burst, null, OutboundQueue.Lane.of(burst)));
+        offer(queue, text("after"));
+        queue.drainTo(new ByteBuffer[2], 0, Long.MAX_VALUE);
+        queue.hold();
+
+        FrameSink got = new FrameSink();
+        assertTrue(queue.handOver(got, 20));
+        assertEquals(List.of("after"), got.texts());
+    }
+
+    @Test
+    void handOverWithFramesDroppedWhileHeldMovesNothing() throws IOException {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST, WEIGHTS);
+        queue.attach(new Session(8, null));
+        offer(queue, text("m0"));
+        queue.drainTo(new ByteBuffer[1], 0, Long.MAX_VALUE);
+        queue.hold();
+        for (int i = 1; i < 4; i++) {
+            offer(queue, text("m" + i));
+        }
+
+        FrameSink successor = new FrameSink();
+        assertFalse(queue.handOver(successor, 1));
+        assertTrue(successor.frames.isEmpty());
+        // Still passed on from here, the server fills in the gap with history
+        offer(queue, text("m4"));
+        assertEquals(List.of("m4"), successor.texts());
+    }
+
+    @Test
+    void handOverFromBeforeWhatIsKeptMovesNothing() throws IOException {
+        OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.OverflowPolicy.DROP_OLDEST, WEIGHTS);
+        queue.attach(new Session(2, null));
+        for (int i = 0; i < 4; i++) {
+            offer(queue, text("m" + i));
+        }
+        queue.drainTo(new ByteBuffer[4], 0, Long.MAX_VALUE);
+        queue.hold();
+
+        FrameSink successor = new FrameSink();
+        assertFalse(queue.handOver(successor, 1));
+        assertTrue(successor.frames.isEmpty());
+    }
+
+    private static void offer(OutboundQueue queue, Message message) {
+        ByteBuffer frame = MessageCodec.encodeShared(message);
+        assertTrue(queue.offer(frame, message.getType(), OutboundQueue.Lane.of(frame)));
+    }
+
+    private static List<Message> drain(OutboundQueue queue) throws IOException {
+        ByteBuffer[] batch = new ByteBuffer[64];
+        int count = queue.drainTo(batch, 0, Long.MAX_VALUE);
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(MessageCodec.poll(batch[i].duplicate()));
+        }
+        assertEquals(0, queue.size());
+        return messages;
+    }
+
+    private static Message text(String content) {
+        return new Message(Message.Type.TEXT, "carol", content);
+    }
+
+    private static Message typing(String names) {
+        return new Message(Message.Type.TYPING, "Server", names, System.currentTimeMillis(), 1);
+    }
+}
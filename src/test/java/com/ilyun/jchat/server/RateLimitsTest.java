@@ -0,0 +1,74 @@
+package com.ilyun.jchat.server;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.client.ChatClient;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The user and address buckets together: a message either of them refuses costs the other
+// nothing, and the sender is told how long to wait
+class RateLimitsTest {
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+
+    @Test
+    void floodingUserLeavesTheAddressToOthers() {
+        TokenBucket address = new TokenBucket(1, 3, now::get);
+        TokenBucket flooder = new TokenBucket(1, 1, now::get);
+        TokenBucket quiet = new TokenBucket(1, 1, now::get);
+
+        assertTrue(RateLimits.allowMessage(flooder, address));
+        for (int i = 0; i < 100; i++) {
+            assertFalse(RateLimits.allowMessage(flooder, address));
+        }
+        // What the flooder's own bucket dropped never reached the address's
+        assertTrue(RateLimits.allowMessage(quiet, address));
+    }
+
+    @Test
+    void addressRefusalCostsTheUserNothing() {
+        TokenBucket address = new TokenBucket(1, 1, now::get);
+        TokenBucket first = new TokenBucket(1, 1, now::get);
+        TokenBucket second = new TokenBucket(1, 1, now::get);
+
+        assertTrue(RateLimits.allowMessage(first, address));
+        assertFalse(RateLimits.allowMessage(second, address));
+        assertTrue(second.isFull());
+        assertEquals(1000, RateLimits.waitMillis(second, address));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(RateLimits.allowMessage(second, address));
+    }
+
+    @Test
+    void waitIsTheLongerOfTheTwoRoundedUp() {
+        TokenBucket address = new TokenBucket(4, 1, now::get);
+        TokenBucket user = new TokenBucket(3, 1, now::get);
+        assertTrue(RateLimits.allowMessage(user, address));
+        // 333.33 ms for the user, 250 for the address
+        assertEquals(334, RateLimits.waitMillis(user, address));
+        assertEquals(250, RateLimits.waitMillis(null, address));
+        assertEquals(0, RateLimits.waitMillis(null, (TokenBucket) null));
+    }
+
+    // Through a server: the first message dropped gets a NOTICE carrying the wait in its seq
+    @Test
+    void noticeCarriesTheWait() throws Exception {
+        Map<String, String> settings = Map.of("_RATE_MESSAGES_PER_SECOND", "1", "_RATE_MESSAGE_BURST", "2");
+        try (ServerProcess server = new ServerProcess("nio", settings)) {
+            Inbox alice = new Inbox();
+            ChatClient client = server.login("alice", alice);
+            for (int i = 0; i < 5; i++) {
+                client.sendText(null, "flood " + i);
+            }
+            Message notice = alice.await(message -> message.getType() == Message.Type.NOTICE);
+            assertTrue(notice.getContent().contains("too fast"), notice.getContent());
+            assertTrue(notice.getSeq() > 0 && notice.getSeq() <= 1000, "retry after " + notice.getSeq());
+            Thread.sleep(200);
+            assertEquals(1, alice.all(Message.Type.NOTICE).size());
+        }
+    }
+}
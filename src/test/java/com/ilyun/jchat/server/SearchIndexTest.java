@@ -0,0 +1,128 @@
+package com.ilyun.jchat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Finding messages by their words and sender, in one segment's index and then across a log
+// that is reopened, rolled over and trimmed
+class SearchIndexTest {
+    private static final int SEGMENT_BYTES = 2 * MessageCodec.MAX_FRAME_SIZE;
+    private static final long START = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void queryIsLowercasedWordsAndSender() {
+        assertEquals(List.of("deploy", "from:alice", "v2"), SearchIndex.query("  Deploy FROM:Alice deploy... v2 "));
+        assertEquals(List.of("from"), SearchIndex.query("from:"));
+    }
+
+    @Test
+    void findsRecordsHoldingEveryTermNewestFirst() {
+        SearchIndex index = new SearchIndex();
+        index.add(0, START, text("alice", "Deploy failed on staging"));
+        index.add(1, START + 1, text("bob", "deploy again?"));
+        index.add(2, START + 2, file("alice", "deploy.log"));
+        index.add(3, START + 3, text("alice", "deploy works now, deploy deploy"));
+        index.trim(4);
+
+        assertEquals(List.of(3, 1, 0), search(index, "deploy", 0, 4));
+        assertEquals(List.of(3, 0), search(index, "from:alice deploy", 0, 4));
+        assertEquals(List.of(0), search(index, "staging DEPLOY", 0, 4));
+        assertEquals(List.of(), search(index, "deploy rollback", 0, 4));
+        // Only from up to to
+        assertEquals(List.of(1), search(index, "deploy", 1, 3));
+
+        assertEquals(0, index.countUpTo(START - 1, 4));
+        assertEquals(2, index.countUpTo(START + 1, 4));
+        assertEquals(4, index.countUpTo(Long.MAX_VALUE, 4));
+    }
+
+    @Test
+    void stopsWhenTheHitSaysSo() {
+        SearchIndex index = new SearchIndex();
+        for (int i = 0; i < 10; i++) {
+            index.add(i, START + i, text("alice", "ping " + i));
+        }
+        List<Integer> hits = new ArrayList<>();
+        assertFalse(index.search(List.of("ping"), 0, 10, doc -> hits.add(doc) && hits.size() < 3));
+        assertEquals(List.of(9, 8, 7), hits);
+    }
+
+    @Test
+    void logIsSearchableAfterReopening() throws Exception {
+        HistoryLog log = open(Long.MAX_VALUE);
+        for (int i = 0; i < 50; i++) {
+            log.append(frame(i % 2 == 0 ? "alice" : "bob", "build " + i + (i % 10 == 0 ? " green" : " red"), START + i));
+        }
+        log.close(5000);
+
+        log = open(Long.MAX_VALUE);
+        assertEquals(List.of("build 40 green", "build 30 green", "build 20 green", "build 10 green", "build 0 green"),
+                contents(log.search(SearchIndex.query("green"), 0, Long.MAX_VALUE, 100)));
+        assertEquals(List.of("build 49 red", "build 47 red"),
+                contents(log.search(SearchIndex.query("from:bob red"), 0, Long.MAX_VALUE, 2)));
+        // A page and the one before it
+        assertEquals(List.of("build 20 green", "build 10 green"),
+                contents(log.search(SearchIndex.query("green"), START + 5, START + 30, 100)));
+        log.close(5000);
+    }
+
+    @Test
+    void searchSpansSegmentsAndForgetsDroppedOnes() throws Exception {
+        // About 32 of these fill a segment
+        String padding = " " + "x".repeat(64 * 1024);
+        HistoryLog log = open(3L * SEGMENT_BYTES);
+        for (int i = 0; i < 200; i++) {
+            log.append(frame("alice", "note " + i + (i % 25 == 0 ? " marker" : "") + padding, START + i));
+        }
+        log.close(5000);
+
+        log = open(3L * SEGMENT_BYTES);
+        FrameSink sink = new FrameSink();
+        log.replay(sink, 0, Long.MAX_VALUE, 1000);
+        long oldest = sink.messages().get(0).getTimestamp();
+        List<String> expected = new ArrayList<>();
+        for (int i = 175; i >= 0 && START + i >= oldest; i -= 25) {
+            expected.add("note " + i + " marker" + padding);
+        }
+        assertTrue(expected.size() >= 2, "markers in more than one segment");
+        assertEquals(expected, contents(log.search(SearchIndex.query("marker"), 0, Long.MAX_VALUE, 100)));
+        log.close(5000);
+    }
+
+    private HistoryLog open(long maxBytes) throws Exception {
+        return new HistoryLog(dir, SEGMENT_BYTES, maxBytes, Long.MAX_VALUE, 1024, true);
+    }
+
+    private static List<Integer> search(SearchIndex index, String query, int from, int to) {
+        List<Integer> hits = new ArrayList<>();
+        index.search(SearchIndex.query(query), from, to, hits::add);
+        return hits;
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        return messages.stream().map(Message::getContent).toList();
+    }
+
+    private static ByteBuffer frame(String sender, String content, long timestamp) {
+        return MessageCodec.encodeShared(new Message(Message.Type.TEXT, sender, content, timestamp));
+    }
+
+    private static ByteBuffer text(String sender, String content) {
+        return frame(sender, content, START);
+    }
+
+    private static ByteBuffer file(String sender, String name) {
+        return MessageCodec.encodeShared(new Message(Message.Type.FILE, sender, "f1 " + name, START, 100));
+    }
+}
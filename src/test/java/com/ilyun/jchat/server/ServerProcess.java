@@ -0,0 +1,107 @@
+package com.ilyun.jchat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.client.ChatClient;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A ChatServer in a JVM of its own, started from the test classpath. The server keeps its
+// state in statics, so each node of a cluster needs one anyway. Settings go in as -D
+// properties, which win over a .env file; history, file sharing and metrics are off unless
+// a test turns them on.
+final class ServerProcess implements AutoCloseable {
+    static final String HOST = "127.0.0.1";
+
+    final int port;
+    private final Process process;
+    private final List<ChatClient> clients = new ArrayList<>();
+
+    ServerProcess(String mode, Map<String, String> settings) throws IOException, InterruptedException {
+        port = freePort();
+        Map<String, String> all = new LinkedHashMap<>();
+        all.put("_SERVER_IP", HOST);
+        all.put("_PORT", Integer.toString(port));
+        all.put("_HISTORY_ENABLED", "false");
+        all.put("_FILE_ENABLED", "false");
+        all.put("_METRICS_PORT", "0");
+        all.put("_LOG_LEVEL", "warn");
+        all.putAll(settings);
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = new ArrayList<>(List.of(java, "-cp", classPath()));
+        all.forEach((key, value) -> command.add("-D" + key + "=" + value));
+        command.addAll(List.of("com.ilyun.jchat.server.ChatServer", mode));
+        process = new ProcessBuilder(command).inheritIO().start();
+        waitForPort();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // The tests run with the application on the module path, the server runs from the class
+    // path like the benches do
+    private static String classPath() {
+        List<String> path = new ArrayList<>();
+        for (String property : List.of("jdk.module.path", "java.class.path")) {
+            String value = System.getProperty(property);
+            if (value != null && !value.isEmpty()) {
+                path.add(value);
+            }
+        }
+        return String.join(File.pathSeparator, path);
+    }
+
+    // Logged in once this returns, so it gets everything sent after. Disconnected on close.
+    ChatClient login(String username, Inbox inbox) throws InterruptedException {
+        ChatClient client = new ChatClient(Runnable::run);
+        assertTrue(client.connect(HOST, port, username, System.currentTimeMillis(), inbox), username + " could not connect");
+        clients.add(client);
+        inbox.await(message -> message.getType() == Message.Type.SESSION && !message.getContent().isEmpty());
+        return client;
+    }
+
+    // SIGTERM, which the server's shutdown hook answers; whether it was gone within the timeout
+    boolean stop(long timeoutMillis) throws InterruptedException {
+        process.destroy();
+        return process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Never leaves the server running, even if interrupted on the way
+    @Override
+    public void close() {
+        for (ChatClient client : clients) {
+            client.disconnect();
+        }
+        try {
+            if (!stop(5000)) {
+                process.destroyForcibly().waitFor();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void waitForPort() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Server exited with " + process.exitValue());
+            }
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on " + HOST + ":" + port);
+    }
+}
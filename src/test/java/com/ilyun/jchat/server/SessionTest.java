@@ -0,0 +1,127 @@
+package com.ilyun.jchat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import com.ilyun.jchat.Compression;
+import com.ilyun.jchat.FrameReader;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.MessageCodec;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// What a client coming back is sent again: from the frame after the last it got, however
+// the writes it came in were cut up, or nothing if that is no longer kept
+class SessionTest {
+
+    @Test
+    void resumesInsideAWriteTakenPartWay() throws IOException {
+        Session session = new Session(4, null);
+        ByteBuffer first = frames(0, 3);
+        session.sent(first);
+        session.sent(frames(3, 5));
+        // The socket took some of the first write before it went
+        first.position(first.limit() / 2);
+
+        assertEquals(texts(1, 5), read(session.rewind(1)));
+    }
+
+    @Test
+    void numbersOnFromWhereTheClientGot() throws IOException {
+        Session session = new Session(4, null);
+        session.sent(frames(0, 3));
+        assertEquals(texts(2, 3), read(session.rewind(2)));
+        // Sent again and then some: numbered from 2, not from 3
+        session.sent(frames(2, 3));
+        session.sent(frames(3, 4));
+        assertEquals(texts(3, 4), read(session.rewind(3)));
+    }
+
+    @Test
+    void compressedFrameCountsAsAllItHolds() throws IOException {
+        // A compressed burst, then a write with a compressed frame between two plain ones
+        for (long received : new long[] {0, 20, 21, 41, 42}) {
+            Session session = new Session(4, null);
+            session.sent(compressed(0, 20));
+            ByteArrayOutputStream write = new ByteArrayOutputStream();
+            write.writeBytes(bytes(frames(20, 21)));
+            write.writeBytes(bytes(compressed(21, 41)));
+            write.writeBytes(bytes(frames(41, 42)));
+            session.sent(ByteBuffer.wrap(write.toByteArray()));
+
+            assertEquals(texts((int) received, 42), read(session.rewind(received)), "from " + received);
+        }
+    }
+
+    @Test
+    void gapOlderThanWhatIsKeptIsNoResume() throws IOException {
+        Session session = new Session(2, null);
+        for (int i = 0; i < 3; i++) {
+            session.sent(frames(i, i + 1));
+        }
+        assertNull(session.rewind(0));
+
+        session = new Session(2, null);
+        for (int i = 0; i < 3; i++) {
+            session.sent(frames(i, i + 1));
+        }
+        assertEquals(texts(1, 3), read(session.rewind(1)));
+
+        session = new Session(2, null);
+        session.sent(frames(0, 2));
+        assertEquals(0, session.rewind(2).length);
+        session = new Session(2, null);
+        session.sent(frames(0, 2));
+        // More than was ever sent
+        assertNull(session.rewind(3));
+    }
+
+    // Chat messages from to (exclusive) as plain frames in one buffer
+    static ByteBuffer frames(int from, int to) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = from; i < to; i++) {
+            frames.writeBytes(MessageCodec.encode(new Message(Message.Type.TEXT, "alice", text(i), 1_700_000_000_000L + i)));
+        }
+        return ByteBuffer.wrap(frames.toByteArray());
+    }
+
+    static ByteBuffer compressed(int from, int to) {
+        ByteBuffer compressed = Compression.compress(frames(from, to), to - from);
+        assertNotNull(compressed);
+        return compressed;
+    }
+
+    static List<String> texts(int from, int to) {
+        return IntStream.range(from, to).mapToObj(SessionTest::text).toList();
+    }
+
+    // What a client reading these would get, in order
+    static List<String> read(ByteBuffer[] writes) throws IOException {
+        assertNotNull(writes);
+        FrameReader reader = new FrameReader();
+        List<String> texts = new ArrayList<>();
+        for (ByteBuffer write : writes) {
+            ByteBuffer buffer = write.duplicate();
+            Message message;
+            while ((message = reader.poll(buffer)) != null) {
+                texts.add(message.getContent());
+            }
+            assertFalse(buffer.hasRemaining());
+        }
+        return texts;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static String text(int i) {
+        return "the deploy is stuck on the migration again, message " + i;
+    }
+}
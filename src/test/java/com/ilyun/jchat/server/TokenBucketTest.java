@@ -0,0 +1,64 @@
+package com.ilyun.jchat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// On a clock moved by hand, so refills land exactly where they should
+class TokenBucketTest {
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+
+    @Test
+    void burstThenOnePerInterval() {
+        TokenBucket bucket = new TokenBucket(2, 5, now::get);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(), "take " + i);
+        }
+        assertFalse(bucket.tryTake());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), bucket.waitNanos());
+
+        advance(499);
+        assertFalse(bucket.tryTake());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), bucket.waitNanos());
+        advance(1);
+        assertTrue(bucket.tryTake());
+        assertFalse(bucket.tryTake());
+    }
+
+    @Test
+    void refillsUpToTheBurstOnly() {
+        TokenBucket bucket = new TokenBucket(2, 5, now::get);
+        for (int i = 0; i < 5; i++) {
+            bucket.tryTake();
+        }
+        assertFalse(bucket.isFull());
+        advance(2499);
+        assertFalse(bucket.isFull());
+        advance(1);
+        assertTrue(bucket.isFull());
+        assertEquals(0, bucket.waitNanos());
+
+        // A long quiet spell saves up no more than a burst
+        advance(60_000);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(), "take " + i);
+        }
+        assertFalse(bucket.tryTake());
+    }
+
+    @Test
+    void givenBackCanBeTakenAgain() {
+        TokenBucket bucket = new TokenBucket(1, 1, now::get);
+        assertTrue(bucket.tryTake());
+        assertFalse(bucket.tryTake());
+        bucket.giveBack();
+        assertTrue(bucket.isFull());
+        assertTrue(bucket.tryTake());
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
@@ -0,0 +1,38 @@
+package com.ilyun.jchat.server;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// What other nodes are told of: a start, not every keystroke after it. The interval is
+// long enough that no update goes out while the test runs.
+class TypingRelayTest {
+    private final TypingRelay relay = new TypingRelay(TimeUnit.HOURS.toNanos(1), TimeUnit.HOURS.toNanos(2));
+
+    @AfterEach
+    void stop() {
+        relay.stop();
+    }
+
+    @Test
+    void onlyStartingIsPassedOn() {
+        assertTrue(relay.typing("alice", null));
+        for (int i = 0; i < 100; i++) {
+            assertFalse(relay.typing("alice", null));
+        }
+        // Somewhere else, or someone else, is news
+        assertTrue(relay.typing("alice", "dev"));
+        assertTrue(relay.typing("bob", null));
+        assertFalse(relay.typing("bob", null));
+    }
+
+    @Test
+    void startingAgainAfterStoppingIsPassedOn() {
+        assertTrue(relay.typing("alice", "dev"));
+        relay.stopped("alice", "dev");
+        assertTrue(relay.typing("alice", "dev"));
+        assertFalse(relay.typing("alice", "dev"));
+    }
+}
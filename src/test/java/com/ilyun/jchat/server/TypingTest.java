@@ -0,0 +1,76 @@
+package com.ilyun.jchat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.client.ChatClient;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Typing indicators as a client watching the lobby sees them: however often the typists
+// say so, one update per interval, then one saying nobody is, then nothing
+class TypingTest {
+    private static final int INTERVAL_MILLIS = 200;
+    private static final int TYPISTS = 5;
+
+    @Test
+    void typingIsCoalescedAndExpires() throws Exception {
+        Map<String, String> settings = Map.of("_TYPING_INTERVAL_MILLIS", Integer.toString(INTERVAL_MILLIS),
+                "_TYPING_TIMEOUT_MILLIS", Integer.toString(3 * INTERVAL_MILLIS));
+        try (ServerProcess server = new ServerProcess("nio", settings)) {
+            Inbox observer = new Inbox();
+            server.login("observer", observer);
+            List<ChatClient> typists = new ArrayList<>();
+            for (int i = 0; i < TYPISTS; i++) {
+                typists.add(server.login("typist" + i, new Inbox()));
+            }
+
+            // Every 20 ms from each of them, far more often than a client would
+            long windowMillis = 1000;
+            long end = System.currentTimeMillis() + windowMillis;
+            while (System.currentTimeMillis() < end) {
+                for (int i = 0; i < TYPISTS; i++) {
+                    typists.get(i).sendMessage(new Message(Message.Type.TYPING, "typist" + i, ""));
+                }
+                Thread.sleep(20);
+            }
+            int during = observer.all(Message.Type.TYPING).size();
+            assertTrue(during <= windowMillis / INTERVAL_MILLIS + 2, during + " updates in " + windowMillis + " ms");
+            for (Message update : observer.all(Message.Type.TYPING)) {
+                List<String> names = update.getContent().isEmpty() ? List.of() : Arrays.asList(update.getContent().split(","));
+                assertEquals(Math.min(3, update.getSeq()), names.size(), update.getContent());
+                assertNull(update.getRoom());
+            }
+            observer.await(update -> update.getType() == Message.Type.TYPING && update.getSeq() == TYPISTS);
+
+            // Nobody says so any more: once they time out, a last update with nobody in it
+            Message last = observer.await(update -> update.getType() == Message.Type.TYPING && update.getSeq() == 0);
+            assertEquals("", last.getContent());
+            int updates = observer.all(Message.Type.TYPING).size();
+            Thread.sleep(5 * INTERVAL_MILLIS);
+            assertEquals(updates, observer.all(Message.Type.TYPING).size(), "updates after nobody was typing");
+        }
+    }
+
+    @Test
+    void sendingTheMessageStopsTyping() throws Exception {
+        // Long enough that the typist can't just have timed out
+        Map<String, String> settings = Map.of("_TYPING_INTERVAL_MILLIS", Integer.toString(INTERVAL_MILLIS),
+                "_TYPING_TIMEOUT_MILLIS", "30000");
+        try (ServerProcess server = new ServerProcess("nio", settings)) {
+            Inbox observer = new Inbox();
+            server.login("observer", observer);
+            ChatClient typist = server.login("typist", new Inbox());
+
+            typist.sendMessage(new Message(Message.Type.TYPING, "typist", ""));
+            Message typing = observer.await(update -> update.getType() == Message.Type.TYPING && update.getSeq() == 1);
+            assertEquals("typist", typing.getContent());
+
+            typist.sendText(null, "done");
+            observer.await(update -> update.getType() == Message.Type.TYPING && update.getSeq() == 0);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.ilyun.jchat.server;
+
+import java.util.*;
+import com.ilyun.jchat.Message;
+import com.ilyun.jchat.client.ChatClient;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A server handling each connection on a virtual thread: chat between many clients, and
+// the shutdown that tells every one of them before the process goes
+class VirtualModeTest {
+    private static final int CLIENTS = 20;
+
+    @Test
+    void everyClientGetsEveryLobbyMessage() throws Exception {
+        try (ServerProcess server = new ServerProcess("virtual", Map.of())) {
+            List<Inbox> inboxes = new ArrayList<>();
+            List<ChatClient> clients = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                Inbox inbox = new Inbox();
+                inboxes.add(inbox);
+                clients.add(server.login("user" + i, inbox));
+            }
+            for (int i = 0; i < CLIENTS; i++) {
+                clients.get(i).sendText(null, "hello from " + i);
+            }
+            // From everyone but themselves, in no particular order between senders
+            for (int receiver = 0; receiver < CLIENTS; receiver++) {
+                Inbox inbox = inboxes.get(receiver);
+                for (int i = 0; i < CLIENTS; i++) {
+                    String text = "hello from " + i;
+                    if (i != receiver) {
+                        inbox.await(message -> message.getType() == Message.Type.TEXT && message.getContent().equals(text));
+                    }
+                }
+                assertEquals(CLIENTS - 1, inbox.all(Message.Type.TEXT).size());
+            }
+        }
+    }
+
+    @Test
+    void shutdownSaysGoodbyeToEveryClient() throws Exception {
+        try (ServerProcess server = new ServerProcess("virtual", Map.of())) {
+            List<Inbox> inboxes = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                Inbox inbox = new Inbox();
+                inboxes.add(inbox);
+                server.login("user" + i, inbox);
+            }
+            assertTrue(server.stop(10_000), "server still running 10s after SIGTERM");
+            for (Inbox inbox : inboxes) {
+                Message goodbye = inbox.await(message -> message.getType() == Message.Type.DISCONNECT);
+                assertEquals("Server shutting down", goodbye.getContent());
+            }
+        }
+    }
+}